@@ -0,0 +1,308 @@
+package com.neandertal.pupdownloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Crawls a {@link SyntheticSite} with a cluster of {@link WebCrawler} processes on the loopback interface and checks
+ * that together they visit the site exactly once.
+ * <p>
+ * Usage: <code>ClusterBenchmark [node_count=3] [rounds=1] [timeout=300] [site keys] [crawler keys]</code>. Keys of
+ * {@link SyntheticSite#KEYS} shape the site, which runs in this JVM; all other keys are passed to every node. Each
+ * round starts <code>node_count</code> JVMs on free ports, in a fresh temporary folder so that every node keeps its
+ * files in the default <code>webcrawler/node&lt;id&gt;/</code>, and waits up to <code>timeout</code> seconds for all
+ * of them to end. The round is complete when every node ended by itself, the nodes visited disjoint sets of pages
+ * that make up the whole site, found every image page and received all links routed between them.
+ * <p>
+ * Run internally as <code>ClusterBenchmark node [crawler keys]</code> for one node: it crawls, prints its metrics
+ * and exits.
+ *
+ * @author neandertal
+ *
+ */
+public class ClusterBenchmark
+{
+    private static final String KEY_NODE_COUNT = "node_count";
+    private static final String KEY_ROUNDS = "rounds";
+    private static final String KEY_TIMEOUT = "timeout";
+
+    private static final String NODE = "node";
+    /** Prefix of the metrics line a node prints. */
+    private static final String RESULT = "Result:";
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length > 0 && NODE.equals(args[0]))
+        {
+            node(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        int nodeCount = 3;
+        int rounds = 1;
+        int timeout = 300;
+        Map<String, String> siteParameters = new HashMap<String, String>();
+        List<String> crawlerArgs = new ArrayList<String>();
+        for (String arg : args)
+        {
+            int index = arg.indexOf('=');
+            if (index == -1) { throw new IllegalArgumentException("Unknown parameter: " + arg); }
+
+            String key = arg.substring(0, index);
+            String value = arg.substring(index + 1);
+            if (KEY_NODE_COUNT.equals(key))
+            {
+                nodeCount = Integer.parseInt(value);
+            }
+            else if (KEY_ROUNDS.equals(key))
+            {
+                rounds = Integer.parseInt(value);
+            }
+            else if (KEY_TIMEOUT.equals(key))
+            {
+                timeout = Integer.parseInt(value);
+            }
+            else if (SyntheticSite.KEYS.contains(key))
+            {
+                siteParameters.put(key, value);
+            }
+            else
+            {
+                crawlerArgs.add(arg);
+            }
+        }
+        if (nodeCount < 1) { throw new IllegalArgumentException("Invalid parameter: " + KEY_NODE_COUNT); }
+        if (timeout < 1) { throw new IllegalArgumentException("Invalid parameter: " + KEY_TIMEOUT); }
+
+        SyntheticSite site = new SyntheticSite(siteParameters);
+        site.start();
+        log("Site: {0} pages, {1} image pages, {2}", site.getPages(), site.getImagePages(), site.getURL());
+        try
+        {
+            for (int round = 1; round <= rounds; round++)
+            {
+                run(round, site, nodeCount, timeout, crawlerArgs);
+            }
+        }
+        finally
+        {
+            site.stop();
+        }
+    }
+
+    private static void run(int round, SyntheticSite site, int nodeCount, int timeout, List<String> crawlerArgs)
+            throws Exception
+    {
+        File folder = Files.createTempDirectory("cluster-benchmark").toFile();
+        StringBuilder nodes = new StringBuilder();
+        for (int port : freePorts(nodeCount))
+        {
+            nodes.append(nodes.length() == 0 ? "" : "|").append("127.0.0.1:").append(port);
+        }
+
+        site.resetCounters();
+        long start = System.nanoTime();
+        List<Process> processes = new ArrayList<Process>();
+        boolean ended = true;
+        List<Map<String, Long>> results = new ArrayList<Map<String, Long>>();
+        Set<String> visitedURLs = new HashSet<String>();
+        int overlap = 0;
+        long nanos;
+        try
+        {
+            for (int id = 0; id < nodeCount; id++)
+            {
+                processes.add(startNode(folder, id, nodes.toString(), site, crawlerArgs));
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+            for (Process process : processes)
+            {
+                long left = deadline - System.nanoTime();
+                if (!process.waitFor(Math.max(0, left), TimeUnit.NANOSECONDS) || process.exitValue() != 0)
+                {
+                    ended = false;
+                }
+            }
+            nanos = System.nanoTime() - start;
+
+            for (int id = 0; id < nodeCount; id++)
+            {
+                results.add(readResult(new File(folder, "node" + id + ".txt")));
+                File visitedFile = new File(folder, "webcrawler/node" + id + "/visited_urls.txt");
+                if (visitedFile.isFile())
+                {
+                    for (String url : Files.readAllLines(visitedFile.toPath(), StandardCharsets.UTF_8))
+                    {
+                        if (!url.isEmpty() && !visitedURLs.add(url))
+                        {
+                            overlap++;
+                        }
+                    }
+                }
+            }
+        }
+        finally
+        {
+            for (Process process : processes)
+            {
+                process.destroyForcibly();
+            }
+            for (Process process : processes)
+            {
+                process.waitFor();
+            }
+            ZoomifyDownloader.deleteFolder(folder);
+        }
+
+        long matches = 0;
+        long routed = 0;
+        long received = 0;
+        for (int id = 0; id < nodeCount; id++)
+        {
+            Map<String, Long> result = results.get(id);
+            if (result == null)
+            {
+                log("Round {0}, node {1}: no result", round, id);
+                ended = false;
+                continue;
+            }
+            matches += result.get("pup_crawler_matches_total");
+            routed += result.get("pup_crawler_links_routed");
+            received += result.get("pup_crawler_links_received");
+            log("Round {0}, node {1}: {2} pages visited, {3} matches, {4} links routed, {5} received", round, id,
+                    result.get("pup_crawler_visited_urls"), result.get("pup_crawler_matches_total"),
+                    result.get("pup_crawler_links_routed"), result.get("pup_crawler_links_received"));
+        }
+
+        boolean complete = ended && overlap == 0 && visitedURLs.size() == site.getPages()
+                && matches == site.getImagePages() && routed == received;
+        log("Round {0}: {1} nodes in {2} ms, {3} pages/s, {4} pages visited ({5} twice), {6} matches, "
+                + "{7} links routed, {8} received, {9} requests{10}", round, nodeCount,
+                TimeUnit.NANOSECONDS.toMillis(nanos), visitedURLs.size() * 1000000000L / Math.max(1, nanos),
+                visitedURLs.size(), overlap, matches, routed, received, site.getRequests(),
+                complete ? "" : " (INCOMPLETE)");
+    }
+
+    private static Process startNode(File folder, int id, String nodes, SyntheticSite site, List<String> crawlerArgs)
+            throws IOException
+    {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ClusterBenchmark.class.getName());
+        command.add(NODE);
+        command.add("site=" + site.getURL());
+        command.add("keyword=" + SyntheticSite.KEYWORD);
+        command.add("nodes=" + nodes);
+        command.add("node_id=" + id);
+        command.add("threads=4");
+        command.add("host_connections=8");
+        command.add("rate_control=false");
+        command.add("log_level=warn");
+        command.add("checkpoint_interval=0");
+        // later values win
+        command.addAll(crawlerArgs);
+
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.directory(folder);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(new File(folder, "node" + id + ".txt"));
+        return builder.start();
+    }
+
+    /** Crawl as one node of the cluster and print the metrics for the parent to read. */
+    private static void node(String[] args) throws Exception
+    {
+        int status = 1;
+        try
+        {
+            Map<String, Object> metrics = WebCrawler.run(args);
+            StringBuilder sb = new StringBuilder(RESULT);
+            for (Map.Entry<String, Object> entry : metrics.entrySet())
+            {
+                if (entry.getValue() instanceof Number)
+                {
+                    sb.append(' ').append(entry.getKey()).append('=').append(((Number) entry.getValue()).longValue());
+                }
+            }
+            System.out.println(sb);
+            status = 0;
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            System.out.flush();
+            // threads of the crawler may still linger
+            System.exit(status);
+        }
+    }
+
+    /**
+     * @return the metrics printed by a node, or null if it printed none
+     */
+    private static Map<String, Long> readResult(File output) throws IOException
+    {
+        if (!output.isFile()) { return null; }
+
+        for (String line : Files.readAllLines(output.toPath(), StandardCharsets.UTF_8))
+        {
+            if (line.startsWith(RESULT))
+            {
+                Map<String, Long> result = new HashMap<String, Long>();
+                for (String pair : line.substring(RESULT.length()).trim().split(" "))
+                {
+                    int index = pair.indexOf('=');
+                    result.put(pair.substring(0, index), Long.parseLong(pair.substring(index + 1)));
+                }
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /** Ports free right now; a node could still lose one to another process before it binds. */
+    private static List<Integer> freePorts(int count) throws IOException
+    {
+        List<ServerSocket> sockets = new ArrayList<ServerSocket>();
+        List<Integer> ports = new ArrayList<Integer>();
+        try
+        {
+            for (int i = 0; i < count; i++)
+            {
+                ServerSocket socket = new ServerSocket(0);
+                sockets.add(socket);
+                ports.add(socket.getLocalPort());
+            }
+        }
+        finally
+        {
+            for (ServerSocket socket : sockets)
+            {
+                socket.close();
+            }
+        }
+        return ports;
+    }
+
+    private static void log(String msg, Object... args)
+    {
+        System.out.println(MessageFormat.format(msg, args));
+    }
+}
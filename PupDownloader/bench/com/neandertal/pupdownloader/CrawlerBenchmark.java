@@ -0,0 +1,138 @@
+package com.neandertal.pupdownloader;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Crawls a {@link SyntheticSite} with {@link WebCrawler} and reports throughput, heap and requests per page.
+ * <p>
+ * Usage: <code>CrawlerBenchmark [rounds=3] [site keys] [crawler keys]</code>. Keys of {@link SyntheticSite#KEYS}
+ * shape the site, all others are passed to the crawler, after defaults that keep every file of a round in a fresh
+ * temporary folder, crawl with 8 threads without rate control and only log warnings. Each round crawls the whole site from scratch; the crawler must find every
+ * page and every image page, else the round is reported as incomplete. Run with a fixed heap, e.g.
+ * <code>-Xmx1g</code>, so that the peak heap of the rounds compares.
+ *
+ * @author neandertal
+ *
+ */
+public class CrawlerBenchmark
+{
+    private static final String KEY_ROUNDS = "rounds";
+
+    public static void main(String[] args) throws Exception
+    {
+        int rounds = 3;
+        Map<String, String> siteParameters = new HashMap<String, String>();
+        List<String> crawlerArgs = new ArrayList<String>();
+        for (String arg : args)
+        {
+            int index = arg.indexOf('=');
+            if (index == -1) { throw new IllegalArgumentException("Unknown parameter: " + arg); }
+
+            String key = arg.substring(0, index);
+            if (KEY_ROUNDS.equals(key))
+            {
+                rounds = Integer.parseInt(arg.substring(index + 1));
+            }
+            else if (SyntheticSite.KEYS.contains(key))
+            {
+                siteParameters.put(key, arg.substring(index + 1));
+            }
+            else
+            {
+                crawlerArgs.add(arg);
+            }
+        }
+
+        SyntheticSite site = new SyntheticSite(siteParameters);
+        site.start();
+        log("Site: {0} pages, {1} image pages, {2}", site.getPages(), site.getImagePages(), site.getURL());
+        try
+        {
+            for (int round = 1; round <= rounds; round++)
+            {
+                run(round, site, crawlerArgs);
+            }
+        }
+        finally
+        {
+            site.stop();
+        }
+    }
+
+    private static void run(int round, SyntheticSite site, List<String> crawlerArgs) throws Exception
+    {
+        File folder = Files.createTempDirectory("crawler-benchmark").toFile();
+        List<String> args = new ArrayList<String>();
+        args.add("site=" + site.getURL());
+        args.add("keyword=" + SyntheticSite.KEYWORD);
+        args.add("threads=8");
+        // throughput of the crawler, not of a polite crawl
+        args.add("host_connections=8");
+        args.add("rate_control=false");
+        args.add("log_level=warn");
+        args.add("checkpoint_interval=0");
+        args.add("log_file=" + new File(folder, "log.txt"));
+        args.add("visited_urls_file=" + new File(folder, "visited_urls.txt"));
+        args.add("matching_urls_file=" + new File(folder, "matching_urls.txt"));
+        args.add("tovisit_urls_file=" + new File(folder, "tovisit_urls.txt"));
+        args.add("validators_file=" + new File(folder, "validators.txt"));
+        args.add("checkpoint_file=" + new File(folder, "checkpoint.bin"));
+        args.add("content_store_file=" + new File(folder, "content.gz"));
+        // later values win
+        args.addAll(crawlerArgs);
+
+        site.resetCounters();
+        System.gc();
+        List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() == MemoryType.HEAP)
+            {
+                pool.resetPeakUsage();
+                pools.add(pool);
+            }
+        }
+
+        long start = System.nanoTime();
+        Map<String, Object> metrics;
+        try
+        {
+            metrics = WebCrawler.run(args.toArray(new String[args.size()]));
+        }
+        finally
+        {
+            ZoomifyDownloader.deleteFolder(folder);
+        }
+        long nanos = System.nanoTime() - start;
+
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : pools)
+        {
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+
+        long visited = ((Number) metrics.get("pup_crawler_visited_urls")).longValue();
+        long fetched = (Long) metrics.get("pup_crawler_pages_fetched_total");
+        long matches = (Long) metrics.get("pup_crawler_matches_total");
+        boolean complete = visited == site.getPages() && matches == site.getImagePages();
+        log("Round {0}: {1} pages/s, {2} requests per page ({3} requests, {4} errors), peak heap {5} MB, "
+                + "{6} pages visited, {7} fetched, {8} matches{9}", round,
+                visited * 1000000000L / Math.max(1, nanos),
+                String.format("%.2f", site.getRequests() / (double) Math.max(1, visited)), site.getRequests(),
+                site.getErrors(), peakHeap >> 20, visited, fetched, matches, complete ? "" : " (INCOMPLETE)");
+    }
+
+    private static void log(String msg, Object... args)
+    {
+        System.out.println(MessageFormat.format(msg, args));
+    }
+}
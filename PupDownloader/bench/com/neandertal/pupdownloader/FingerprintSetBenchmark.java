@@ -0,0 +1,108 @@
+package com.neandertal.pupdownloader;
+
+import java.text.MessageFormat;
+import java.util.HashSet;
+
+/**
+ * Compares retained heap and lookup time of {@link FingerprintSet} against the <code>HashSet&lt;String&gt;</code> the
+ * crawler used before.
+ * <p>
+ * Usage: <code>FingerprintSetBenchmark [urls] [off_heap]</code>, run with a fixed heap, e.g. <code>-Xmx4g</code>.
+ *
+ * @author neandertal
+ *
+ */
+public class FingerprintSetBenchmark
+{
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args)
+    {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        boolean offHeap = args.length > 1 && Boolean.parseBoolean(args[1]);
+
+        log("URLs: {0}, off heap: {1}", count, offHeap);
+
+        long base = usedHeap();
+        HashSet<String> hashSet = new HashSet<String>();
+        for (int i = 0; i < count; i++)
+        {
+            hashSet.add(url(i));
+        }
+        long hashSetBytes = usedHeap() - base;
+        log("HashSet<String>: {0} MB heap, {1} bytes per URL", hashSetBytes >> 20, hashSetBytes / count);
+        long hashSetNanos = lookup(hashSet, null, count);
+        hashSet = null;
+
+        FingerprintSet fingerprintSet = new FingerprintSet(offHeap);
+        for (int i = 0; i < count; i++)
+        {
+            fingerprintSet.add(url(i));
+        }
+        long fingerprintBytes = fingerprintSet.tableBytes();
+        log("FingerprintSet: {0} MB {1}, {2} bytes per URL", fingerprintBytes >> 20, offHeap ? "off heap" : "heap",
+                fingerprintBytes / count);
+        long fingerprintNanos = lookup(null, fingerprintSet, count);
+
+        log("Lookup (half hits, half misses): HashSet {0} ns, FingerprintSet {1} ns", hashSetNanos, fingerprintNanos);
+    }
+
+    /** Best average time per lookup over several rounds, in nanoseconds. */
+    private static long lookup(HashSet<String> hashSet, FingerprintSet fingerprintSet, int count)
+    {
+        // the lookup URLs are created up front so only the lookups are timed; the crawler looks up freshly parsed
+        // links, so each round uses new copies without a cached hash code
+        String[] probes = new String[Math.min(count, 1000000)];
+        for (int i = 0; i < probes.length; i++)
+        {
+            probes[i] = url(i % 2 == 0 ? i : count + i);
+        }
+
+        long best = Long.MAX_VALUE;
+        int found = 0;
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            String[] copies = new String[probes.length];
+            for (int i = 0; i < probes.length; i++)
+            {
+                copies[i] = new String(probes[i]);
+            }
+
+            long start = System.nanoTime();
+            for (String probe : copies)
+            {
+                if (hashSet != null ? hashSet.contains(probe) : fingerprintSet.contains(probe))
+                {
+                    found++;
+                }
+            }
+            best = Math.min(best, (System.nanoTime() - start) / probes.length);
+        }
+
+        if (found != ROUNDS * ((probes.length + 1) / 2))
+        {
+            log("Unexpected hits: {0}", found);
+        }
+        return best;
+    }
+
+    private static String url(int i)
+    {
+        return "http://www.example.com/gallery/displayImage.php?folder=collection/" + (i / 100) + "/item_" + i;
+    }
+
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+        {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void log(String msg, Object... args)
+    {
+        System.out.println(MessageFormat.format(msg, args));
+    }
+}
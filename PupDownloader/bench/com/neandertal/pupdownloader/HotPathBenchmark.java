@@ -0,0 +1,376 @@
+package com.neandertal.pupdownloader;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+import net.coobird.thumbnailator.Thumbnails;
+
+/**
+ * Throughput and allocation of the hot paths of the crawler and the downloader, on synthetic fixtures and without
+ * network.
+ * <p>
+ * Usage: <code>HotPathBenchmark [filter=regex] [warmup=seconds] [iterations=n]</code>. Each case whose name matches
+ * the filter runs its operation in a loop for the warmup, then for the given number of one second iterations, on
+ * one thread. Reported are the operations per second (mean, min and max of the iterations) and the bytes the thread
+ * allocated per operation. Results of the operations are folded into {@link #sink} so the JIT cannot drop them.
+ *
+ * @author neandertal
+ *
+ */
+public class HotPathBenchmark
+{
+    private static final long ITERATION_NANOS = 1000000000L;
+    private static final String BASE_URL = "http://www.example.com/gallery/index.php";
+    private static final int TILE_SIZE = 256;
+    /** Tiles of the stitched image, like a mid zoom level. */
+    private static final int TILES_X = 4;
+    private static final int TILES_Y = 3;
+    private static final int LOOKUP_URLS = 100000;
+
+    static volatile long sink;
+
+    public static void main(String[] args) throws Exception
+    {
+        Pattern filter = Pattern.compile(".*");
+        int warmup = 2;
+        int iterations = 5;
+        for (String arg : args)
+        {
+            int index = arg.indexOf('=');
+            String key = index == -1 ? arg : arg.substring(0, index);
+            String value = arg.substring(index + 1);
+            if ("filter".equals(key))
+            {
+                filter = Pattern.compile(value);
+            }
+            else if ("warmup".equals(key))
+            {
+                warmup = Integer.parseInt(value);
+            }
+            else if ("iterations".equals(key))
+            {
+                iterations = Integer.parseInt(value);
+            }
+            else
+            {
+                throw new IllegalArgumentException("Unknown parameter: " + arg);
+            }
+        }
+
+        for (Case c : cases())
+        {
+            if (filter.matcher(c.name).find())
+            {
+                c.setUp();
+                measure(c, warmup, iterations);
+            }
+        }
+    }
+
+    private static List<Case> cases() throws Exception
+    {
+        final List<String> pages = LinkExtractorBenchmark.syntheticPages(50);
+        final byte[] tile = tileFixture();
+        final BufferedImage[] tiles = new BufferedImage[TILES_X * TILES_Y];
+        for (int i = 0; i < tiles.length; i++)
+        {
+            tiles[i] = ZoomifyDownloader.decodeTile(tile);
+        }
+        final BufferedImage image = stitch(tiles);
+
+        List<Case> cases = new ArrayList<Case>();
+        cases.add(new Case("crawler.link_extraction", "page")
+        {
+            private int i;
+
+            @Override
+            long run()
+            {
+                return LinkExtractor.extract(pages.get(i++ % pages.size()), BASE_URL).size();
+            }
+        });
+        cases.add(new Case("crawler.keyword_matching", "page")
+        {
+            private KeywordMatcher matcher;
+            private int i;
+
+            @Override
+            void setUp()
+            {
+                matcher = new KeywordMatcher(Arrays.asList("zoomifyImagePath", "zoomify"),
+                        Collections.<String> emptyList(), false);
+            }
+
+            @Override
+            long run()
+            {
+                return matcher.match(pages.get(i++ % pages.size())).matches() ? 1 : 0;
+            }
+        });
+        cases.add(new Case("crawler.canonicalize", "URL")
+        {
+            private UrlCanonicalizer canonicalizer;
+            private String[] urls;
+            private int i;
+
+            @Override
+            void setUp()
+            {
+                canonicalizer = new UrlCanonicalizer(KeywordMatcher.split("jsessionid|utm_*|gclid"), true,
+                        KeywordMatcher.split("index.php|index.html"), UrlCanonicalizer.SLASH_KEEP);
+                urls = new String[1024];
+                for (int n = 0; n < urls.length; n++)
+                {
+                    urls[n] = "http://www.example.com/gallery/displayImage.php?page=" + n
+                            + "&folder=collection/" + n / 10 + "&utm_source=feed#top";
+                }
+            }
+
+            @Override
+            long run()
+            {
+                return canonicalizer.canonicalize(urls[i++ & (urls.length - 1)]).length();
+            }
+        });
+        cases.add(new Case("crawler.scope_check", "URL")
+        {
+            private ScopeFilter scope;
+            private List<String> links;
+            private int i;
+
+            @Override
+            void setUp()
+            {
+                scope = new ScopeFilter("www.example.com", Arrays.asList("/gallery/", "/displayImage.php?folder=*"),
+                        null, Arrays.asList("/gallery/private/", "/*.pdf"), "[?&]sort=");
+                links = new ArrayList<String>();
+                for (String page : pages)
+                {
+                    links.addAll(LinkExtractor.extract(page, BASE_URL));
+                }
+            }
+
+            @Override
+            long run()
+            {
+                return scope.accepts(links.get(i++ % links.size())) ? 1 : 0;
+            }
+        });
+        cases.add(new Case("crawler.dedup_lookup", "lookup")
+        {
+            private FingerprintSet set;
+            private String[] probes;
+            private int i;
+
+            @Override
+            void setUp()
+            {
+                set = new FingerprintSet(false);
+                for (int n = 0; n < LOOKUP_URLS; n++)
+                {
+                    set.add(url(n));
+                }
+                // half hits, half misses; copies without a cached hash, like freshly parsed links
+                probes = new String[65536];
+                for (int n = 0; n < probes.length; n++)
+                {
+                    probes[n] = new String(url(n % 2 == 0 ? n : LOOKUP_URLS + n));
+                }
+            }
+
+            @Override
+            long run()
+            {
+                return set.contains(probes[i++ & (probes.length - 1)]) ? 1 : 0;
+            }
+        });
+        cases.add(new Case("downloader.get_hash", "URL")
+        {
+            private String[] urls;
+            private int i;
+
+            @Override
+            void setUp()
+            {
+                urls = new String[1024];
+                for (int n = 0; n < urls.length; n++)
+                {
+                    urls[n] = url(n);
+                }
+            }
+
+            @Override
+            long run() throws Exception
+            {
+                return ZoomifyDownloader.getHash(urls[i++ & (urls.length - 1)]).length();
+            }
+        });
+        cases.add(new Case("downloader.tile_decode", "tile")
+        {
+            @Override
+            long run() throws Exception
+            {
+                return ZoomifyDownloader.decodeTile(tile).getWidth();
+            }
+        });
+        cases.add(new Case("downloader.stitch", "image of " + TILES_X + "x" + TILES_Y + " tiles")
+        {
+            @Override
+            long run()
+            {
+                return stitch(tiles).getHeight();
+            }
+        });
+        cases.add(new Case("downloader.png_encode", "image")
+        {
+            @Override
+            long run() throws Exception
+            {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 20);
+                ImageIO.write(image, "png", out);
+                return out.size();
+            }
+        });
+        cases.add(new Case("downloader.thumbnail", "image")
+        {
+            @Override
+            long run() throws Exception
+            {
+                return Thumbnails.of(image).size(128, 128).asBufferedImage().getWidth();
+            }
+        });
+        return cases;
+    }
+
+    private static void measure(Case c, int warmup, int iterations) throws Exception
+    {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        long result = 0;
+        long end = System.nanoTime() + warmup * ITERATION_NANOS;
+        while (System.nanoTime() < end)
+        {
+            result += c.run();
+        }
+
+        double[] rates = new double[iterations];
+        long ops = 0;
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        for (int it = 0; it < iterations; it++)
+        {
+            long count = 0;
+            long start = System.nanoTime();
+            long now;
+            do
+            {
+                result += c.run();
+                count++;
+                now = System.nanoTime();
+            }
+            while (now - start < ITERATION_NANOS);
+            rates[it] = count * 1e9 / (now - start);
+            ops += count;
+        }
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        sink += result;
+
+        double mean = 0;
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (double rate : rates)
+        {
+            mean += rate / rates.length;
+            min = Math.min(min, rate);
+            max = Math.max(max, rate);
+        }
+        log("{0}: {1} ops/s (min {2}, max {3}), {4} bytes allocated per {5}", c.name, format(mean), format(min),
+                format(max), allocated / Math.max(1, ops), c.unit);
+    }
+
+    private static String format(double rate)
+    {
+        return rate >= 100 ? String.format("%,.0f", rate) : String.format("%.2f", rate);
+    }
+
+    private static BufferedImage stitch(BufferedImage[] tiles)
+    {
+        BufferedImage image = null;
+        for (int y = 0; y < TILES_Y; y++)
+        {
+            BufferedImage row = null;
+            for (int x = 0; x < TILES_X; x++)
+            {
+                row = ZoomifyDownloader.appendXImages(row, tiles[y * TILES_X + x]);
+            }
+            image = ZoomifyDownloader.appendYImages(image, row);
+        }
+        return image;
+    }
+
+    /** A JPEG tile with gradients and noise, so it compresses like a photograph. */
+    private static byte[] tileFixture() throws Exception
+    {
+        Random random = new Random(42);
+        BufferedImage image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < TILE_SIZE; y++)
+        {
+            for (int x = 0; x < TILE_SIZE; x++)
+            {
+                int r = (x + random.nextInt(32)) & 0xff;
+                int g = (y + random.nextInt(32)) & 0xff;
+                int b = ((x + y) / 2 + random.nextInt(32)) & 0xff;
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+
+    private static String url(int i)
+    {
+        return "http://www.example.com/gallery/displayImage.php?folder=collection/" + (i / 100) + "/item_" + i;
+    }
+
+    private static void log(String msg, Object... args)
+    {
+        System.out.println(MessageFormat.format(msg, args));
+    }
+
+    /**
+     * One operation to measure.
+     */
+    private abstract static class Case
+    {
+        private final String name;
+        private final String unit;
+
+        private Case(String name, String unit)
+        {
+            this.name = name;
+            this.unit = unit;
+        }
+
+        /** Build the fixtures of the case, not measured. */
+        void setUp() throws Exception
+        {
+        }
+
+        /**
+         * @return a value derived from the result
+         */
+        abstract long run() throws Exception;
+    }
+}
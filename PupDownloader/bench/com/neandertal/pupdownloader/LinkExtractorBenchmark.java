@@ -0,0 +1,163 @@
+package com.neandertal.pupdownloader;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+/**
+ * Compares {@link LinkExtractor} with Jsoup parsing plus <code>select("a[href]")</code> and <code>absUrl</code> on a
+ * corpus of saved pages.
+ * <p>
+ * Usage: <code>LinkExtractorBenchmark [corpus_folder] [base_url]</code>. Every file in the folder is read as a UTF-8
+ * page; without a folder, synthetic pages are generated. Reports pages per second and bytes allocated per page on one
+ * core, and how many pages yield different links.
+ *
+ * @author neandertal
+ *
+ */
+public class LinkExtractorBenchmark
+{
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) throws Exception
+    {
+        String base = args.length > 1 ? args[1] : "http://www.example.com/gallery/index.php";
+        List<String> pages = args.length > 0 ? readCorpus(new File(args[0])) : syntheticPages(200);
+        long bytes = 0;
+        for (String page : pages)
+        {
+            bytes += page.length();
+        }
+        log("Pages: {0}, average {1} chars", pages.size(), bytes / Math.max(1, pages.size()));
+
+        int different = 0;
+        for (String page : pages)
+        {
+            List<String> streamed = LinkExtractor.extract(page, base);
+            if (streamed != null && !streamed.equals(jsoup(page, base)))
+            {
+                different++;
+            }
+        }
+        log("Pages with different links: {0}", different);
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++)
+        {
+            run(pages, base, true);
+            run(pages, base, false);
+        }
+        report("Jsoup", pages, base, true);
+        report("LinkExtractor", pages, base, false);
+    }
+
+    private static void report(String name, List<String> pages, String base, boolean jsoup)
+    {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long links = 0;
+        for (int i = 0; i < ROUNDS; i++)
+        {
+            links += run(pages, base, jsoup);
+        }
+        long nanos = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+
+        long count = (long) ROUNDS * pages.size();
+        log("{0}: {1} pages/s, {2} bytes allocated per page, {3} links per page", name,
+                count * 1000000000L / Math.max(1, nanos), allocated / count, links / count);
+    }
+
+    private static long run(List<String> pages, String base, boolean jsoup)
+    {
+        long links = 0;
+        for (String page : pages)
+        {
+            List<String> found = jsoup ? jsoup(page, base) : LinkExtractor.extract(page, base);
+            links += found == null ? 0 : found.size();
+        }
+        return links;
+    }
+
+    private static List<String> jsoup(String html, String base)
+    {
+        Document doc = Jsoup.parse(html, base);
+        List<String> links = new ArrayList<String>();
+        for (Element link : doc.select("a[href]"))
+        {
+            String url = link.absUrl("href");
+            if (!url.isEmpty())
+            {
+                links.add(url);
+            }
+        }
+        return links;
+    }
+
+    private static List<String> readCorpus(File folder) throws Exception
+    {
+        List<String> pages = new ArrayList<String>();
+        File[] files = folder.listFiles();
+        if (files == null) { throw new IllegalArgumentException("Not a folder: " + folder); }
+
+        for (File file : files)
+        {
+            if (file.isFile())
+            {
+                pages.add(new String(Files.readAllBytes(file.toPath()), "UTF-8"));
+            }
+        }
+        return pages;
+    }
+
+    /** Pages shaped like gallery listings: navigation, scripts, a table of thumbnails and text. */
+    static List<String> syntheticPages(int count)
+    {
+        Random random = new Random(42);
+        List<String> pages = new ArrayList<String>(count);
+        for (int p = 0; p < count; p++)
+        {
+            StringBuilder sb = new StringBuilder(32 * 1024);
+            sb.append("<!DOCTYPE html>\n<html><head><title>Gallery page ").append(p).append("</title>");
+            sb.append("<meta charset=\"utf-8\"><link rel=\"stylesheet\" href=\"/css/site.css\">");
+            sb.append("<script type=\"text/javascript\">var links = '<a href=\"/not-a-link\">'; if (a < b) {}</script>");
+            sb.append("<style>a > b { color: red; }</style></head><body>\n<div id=\"menu\"><ul>");
+            for (int i = 0; i < 20; i++)
+            {
+                sb.append("<li class=\"item\"><a href=\"/section").append(i).append("/index.php\">Section ")
+                        .append(i).append("</a></li>\n");
+            }
+            sb.append("</ul></div><!-- content <a href=\"/commented\"> --><table class=\"thumbs\">");
+            for (int i = 0; i < 40; i++)
+            {
+                int folder = random.nextInt(100000);
+                sb.append("<tr><td><a href='displayImage.php?folder=collection/").append(folder)
+                        .append("&amp;page=").append(i).append("' title=\"Image ").append(folder).append("\">")
+                        .append("<img src=\"thumbs/").append(folder).append(".jpg\" alt=\"\" width=128></a></td>")
+                        .append("<td>Lorem ipsum dolor sit amet, consectetur adipiscing elit &copy; ")
+                        .append(folder).append(" sed do eiusmod tempor.</td></tr>\n");
+            }
+            sb.append("</table><p>Pages: <a href=?page=").append(p + 1).append(">next</a> ");
+            sb.append("<a href=\"#top\">top</a> <a href=\"http://other.org/x\">elsewhere</a></p></body></html>");
+            pages.add(sb.toString());
+        }
+        return pages;
+    }
+
+    private static void log(String msg, Object... args)
+    {
+        System.out.println(MessageFormat.format(msg, args));
+    }
+}
@@ -0,0 +1,503 @@
+package com.neandertal.pupdownloader;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP server generating a site to crawl, the same on every run.
+ * <p>
+ * Pages form a tree: page <code>n</code> links to its <code>fanout</code> children, plus random cross links to other
+ * pages that the crawler has to recognize as known. A share of the links are written as variants of the page URL
+ * (tracking or session parameters, fragments, an index page) that canonicalization must fold. A share of the pages
+ * are image pages at <code>/displayImage.php?folder=gallery/imgN</code> containing the keyword, with their
+ * <code>ImageProperties.xml</code> and the tiles of a Zoomify pyramid behind them. Every response can be delayed and
+ * fail with 503 at a given rate. Requests are counted by kind.
+ * <p>
+ * Usage: <code>SyntheticSite [key=value ...]</code> serves the site until killed; the keys are listed in
+ * {@link #KEYS}.
+ *
+ * @author neandertal
+ *
+ */
+public class SyntheticSite
+{
+    public static final String KEY_PORT = "port";
+    public static final String KEY_PAGES = "pages";
+    public static final String KEY_FANOUT = "fanout";
+    public static final String KEY_DEPTH = "depth";
+    public static final String KEY_CROSS_LINKS = "cross_links";
+    public static final String KEY_DUPLICATES = "duplicates";
+    public static final String KEY_KEYWORD_DENSITY = "keyword_density";
+    public static final String KEY_PAGE_SIZE = "page_size";
+    public static final String KEY_IMAGE_SIZE = "image_size";
+    public static final String KEY_LATENCY = "latency";
+    public static final String KEY_ERROR_RATE = "error_rate";
+
+    public static final List<String> KEYS = Arrays.asList(KEY_PORT, KEY_PAGES, KEY_FANOUT, KEY_DEPTH, KEY_CROSS_LINKS,
+            KEY_DUPLICATES, KEY_KEYWORD_DENSITY, KEY_PAGE_SIZE, KEY_IMAGE_SIZE, KEY_LATENCY, KEY_ERROR_RATE);
+
+    /** Written into every image page. */
+    public static final String KEYWORD = "zoomifyImagePath";
+
+    private static final int TILE_SIZE = 256;
+    private static final String FILLER = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod "
+            + "tempor incididunt ut labore et dolore magna aliqua. ";
+    private static final String[] VARIANTS = { "?utm_source=bench", "#top", ";jsessionid=0A1B2C", "?sessionid=42" };
+
+    private static final Pattern PAGE = Pattern.compile("/page/(\\d+)\\.html");
+    private static final Pattern FOLDER = Pattern.compile("(?:^|&)folder=gallery/img(\\d+)/?(?:&|$)");
+    private static final Pattern PROPERTIES = Pattern.compile("/gallery/img(\\d+)/ImageProperties\\.xml");
+    private static final Pattern TILE = Pattern.compile("/gallery/img(\\d+)/TileGroup(\\d+)/(\\d+)-(\\d+)-(\\d+)\\.jpg");
+
+    private final int port;
+    private final int pages;
+    private final int fanout;
+    private final int crossLinks;
+    private final double duplicates;
+    private final double keywordDensity;
+    private final int pageSize;
+    private final int imageWidth;
+    private final int imageHeight;
+    private final int latency;
+    private final double errorRate;
+    /** Width and height in tiles of each zoom level, the smallest first. */
+    private final int[][] levels;
+    private final boolean[] imagePages;
+    private final int imageCount;
+    private final Map<String, byte[]> tiles = new ConcurrentHashMap<String, byte[]>();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong pageRequests = new AtomicLong();
+    private final AtomicLong tileRequests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    public SyntheticSite(Map<String, String> parameters)
+    {
+        Map<String, String> p = new HashMap<String, String>();
+        p.put(KEY_PORT, "0");
+        p.put(KEY_PAGES, "10000");
+        p.put(KEY_FANOUT, "10");
+        p.put(KEY_DEPTH, "0");
+        p.put(KEY_CROSS_LINKS, "5");
+        p.put(KEY_DUPLICATES, "0.2");
+        p.put(KEY_KEYWORD_DENSITY, "0.1");
+        p.put(KEY_PAGE_SIZE, "4096");
+        p.put(KEY_IMAGE_SIZE, "1000x700");
+        p.put(KEY_LATENCY, "0");
+        p.put(KEY_ERROR_RATE, "0");
+        p.putAll(parameters);
+
+        int fanout = Integer.parseInt(p.get(KEY_FANOUT));
+        if (fanout < 1) { throw new IllegalArgumentException("Invalid parameter: " + KEY_FANOUT); }
+
+        int pages = Integer.parseInt(p.get(KEY_PAGES));
+        int depth = Integer.parseInt(p.get(KEY_DEPTH));
+        if (depth > 0)
+        {
+            // pages of a full tree of that depth
+            long full = 1;
+            long level = 1;
+            for (int d = 1; d <= depth && full < pages; d++)
+            {
+                level *= fanout;
+                full += level;
+            }
+            pages = (int) Math.min(pages, full);
+        }
+        if (pages < 1) { throw new IllegalArgumentException("Invalid parameter: " + KEY_PAGES); }
+
+        this.pages = pages;
+        this.fanout = fanout;
+        this.crossLinks = Integer.parseInt(p.get(KEY_CROSS_LINKS));
+        this.duplicates = Double.parseDouble(p.get(KEY_DUPLICATES));
+        this.keywordDensity = Double.parseDouble(p.get(KEY_KEYWORD_DENSITY));
+        this.pageSize = Integer.parseInt(p.get(KEY_PAGE_SIZE));
+        this.latency = Integer.parseInt(p.get(KEY_LATENCY));
+        this.errorRate = Double.parseDouble(p.get(KEY_ERROR_RATE));
+
+        String[] size = p.get(KEY_IMAGE_SIZE).split("x");
+        if (size.length != 2) { throw new IllegalArgumentException("Invalid parameter: " + KEY_IMAGE_SIZE); }
+        this.imageWidth = Integer.parseInt(size[0]);
+        this.imageHeight = Integer.parseInt(size[1]);
+        this.levels = levels(imageWidth, imageHeight);
+
+        int images = 0;
+        imagePages = new boolean[pages];
+        for (int n = 1; n < pages; n++)
+        {
+            imagePages[n] = new Random(n * 0x9E3779B97F4A7C15L).nextDouble() < keywordDensity;
+            images += imagePages[n] ? 1 : 0;
+        }
+        this.imageCount = images;
+
+        this.port = Integer.parseInt(p.get(KEY_PORT));
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Map<String, String> parameters = new HashMap<String, String>();
+        for (String arg : args)
+        {
+            int index = arg.indexOf('=');
+            if (index == -1 || !KEYS.contains(arg.substring(0, index))) { throw new IllegalArgumentException("Unknown parameter: " + arg); }
+
+            parameters.put(arg.substring(0, index), arg.substring(index + 1));
+        }
+
+        SyntheticSite site = new SyntheticSite(parameters);
+        site.start();
+        log("Serving {0} pages, {1} image pages at {2}", site.getPages(), site.getImagePages(), site.getURL());
+    }
+
+    public void start() throws IOException
+    {
+        // headers and body are written separately, with Nagle each response waits for a delayed ACK
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        server.createContext("/", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                try
+                {
+                    serve(exchange);
+                }
+                finally
+                {
+                    exchange.close();
+                }
+            }
+        });
+        // handlers sleep for the latency, so each request gets its own thread
+        executor = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "synthetic-site");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public void stop()
+    {
+        if (server != null)
+        {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    /**
+     * @return URL of the start page
+     */
+    public String getURL()
+    {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    public int getPages()
+    {
+        return pages;
+    }
+
+    /**
+     * @return pages containing the keyword, all of them with an image
+     */
+    public int getImagePages()
+    {
+        return imageCount;
+    }
+
+    /**
+     * @return tiles of one image, over all zoom levels
+     */
+    public int getTilesPerImage()
+    {
+        int count = 0;
+        for (int[] level : levels)
+        {
+            count += level[0] * level[1];
+        }
+        return count;
+    }
+
+    public long getRequests()
+    {
+        return requests.get();
+    }
+
+    public long getPageRequests()
+    {
+        return pageRequests.get();
+    }
+
+    public long getTileRequests()
+    {
+        return tileRequests.get();
+    }
+
+    public long getErrors()
+    {
+        return errors.get();
+    }
+
+    public void resetCounters()
+    {
+        requests.set(0);
+        pageRequests.set(0);
+        tileRequests.set(0);
+        errors.set(0);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException
+    {
+        requests.incrementAndGet();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (latency > 0)
+        {
+            try
+            {
+                Thread.sleep(random.nextInt(2 * latency + 1));
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+        if (errorRate > 0 && random.nextDouble() < errorRate)
+        {
+            errors.incrementAndGet();
+            send(exchange, 503, "text/plain", "busy".getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+
+        String path = exchange.getRequestURI().getRawPath();
+        String query = exchange.getRequestURI().getRawQuery();
+        Matcher m;
+        int n = -1;
+        if ("/".equals(path) || "/index.html".equals(path))
+        {
+            n = 0;
+        }
+        else if ((m = PAGE.matcher(path)).matches())
+        {
+            n = parse(m.group(1));
+            n = n < pages && !imagePages[n] ? n : -1;
+        }
+        else if ("/displayImage.php".equals(path) && query != null && (m = FOLDER.matcher(query)).find())
+        {
+            n = image(m.group(1));
+        }
+        if (n >= 0)
+        {
+            pageRequests.incrementAndGet();
+            send(exchange, 200, "text/html; charset=UTF-8", page(n).getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
+        if ((m = PROPERTIES.matcher(path)).matches() && image(m.group(1)) >= 0)
+        {
+            String xml = MessageFormat.format(
+                    "<IMAGE_PROPERTIES WIDTH=\"{0}\" HEIGHT=\"{1}\" NUMTILES=\"{2}\" NUMIMAGES=\"1\" VERSION=\"1.8\" "
+                            + "TILESIZE=\"{3}\" />",
+                    String.valueOf(imageWidth), String.valueOf(imageHeight), String.valueOf(getTilesPerImage()),
+                    String.valueOf(TILE_SIZE));
+            send(exchange, 200, "text/xml", xml.getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
+        if ((m = TILE.matcher(path)).matches() && image(m.group(1)) >= 0)
+        {
+            byte[] tile = tile(parse(m.group(2)), parse(m.group(3)), parse(m.group(4)), parse(m.group(5)));
+            if (tile != null)
+            {
+                tileRequests.incrementAndGet();
+                send(exchange, 200, "image/jpeg", tile);
+                return;
+            }
+        }
+
+        send(exchange, 404, "text/plain", "not found".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException
+    {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        if ("HEAD".equals(exchange.getRequestMethod()))
+        {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private String page(int n)
+    {
+        Random random = new Random(n * 31L + 7);
+        StringBuilder sb = new StringBuilder(pageSize + 1024);
+        sb.append("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>Page ").append(n).append("</title>");
+        if (imagePages[n])
+        {
+            sb.append("<script type=\"text/javascript\">var ").append(KEYWORD).append(" = \"gallery/img").append(n)
+                    .append("/\";</script>");
+        }
+        sb.append("</head><body>\n<ul>\n");
+        for (long child = (long) n * fanout + 1; child <= (long) n * fanout + fanout && child < pages; child++)
+        {
+            link(sb, (int) child, random);
+        }
+        for (int i = 0; i < crossLinks; i++)
+        {
+            link(sb, random.nextInt(pages), random);
+        }
+        sb.append("</ul>\n<p>");
+        while (sb.length() < pageSize)
+        {
+            sb.append(FILLER);
+        }
+        sb.append("</p></body></html>\n");
+        return sb.toString();
+    }
+
+    private void link(StringBuilder sb, int n, Random random)
+    {
+        String url = n == 0 ? "/" : imagePages[n] ? "/displayImage.php?folder=gallery/img" + n : "/page/" + n + ".html";
+        if (random.nextDouble() < duplicates)
+        {
+            String variant = n == 0 ? "index.html" : VARIANTS[random.nextInt(VARIANTS.length)];
+            if (url.indexOf('?') != -1)
+            {
+                // path parameters only on paths
+                variant = variant.startsWith("?") ? "&" + variant.substring(1) : variant.startsWith(";") ? "#top" : variant;
+            }
+            url += variant;
+        }
+        sb.append("<li><a href=\"").append(url.replace("&", "&amp;")).append("\">Page ").append(n)
+                .append("</a></li>\n");
+    }
+
+    /**
+     * @return the JPEG of the tile, or null if the pyramid has no such tile
+     */
+    private byte[] tile(int group, int z, int x, int y) throws IOException
+    {
+        if (z >= levels.length || x >= levels[z][0] || y >= levels[z][1]) { return null; }
+
+        int index = 0;
+        for (int level = 0; level < z; level++)
+        {
+            index += levels[level][0] * levels[level][1];
+        }
+        index += y * levels[z][0] + x;
+        if (index / 256 != group) { return null; }
+
+        // edge tiles are cut to the image at that level
+        int scale = 1 << (levels.length - 1 - z);
+        int levelWidth = (imageWidth + scale - 1) / scale;
+        int levelHeight = (imageHeight + scale - 1) / scale;
+        int width = Math.min(TILE_SIZE, levelWidth - x * TILE_SIZE);
+        int height = Math.min(TILE_SIZE, levelHeight - y * TILE_SIZE);
+        String key = width + "x" + height;
+        byte[] tile = tiles.get(key);
+        if (tile == null)
+        {
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = image.createGraphics();
+            g.setColor(new Color(0x6a8caf));
+            g.fillRect(0, 0, width, height);
+            g.setColor(Color.WHITE);
+            g.drawLine(0, 0, width - 1, height - 1);
+            g.dispose();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(image, "jpg", out);
+            tile = out.toByteArray();
+            tiles.put(key, tile);
+        }
+        return tile;
+    }
+
+    /** Zoom levels of a Zoomify pyramid: halve the image until it fits one tile. */
+    private static int[][] levels(int width, int height)
+    {
+        int count = 1;
+        for (int w = width, h = height; w > TILE_SIZE || h > TILE_SIZE; w = (w + 1) / 2, h = (h + 1) / 2)
+        {
+            count++;
+        }
+
+        int[][] levels = new int[count][];
+        int w = width;
+        int h = height;
+        for (int z = count - 1; z >= 0; z--)
+        {
+            levels[z] = new int[] { (w + TILE_SIZE - 1) / TILE_SIZE, (h + TILE_SIZE - 1) / TILE_SIZE };
+            w = (w + 1) / 2;
+            h = (h + 1) / 2;
+        }
+        return levels;
+    }
+
+    private int image(String number)
+    {
+        int n = parse(number);
+        return n > 0 && n < pages && imagePages[n] ? n : -1;
+    }
+
+    private static int parse(String number)
+    {
+        try
+        {
+            return Integer.parseInt(number);
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    private static void log(String msg, Object... args)
+    {
+        System.out.println(MessageFormat.format(msg, args));
+    }
+}
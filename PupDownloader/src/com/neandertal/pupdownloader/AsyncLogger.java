@@ -0,0 +1,323 @@
+package com.neandertal.pupdownloader;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logger shared by the tools that formats and writes messages on a background thread.
+ * <p>
+ * Messages below the level are dropped before anything is allocated, the non-varargs {@link #debug} overloads make
+ * disabled debug calls free. Enabled messages go with their unformatted arguments into a bounded ring buffer; the
+ * writer thread takes them in batches, formats them with {@link MessageFormat} and writes each batch to the console
+ * and the log file at once. When the buffer is full, debug messages are dropped and counted, other messages wait.
+ * Thread safe.
+ *
+ * @author neandertal
+ *
+ */
+public class AsyncLogger
+{
+    public enum Level
+    {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final int DEFAULT_CAPACITY = 8192;
+    private static final int BATCH_SIZE = 512;
+    private static final Object[] NO_ARGS = new Object[0];
+    /** Tells the writer thread to stop. */
+    private static final Entry STOP = new Entry(Level.ERROR, null, NO_ARGS, null);
+
+    private final ArrayBlockingQueue<Entry> buffer;
+    private final PrintStream console;
+    private final Thread writerThread;
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile Level level = Level.INFO;
+    private volatile BufferedWriter file;
+    private volatile boolean closed = false;
+
+    public AsyncLogger()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of messages the buffer holds
+     */
+    public AsyncLogger(int capacity)
+    {
+        this.buffer = new ArrayBlockingQueue<Entry>(capacity);
+        this.console = System.out;
+        this.writerThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                drain();
+            }
+        }, "logger");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Parse a level name like <code>debug</code>.
+     */
+    public static Level parseLevel(String name)
+    {
+        return Level.valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+
+    public void setLevel(Level level)
+    {
+        this.level = level;
+    }
+
+    public Level getLevel()
+    {
+        return level;
+    }
+
+    /**
+     * Also write messages to this file; it is closed by {@link #close()}.
+     */
+    public void setFile(BufferedWriter file)
+    {
+        this.file = file;
+    }
+
+    public boolean isEnabled(Level l)
+    {
+        return l.compareTo(level) >= 0;
+    }
+
+    public void debug(String msg)
+    {
+        if (isEnabled(Level.DEBUG))
+        {
+            enqueue(new Entry(Level.DEBUG, msg, NO_ARGS, null));
+        }
+    }
+
+    public void debug(String msg, Object arg)
+    {
+        if (isEnabled(Level.DEBUG))
+        {
+            enqueue(new Entry(Level.DEBUG, msg, new Object[] { arg }, null));
+        }
+    }
+
+    public void debug(String msg, Object arg1, Object arg2)
+    {
+        if (isEnabled(Level.DEBUG))
+        {
+            enqueue(new Entry(Level.DEBUG, msg, new Object[] { arg1, arg2 }, null));
+        }
+    }
+
+    public void info(String msg, Object... args)
+    {
+        log(Level.INFO, msg, args);
+    }
+
+    public void warn(String msg, Object... args)
+    {
+        log(Level.WARN, msg, args);
+    }
+
+    public void error(Throwable t)
+    {
+        if (isEnabled(Level.ERROR))
+        {
+            enqueue(new Entry(Level.ERROR, null, NO_ARGS, t));
+        }
+    }
+
+    public void log(Level l, String msg, Object... args)
+    {
+        if (isEnabled(l))
+        {
+            enqueue(new Entry(l, msg, args, null));
+        }
+    }
+
+    /**
+     * Write the buffered messages, stop the writer thread and close the file. Messages logged later are written
+     * directly.
+     */
+    public void close()
+    {
+        if (closed) { return; }
+
+        try
+        {
+            buffer.put(STOP);
+            writerThread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        closed = true;
+
+        // logged while stopping
+        writeRest();
+
+        long count = dropped.get();
+        if (count > 0)
+        {
+            write(MessageFormat.format("Dropped {0} debug messages, the log buffer was full.", count)
+                    + System.lineSeparator());
+        }
+
+        BufferedWriter f = file;
+        file = null;
+        if (f != null)
+        {
+            try
+            {
+                f.close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void enqueue(Entry entry)
+    {
+        if (closed)
+        {
+            write(entry.format() + System.lineSeparator());
+            return;
+        }
+
+        if (!buffer.offer(entry))
+        {
+            if (entry.level == Level.DEBUG)
+            {
+                dropped.incrementAndGet();
+                return;
+            }
+
+            try
+            {
+                buffer.put(entry);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        if (closed)
+        {
+            // queued after close() took the rest
+            writeRest();
+        }
+    }
+
+    /** Write what is left in the buffer once the writer thread has stopped. */
+    private void writeRest()
+    {
+        List<Entry> rest = new ArrayList<Entry>();
+        buffer.drainTo(rest);
+        for (Entry entry : rest)
+        {
+            if (entry != STOP)
+            {
+                write(entry.format() + System.lineSeparator());
+            }
+        }
+    }
+
+    /** Writer thread: format and write batches until stopped. */
+    private void drain()
+    {
+        List<Entry> batch = new ArrayList<Entry>(BATCH_SIZE);
+        StringBuilder sb = new StringBuilder(BATCH_SIZE * 64);
+        while (true)
+        {
+            try
+            {
+                batch.add(buffer.take());
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            buffer.drainTo(batch, BATCH_SIZE - 1);
+
+            boolean stop = false;
+            for (Entry entry : batch)
+            {
+                if (entry == STOP)
+                {
+                    // entries logged after it while closing are written too
+                    stop = true;
+                    continue;
+                }
+                sb.append(entry.format()).append(System.lineSeparator());
+            }
+            batch.clear();
+
+            write(sb);
+            sb.setLength(0);
+            if (stop) { return; }
+        }
+    }
+
+    private synchronized void write(CharSequence text)
+    {
+        if (text.length() == 0) { return; }
+
+        console.print(text);
+        console.flush();
+        BufferedWriter f = file;
+        if (f != null)
+        {
+            try
+            {
+                f.append(text);
+                f.flush();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static class Entry
+    {
+        protected final Level level;
+        protected final String msg;
+        protected final Object[] args;
+        protected final Throwable t;
+
+        protected Entry(Level level, String msg, Object[] args, Throwable t)
+        {
+            this.level = level;
+            this.msg = msg;
+            this.args = args;
+            this.t = t;
+        }
+
+        protected String format()
+        {
+            if (t != null) { return MessageFormat.format("Error: {0} - {1}", t.getClass().getName(), t.getMessage()); }
+
+            return MessageFormat.format(msg, args);
+        }
+    }
+}
@@ -0,0 +1,902 @@
+package com.neandertal.pupdownloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * One node of a crawl spread over several processes, each crawling the URLs it owns.
+ * <p>
+ * A URL is owned by node <code>fingerprint mod nodes</code>, so every node keeps the visited, matching and frontier
+ * state of its own URLs only. Links owned by another node are routed to it: they are buffered per node and sent by a
+ * thread per node in batches, when a batch is full or after the flush interval. Each batch carries a sequence number
+ * and is acknowledged after the owner put its links into its frontier; a batch sent again after a broken connection
+ * is acknowledged but not counted twice. A small table of recently routed URLs keeps links found on many pages from
+ * being sent again and again.
+ * <p>
+ * Node 0 is the coordinator: it waits for all nodes to answer before the crawl starts, and detects the end of the
+ * crawl with the four counter method. In waves it asks every node whether it is idle (nothing to visit, nothing in
+ * progress, no link waiting to be acknowledged) and how many links it sent and received. The crawl is over when two
+ * waves in a row find all nodes idle with the same totals and as many links received as sent; a link still on the
+ * wire shows up as a difference. The coordinator then tells all nodes to finish. A node that quits or reaches its time
+ * limit tells all nodes to stop. All connections are plain TCP, one for links and one for control per pair of nodes.
+ * <p>
+ * Every process draws a random epoch and both ends of a connection exchange theirs. When a node is restarted, the
+ * others see a new epoch: they expect its batch numbers to start again, and drop their counts of links sent to and
+ * received from it, as its own counts start from zero. Thread safe.
+ *
+ * @author neandertal
+ *
+ */
+public class ClusterNode
+{
+    private static final int MAGIC = 0x50555043;
+    private static final byte LINKS = 1;
+    private static final byte STATUS = 2;
+    private static final byte FINISH = 3;
+    private static final byte STOP = 4;
+    private static final byte ACK = 5;
+
+    private static final int RUNNING = 0;
+    private static final int FINISHED = 1;
+    private static final int STOPPED = 2;
+
+    /** Links buffered for a node before {@link #route} blocks. */
+    private static final int MAX_PENDING = 100000;
+    private static final int RECENT_SIZE = 1 << 16;
+    private static final long WAVE_INTERVAL = 500;
+    private static final long RETRY_DELAY = 1000;
+
+    private final List<InetSocketAddress> nodes;
+    private final int self;
+    private final Crawler crawler;
+    private final AsyncLogger logger;
+    private final int batchSize;
+    private final long flushInterval;
+    private final int timeout;
+    private final Peer[] peers;
+    /** Random id of this process. */
+    private final long epoch = ThreadLocalRandom.current().nextLong() | 1;
+    /** Last batch received from each node; guards {@link #epochs} too. */
+    private final long[] lastBatch;
+    /** Epoch of the process of each node, 0 until it connected. */
+    private final long[] epochs;
+    private final AtomicLongArray recent = new AtomicLongArray(RECENT_SIZE);
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    /** Links sent to and received from the current process of each node, for the termination waves. */
+    private final AtomicLongArray sentTo;
+    private final AtomicLongArray receivedFrom;
+    /** Routed links not acknowledged yet. */
+    private final AtomicLong pending = new AtomicLong();
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private final List<Socket> accepted = Collections.synchronizedList(new ArrayList<Socket>());
+    private ServerSocket server;
+    private volatile int state = RUNNING;
+    private volatile boolean closed = false;
+
+    /**
+     * @param nodes addresses of all nodes, the same list and order on every node
+     * @param self index of this node in the list
+     * @param batchSize links per batch
+     * @param flushInterval milliseconds a link waits for its batch to fill
+     * @param timeout milliseconds to wait for a node to answer or, at the start, to come up
+     */
+    public ClusterNode(List<InetSocketAddress> nodes, int self, Crawler crawler, AsyncLogger logger, int batchSize,
+            long flushInterval, int timeout)
+    {
+        this.nodes = nodes;
+        this.self = self;
+        this.crawler = crawler;
+        this.logger = logger;
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        this.timeout = timeout;
+        this.peers = new Peer[nodes.size()];
+        this.lastBatch = new long[nodes.size()];
+        this.epochs = new long[nodes.size()];
+        this.sentTo = new AtomicLongArray(nodes.size());
+        this.receivedFrom = new AtomicLongArray(nodes.size());
+        for (int i = 0; i < nodes.size(); i++)
+        {
+            if (i != self)
+            {
+                peers[i] = new Peer(i);
+            }
+        }
+    }
+
+    /**
+     * @return index of the node owning the URL
+     */
+    public static int ownerOf(String url, int nodes)
+    {
+        return (int) Long.remainderUnsigned(FingerprintSet.fingerprint(url), nodes);
+    }
+
+    public boolean owns(String url)
+    {
+        return ownerOf(url, nodes.size()) == self;
+    }
+
+    public boolean isCoordinator()
+    {
+        return self == 0;
+    }
+
+    /**
+     * Listen for the other nodes and start the sender threads.
+     */
+    public void start() throws IOException
+    {
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(nodes.get(self));
+        startThread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                accept();
+            }
+        }, "cluster-accept");
+
+        for (final Peer peer : peers)
+        {
+            if (peer != null)
+            {
+                startThread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        send(peer);
+                    }
+                }, "cluster-send-" + peer.id);
+            }
+        }
+    }
+
+    /**
+     * Wait until every other node answers, before the coordinator seeds the crawl.
+     *
+     * @throws IOException if a node did not come up in time
+     */
+    public void awaitNodes() throws IOException, InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        for (Peer peer : peers)
+        {
+            while (peer != null)
+            {
+                try
+                {
+                    peer.status();
+                    break;
+                }
+                catch (IOException e)
+                {
+                    if (System.currentTimeMillis() > deadline) { throw new IOException("Node " + peer.id + " at " + nodes.get(peer.id) + " did not answer: " + e.getMessage()); }
+
+                    Thread.sleep(RETRY_DELAY);
+                }
+            }
+        }
+        logger.info("All {0} nodes are up.", nodes.size());
+    }
+
+    /**
+     * Detect the end of the crawl in a thread; only on the coordinator.
+     */
+    public void startTerminationDetection()
+    {
+        startThread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                detectTermination();
+            }
+        }, "cluster-coordinator");
+    }
+
+    /**
+     * Queue the link for its owner, waiting while too many links are queued for it. Must not be called holding a lock
+     * that {@link Crawler} needs: the links of that owner are only acknowledged once they are received here, so two
+     * nodes could wait for each other.
+     */
+    public void route(String url, int depth, String parentPattern) throws InterruptedException
+    {
+        long fp = FingerprintSet.fingerprint(url);
+        int slot = (int) fp & (RECENT_SIZE - 1);
+        if (recent.get(slot) == fp) { return; }
+        recent.set(slot, fp);
+
+        Peer peer = peers[(int) Long.remainderUnsigned(fp, nodes.size())];
+        synchronized (peer)
+        {
+            while (peer.buffer.size() >= MAX_PENDING && !closed)
+            {
+                peer.wait(RETRY_DELAY);
+            }
+            peer.buffer.add(new Link(url, depth, parentPattern));
+            pending.incrementAndGet();
+            // wakes the sender to start a batch, or to send a full one early
+            if (peer.buffer.size() == 1 || peer.buffer.size() >= batchSize)
+            {
+                peer.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return true once the coordinator found the crawl over
+     */
+    public boolean isFinished()
+    {
+        return state == FINISHED;
+    }
+
+    /**
+     * @return true if a node quit before the end of the crawl
+     */
+    public boolean isStopped()
+    {
+        return state == STOPPED;
+    }
+
+    /**
+     * Stop this node and tell the others to stop, when quitting before the end of the crawl.
+     */
+    public void stopAll()
+    {
+        if (state != RUNNING) { return; }
+
+        state = STOPPED;
+        broadcast(STOP);
+    }
+
+    public long getSent()
+    {
+        return sent.get();
+    }
+
+    public long getReceived()
+    {
+        return received.get();
+    }
+
+    public long getPending()
+    {
+        return pending.get();
+    }
+
+    /**
+     * Stop the threads and close the connections.
+     *
+     * @return links routed but not acknowledged, to be kept for a later run
+     */
+    public List<Link> close() throws InterruptedException
+    {
+        closed = true;
+        try
+        {
+            if (server != null)
+            {
+                server.close();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error(e);
+        }
+        synchronized (accepted)
+        {
+            for (Socket socket : accepted)
+            {
+                closeQuietly(socket);
+            }
+        }
+
+        for (Peer peer : peers)
+        {
+            if (peer != null)
+            {
+                synchronized (peer)
+                {
+                    peer.notifyAll();
+                }
+                // wakes a sender waiting for an acknowledgement
+                Socket socket = peer.linkSocket;
+                if (socket != null)
+                {
+                    closeQuietly(socket);
+                }
+                peer.closeControl();
+            }
+        }
+        List<Thread> running;
+        synchronized (threads)
+        {
+            running = new ArrayList<Thread>(threads);
+        }
+        for (Thread thread : running)
+        {
+            thread.interrupt();
+            thread.join(timeout);
+        }
+
+        List<Link> unsent = new ArrayList<Link>();
+        for (Peer peer : peers)
+        {
+            if (peer != null)
+            {
+                synchronized (peer)
+                {
+                    unsent.addAll(peer.inFlight);
+                    unsent.addAll(peer.buffer);
+                    peer.inFlight.clear();
+                    peer.buffer.clear();
+                }
+            }
+        }
+        return unsent;
+    }
+
+    private void startThread(Runnable runnable, String name)
+    {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        synchronized (threads)
+        {
+            threads.add(thread);
+        }
+        thread.start();
+    }
+
+    private boolean isIdle()
+    {
+        return pending.get() == 0 && crawler.isIdle();
+    }
+
+    private void detectTermination()
+    {
+        long[] previous = null;
+        while (state == RUNNING && !closed)
+        {
+            try
+            {
+                Thread.sleep(WAVE_INTERVAL);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+
+            // idle flag, sent and received of all nodes
+            long[] wave = { isIdle() ? 1 : 0, total(sentTo), total(receivedFrom) };
+            try
+            {
+                for (Peer peer : peers)
+                {
+                    if (peer != null)
+                    {
+                        long[] status = peer.status();
+                        wave[0] &= status[0];
+                        wave[1] += status[1];
+                        wave[2] += status[2];
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                logger.warn("Termination wave failed: {0}", e.getMessage());
+                previous = null;
+                continue;
+            }
+
+            logger.debug("Termination wave: {0}", (wave[0] == 1 ? "idle, " : "busy, ") + wave[1] + " links sent, "
+                    + wave[2] + " received");
+            if (previous != null && previous[0] == 1 && wave[0] == 1 && previous[1] == previous[2]
+                    && wave[1] == previous[1] && wave[2] == previous[2])
+            {
+                logger.info("All nodes idle, {0} links routed. Finishing the crawl.", wave[1]);
+                if (state == RUNNING)
+                {
+                    state = FINISHED;
+                    broadcast(FINISH);
+                }
+                return;
+            }
+            previous = wave;
+        }
+    }
+
+    private void broadcast(byte message)
+    {
+        for (Peer peer : peers)
+        {
+            if (peer != null)
+            {
+                try
+                {
+                    peer.control(message);
+                }
+                catch (IOException e)
+                {
+                    logger.warn("Cannot tell node {0}: {1}", peer.id, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void accept()
+    {
+        while (!closed)
+        {
+            final Socket socket;
+            try
+            {
+                socket = server.accept();
+            }
+            catch (IOException e)
+            {
+                if (!closed)
+                {
+                    logger.error(e);
+                }
+                return;
+            }
+            accepted.add(socket);
+            startThread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        serve(socket);
+                    }
+                    catch (EOFException e)
+                    {
+                        // the other node closed the connection
+                    }
+                    catch (SocketException e)
+                    {
+                        // closed by either side
+                    }
+                    catch (IOException e)
+                    {
+                        logger.error(e);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // closing
+                    }
+                    finally
+                    {
+                        accepted.remove(socket);
+                        closeQuietly(socket);
+                    }
+                }
+            }, "cluster-serve-" + socket.getPort());
+        }
+    }
+
+    /**
+     * Answer the messages of one connection until it is closed.
+     */
+    private void serve(Socket socket) throws IOException, InterruptedException
+    {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        if (in.readInt() != MAGIC) { throw new IOException("Not a crawler node: " + socket.getRemoteSocketAddress()); }
+
+        int from = in.readInt();
+        if (from < 0 || from >= nodes.size() || from == self) { throw new IOException("Unknown node " + from); }
+
+        long fromEpoch = in.readLong();
+        checkEpoch(from, fromEpoch);
+        out.writeLong(epoch);
+        out.flush();
+
+        while (true)
+        {
+            byte message = in.readByte();
+            if (message == LINKS)
+            {
+                long batch = in.readLong();
+                int count = in.readInt();
+                List<Link> links = new ArrayList<Link>(count);
+                for (int i = 0; i < count; i++)
+                {
+                    links.add(new Link(in.readUTF(), in.readInt(), in.readUTF()));
+                }
+                synchronized (lastBatch)
+                {
+                    // not again if only the acknowledgement was lost
+                    if (batch > lastBatch[from] && epochs[from] == fromEpoch)
+                    {
+                        for (Link link : links)
+                        {
+                            crawler.receive(link.url, link.depth, link.parentPattern);
+                        }
+                        received.addAndGet(count);
+                        receivedFrom.addAndGet(from, count);
+                        lastBatch[from] = batch;
+                    }
+                }
+                out.writeByte(ACK);
+            }
+            else if (message == STATUS)
+            {
+                out.writeBoolean(isIdle());
+                out.writeLong(total(sentTo));
+                out.writeLong(total(receivedFrom));
+            }
+            else if (message == FINISH || message == STOP)
+            {
+                if (state == RUNNING)
+                {
+                    state = message == FINISH ? FINISHED : STOPPED;
+                    logger.info(message == FINISH ? "Node {0} finished the crawl." : "Node {0} stopped the crawl.",
+                            from);
+                }
+                out.writeByte(ACK);
+            }
+            else
+            {
+                throw new IOException("Unknown message " + message + " from node " + from);
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Send the buffered links of the peer in batches until closed.
+     */
+    private void send(Peer peer)
+    {
+        while (!closed)
+        {
+            try
+            {
+                synchronized (peer)
+                {
+                    // after a failure the batch in flight is sent again, with the same number
+                    if (peer.inFlight.isEmpty())
+                    {
+                        while (peer.buffer.isEmpty() && !closed)
+                        {
+                            peer.wait();
+                        }
+                        if (peer.buffer.size() < batchSize && !closed)
+                        {
+                            // let the batch fill
+                            peer.wait(flushInterval);
+                        }
+                        if (closed)
+                        {
+                            return;
+                        }
+                        int count = Math.min(batchSize, peer.buffer.size());
+                        List<Link> head = peer.buffer.subList(0, count);
+                        peer.inFlight.addAll(head);
+                        head.clear();
+                        peer.batch++;
+                        peer.notifyAll();
+                    }
+                }
+
+                peer.sendBatch();
+                int count;
+                synchronized (peer)
+                {
+                    count = peer.inFlight.size();
+                    peer.inFlight.clear();
+                }
+                sent.addAndGet(count);
+                synchronized (lastBatch)
+                {
+                    // not if the node was restarted since, its count started again
+                    if (epochs[peer.id] == peer.linkEpoch)
+                    {
+                        sentTo.addAndGet(peer.id, count);
+                    }
+                }
+                pending.addAndGet(-count);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            catch (IOException e)
+            {
+                if (closed)
+                {
+                    return;
+                }
+                logger.warn("Cannot send links to node {0}: {1}", peer.id, e.getMessage());
+                peer.closeLinks();
+                try
+                {
+                    Thread.sleep(RETRY_DELAY);
+                }
+                catch (InterruptedException ie)
+                {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Note the epoch of a node when it connects or is connected to; a new one means the node was restarted.
+     */
+    private void checkEpoch(int node, long nodeEpoch)
+    {
+        synchronized (lastBatch)
+        {
+            if (epochs[node] == nodeEpoch) { return; }
+
+            if (epochs[node] != 0)
+            {
+                logger.warn("Node {0} was restarted, counting its batches and links again.", node);
+                lastBatch[node] = 0;
+                sentTo.set(node, 0);
+                receivedFrom.set(node, 0);
+            }
+            epochs[node] = nodeEpoch;
+        }
+    }
+
+    private static long total(AtomicLongArray counts)
+    {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++)
+        {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    private static void closeQuietly(Socket socket)
+    {
+        try
+        {
+            socket.close();
+        }
+        catch (IOException e)
+        {
+            // closing anyway
+        }
+    }
+
+    /**
+     * Told about the links of other nodes and asked about its state.
+     */
+    public interface Crawler
+    {
+        /**
+         * Add a link owned by this node to the frontier, unless known.
+         */
+        void receive(String url, int depth, String parentPattern) throws InterruptedException;
+
+        /**
+         * @return true if nothing is left to visit and no page is in progress
+         */
+        boolean isIdle();
+    }
+
+    /**
+     * A link routed to its owner.
+     */
+    public static class Link
+    {
+        private final String url;
+        private final int depth;
+        private final String parentPattern;
+
+        private Link(String url, int depth, String parentPattern)
+        {
+            this.url = url;
+            this.depth = depth;
+            this.parentPattern = parentPattern;
+        }
+
+        public String getUrl()
+        {
+            return url;
+        }
+
+        public int getDepth()
+        {
+            return depth;
+        }
+
+        public String getParentPattern()
+        {
+            return parentPattern;
+        }
+    }
+
+    /**
+     * Another node, with the links waiting for it and the connections to it.
+     */
+    private class Peer
+    {
+        private final int id;
+        /** Guarded by this peer. */
+        private final List<Link> buffer = new ArrayList<Link>();
+        /** The batch being sent, kept until acknowledged; guarded by this peer. */
+        private final List<Link> inFlight = new ArrayList<Link>();
+        /** Number of the batch in flight; guarded by this peer. */
+        private long batch = 0;
+        /** Used by the sender thread, closed by {@link ClusterNode#close()}. */
+        private volatile Socket linkSocket;
+        /** Epoch of the node at the other end of the link connection. */
+        private long linkEpoch;
+        private DataInputStream linkIn;
+        private DataOutputStream linkOut;
+        /** Guarded by {@link #controlLock}. */
+        private final Object controlLock = new Object();
+        private Socket controlSocket;
+        private DataInputStream controlIn;
+        private DataOutputStream controlOut;
+
+        private Peer(int id)
+        {
+            this.id = id;
+        }
+
+        /**
+         * Send the links in flight and wait for the acknowledgement. On failure the same batch is sent again.
+         */
+        private void sendBatch() throws IOException
+        {
+            if (linkSocket == null)
+            {
+                linkSocket = connect();
+                linkIn = new DataInputStream(new BufferedInputStream(linkSocket.getInputStream()));
+                linkOut = new DataOutputStream(new BufferedOutputStream(linkSocket.getOutputStream(), 1 << 16));
+                linkEpoch = handshake(linkIn, linkOut);
+            }
+
+            List<Link> links;
+            long number;
+            synchronized (this)
+            {
+                links = new ArrayList<Link>(inFlight);
+                number = batch;
+            }
+            linkOut.writeByte(LINKS);
+            linkOut.writeLong(number);
+            linkOut.writeInt(links.size());
+            for (Link link : links)
+            {
+                linkOut.writeUTF(link.url);
+                linkOut.writeInt(link.depth);
+                linkOut.writeUTF(link.parentPattern);
+            }
+            linkOut.flush();
+            if (linkIn.readByte() != ACK) { throw new IOException("No acknowledgement"); }
+        }
+
+        /**
+         * @return idle flag (1 or 0), links sent and links received by the node
+         */
+        private long[] status() throws IOException
+        {
+            synchronized (controlLock)
+            {
+                try
+                {
+                    openControl();
+                    controlOut.writeByte(STATUS);
+                    controlOut.flush();
+                    return new long[] { controlIn.readBoolean() ? 1 : 0, controlIn.readLong(), controlIn.readLong() };
+                }
+                catch (IOException e)
+                {
+                    closeControl();
+                    throw e;
+                }
+            }
+        }
+
+        private void control(byte message) throws IOException
+        {
+            synchronized (controlLock)
+            {
+                try
+                {
+                    openControl();
+                    controlOut.writeByte(message);
+                    controlOut.flush();
+                    if (controlIn.readByte() != ACK) { throw new IOException("No acknowledgement"); }
+                }
+                catch (IOException e)
+                {
+                    closeControl();
+                    throw e;
+                }
+            }
+        }
+
+        private void openControl() throws IOException
+        {
+            if (controlSocket != null) { return; }
+
+            controlSocket = connect();
+            controlIn = new DataInputStream(new BufferedInputStream(controlSocket.getInputStream()));
+            controlOut = new DataOutputStream(new BufferedOutputStream(controlSocket.getOutputStream()));
+            handshake(controlIn, controlOut);
+        }
+
+        private Socket connect() throws IOException
+        {
+            Socket socket = new Socket();
+            try
+            {
+                socket.connect(nodes.get(id), timeout);
+                socket.setSoTimeout(timeout);
+                socket.setTcpNoDelay(true);
+                return socket;
+            }
+            catch (IOException e)
+            {
+                closeQuietly(socket);
+                throw e;
+            }
+        }
+
+        /**
+         * @return epoch of the node
+         */
+        private long handshake(DataInputStream in, DataOutputStream out) throws IOException
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(self);
+            out.writeLong(epoch);
+            out.flush();
+            long nodeEpoch = in.readLong();
+            checkEpoch(id, nodeEpoch);
+            return nodeEpoch;
+        }
+
+        private void closeLinks()
+        {
+            if (linkSocket != null)
+            {
+                closeQuietly(linkSocket);
+                linkSocket = null;
+            }
+        }
+
+        private void closeControl()
+        {
+            synchronized (controlLock)
+            {
+                if (controlSocket != null)
+                {
+                    closeQuietly(controlSocket);
+                    controlSocket = null;
+                }
+            }
+        }
+    }
+}
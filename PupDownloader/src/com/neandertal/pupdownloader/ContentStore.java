@@ -0,0 +1,316 @@
+package com.neandertal.pupdownloader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Append-only store of fetched page bodies, so pages can be matched again without fetching them.
+ * <p>
+ * Like a WARC file, the data file is a sequence of records, each compressed as its own gzip member, so that one
+ * record can be read from its offset without the others and the whole file is still a valid gzip stream. A record
+ * holds the URL, the fetch time, the content type, the body and the link depth of the page; records written before the
+ * depth was stored end after the body. The index file has one line per record,
+ * <code>offset TAB length TAB url</code>, and is loaded into memory on open; when a URL is stored again the last
+ * record wins. Records are compressed by the calling thread, only the append is serialized. Records written after
+ * the last index line (a crash between the two writes) are cut off on open. Thread safe.
+ *
+ * @author neandertal
+ *
+ */
+public class ContentStore
+{
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final char SEPARATOR = '\t';
+    /** Depth of records that do not store it. */
+    public static final int UNKNOWN_DEPTH = -1;
+
+    private final File dataFile;
+    private final File indexFile;
+    /** Last record of each URL. */
+    private final Map<String, Entry> index = new LinkedHashMap<String, Entry>();
+    private FileChannel data;
+    private BufferedWriter indexWriter;
+    private long end = 0;
+
+    public ContentStore(File dataFile)
+    {
+        this.dataFile = dataFile;
+        this.indexFile = new File(dataFile.getPath() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Load the index and open the files for appending.
+     *
+     * @return number of URLs stored
+     */
+    public synchronized int open() throws IOException
+    {
+        File parent = dataFile.getAbsoluteFile().getParentFile();
+        if (parent != null)
+        {
+            parent.mkdirs();
+        }
+
+        if (indexFile.exists())
+        {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8));
+            try
+            {
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    String[] fields = line.split(String.valueOf(SEPARATOR), 3);
+                    if (fields.length < 3)
+                    {
+                        // cut by a crash
+                        continue;
+                    }
+                    Entry entry = new Entry(fields[2], Long.parseLong(fields[0]), Integer.parseInt(fields[1]));
+                    index.put(entry.url, entry);
+                    end = Math.max(end, entry.offset + entry.length);
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+
+        data = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (data.size() > end)
+        {
+            data.truncate(end);
+        }
+        indexWriter = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(indexFile, true), StandardCharsets.UTF_8));
+        return index.size();
+    }
+
+    /**
+     * Append the page.
+     *
+     * @param depth link depth of the page
+     * @param contentType may be null
+     */
+    public void put(String url, int depth, String contentType, byte[] body) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 4 + 256);
+        DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes));
+        out.writeUTF(url);
+        out.writeLong(System.currentTimeMillis());
+        out.writeUTF(contentType == null ? "" : contentType);
+        out.writeInt(body.length);
+        out.write(body);
+        out.writeInt(depth);
+        out.close();
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+
+        synchronized (this)
+        {
+            long offset = end;
+            int length = record.remaining();
+            while (record.hasRemaining())
+            {
+                end += data.write(record, end);
+            }
+            indexWriter.write(Long.toString(offset));
+            indexWriter.write(SEPARATOR);
+            indexWriter.write(Integer.toString(length));
+            indexWriter.write(SEPARATOR);
+            indexWriter.write(url);
+            indexWriter.newLine();
+            index.put(url, new Entry(url, offset, length));
+        }
+    }
+
+    /**
+     * @return the last record of the URL, or null if it is not stored
+     */
+    public Record get(String url) throws IOException
+    {
+        Entry entry;
+        synchronized (this)
+        {
+            entry = index.get(url);
+        }
+        return entry == null ? null : read(entry);
+    }
+
+    /**
+     * Read a record; positional reads, so threads can read in parallel.
+     */
+    public Record read(Entry entry) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+        long position = entry.offset;
+        while (buffer.hasRemaining())
+        {
+            int n = data.read(buffer, position);
+            if (n < 0) { throw new IOException("Record cut off: " + entry.url); }
+            position += n;
+        }
+
+        DataInputStream in = new DataInputStream(
+                new GZIPInputStream(new ByteArrayInputStream(buffer.array()), Math.min(entry.length, 8192)));
+        try
+        {
+            String url = in.readUTF();
+            long time = in.readLong();
+            String contentType = in.readUTF();
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            int depth;
+            try
+            {
+                depth = in.readInt();
+            }
+            catch (EOFException e)
+            {
+                // stored before the depth was
+                depth = UNKNOWN_DEPTH;
+            }
+            return new Record(url, time, contentType.isEmpty() ? null : contentType, body, depth);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the last record of every URL, in the order first stored
+     */
+    public synchronized List<Entry> entries()
+    {
+        return new ArrayList<Entry>(index.values());
+    }
+
+    public synchronized boolean contains(String url)
+    {
+        return index.containsKey(url);
+    }
+
+    public synchronized int size()
+    {
+        return index.size();
+    }
+
+    public synchronized void flush() throws IOException
+    {
+        if (indexWriter != null)
+        {
+            indexWriter.flush();
+        }
+    }
+
+    public synchronized void close() throws IOException
+    {
+        if (indexWriter != null)
+        {
+            indexWriter.close();
+            indexWriter = null;
+        }
+        if (data != null)
+        {
+            data.close();
+            data = null;
+        }
+    }
+
+    /**
+     * Where a record is.
+     */
+    public static class Entry
+    {
+        private final String url;
+        private final long offset;
+        private final int length;
+
+        private Entry(String url, long offset, int length)
+        {
+            this.url = url;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String getUrl()
+        {
+            return url;
+        }
+    }
+
+    /**
+     * A stored page.
+     */
+    public static class Record
+    {
+        private final String url;
+        private final long time;
+        private final String contentType;
+        private final byte[] body;
+        private final int depth;
+
+        private Record(String url, long time, String contentType, byte[] body, int depth)
+        {
+            this.url = url;
+            this.time = time;
+            this.contentType = contentType;
+            this.body = body;
+            this.depth = depth;
+        }
+
+        public String getUrl()
+        {
+            return url;
+        }
+
+        /**
+         * @return when the page was fetched, in milliseconds since the epoch
+         */
+        public long getTime()
+        {
+            return time;
+        }
+
+        public String getContentType()
+        {
+            return contentType;
+        }
+
+        public byte[] getBody()
+        {
+            return body;
+        }
+
+        /**
+         * @return link depth of the page, {@link ContentStore#UNKNOWN_DEPTH} for records that do not store it
+         */
+        public int getDepth()
+        {
+            return depth;
+        }
+    }
+}
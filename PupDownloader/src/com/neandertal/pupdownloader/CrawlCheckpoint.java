@@ -0,0 +1,130 @@
+package com.neandertal.pupdownloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary snapshot of the visited and matching URL sets, so that a resumed crawl does not read and hash every line of
+ * the URL files again.
+ * <p>
+ * The file holds a header with the lengths the visited and matching files had when the snapshot was taken, followed
+ * by the two fingerprint tables exactly as they are in memory. Loading maps the file and copies the tables in bulk;
+ * only the lines appended to the URL files after the snapshot need to be read. The file is written to a temporary
+ * file and renamed over the old one, so a crash leaves either the old or the new snapshot.
+ *
+ * @author neandertal
+ *
+ */
+public class CrawlCheckpoint
+{
+    /** "PUPCKPT1" */
+    private static final long MAGIC = 0x3154504b43505550L;
+    private static final int VERSION = 1;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final FingerprintSet visited;
+    private final FingerprintSet matching;
+    private final long visitedOffset;
+    private final long matchingOffset;
+
+    /**
+     * @param visitedOffset length of the visited file whose URLs are all in the visited set
+     * @param matchingOffset length of the matching file whose URLs are all in the matching set
+     */
+    public CrawlCheckpoint(FingerprintSet visited, long visitedOffset, FingerprintSet matching, long matchingOffset)
+    {
+        this.visited = visited;
+        this.visitedOffset = visitedOffset;
+        this.matching = matching;
+        this.matchingOffset = matchingOffset;
+    }
+
+    /**
+     * Write the checkpoint atomically.
+     */
+    public void write(File file) throws IOException
+    {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null)
+        {
+            parent.mkdirs();
+        }
+
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try
+        {
+            ByteBuffer header = ByteBuffer.allocate(28).order(ByteOrder.LITTLE_ENDIAN);
+            header.putLong(MAGIC).putInt(VERSION).putLong(visitedOffset).putLong(matchingOffset).flip();
+            while (header.hasRemaining())
+            {
+                channel.write(header);
+            }
+            visited.writeTo(channel);
+            matching.writeTo(channel);
+            channel.force(true);
+        }
+        finally
+        {
+            channel.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the checkpoint, or null if there is none
+     */
+    public static CrawlCheckpoint read(File file, boolean offHeap) throws IOException
+    {
+        if (!file.exists()) { return null; }
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try
+        {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.remaining() < 28 || buffer.getLong() != MAGIC) { throw new IOException("Not a checkpoint: " + file); }
+
+            int version = buffer.getInt();
+            if (version != VERSION) { throw new IOException("Unknown checkpoint version: " + version); }
+
+            long visitedOffset = buffer.getLong();
+            long matchingOffset = buffer.getLong();
+            FingerprintSet visited = FingerprintSet.readFrom(buffer, offHeap);
+            FingerprintSet matching = FingerprintSet.readFrom(buffer, offHeap);
+            return new CrawlCheckpoint(visited, visitedOffset, matching, matchingOffset);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    public FingerprintSet getVisited()
+    {
+        return visited;
+    }
+
+    public FingerprintSet getMatching()
+    {
+        return matching;
+    }
+
+    public long getVisitedOffset()
+    {
+        return visitedOffset;
+    }
+
+    public long getMatchingOffset()
+    {
+        return matchingOffset;
+    }
+}
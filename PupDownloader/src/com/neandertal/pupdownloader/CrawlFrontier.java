@@ -0,0 +1,683 @@
+package com.neandertal.pupdownloader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * URLs waiting to be visited, persisted as an append-only journal.
+ * <p>
+ * Every add is written as <code>+url\tdepth\tparent pattern</code> and every pop as <code>-url</code>. Records are
+ * buffered and flushed by a
+ * background thread every commit interval (group commit). When the journal holds many more records than live URLs, it
+ * is compacted in the background: the live URLs are written to a new file while new records go to a pending file, and
+ * the two are swapped in atomically. Lines without a prefix are read as adds, so old frontier files still load.
+ * <p>
+ * URLs are queued in a {@link FocusedScheduler}; membership is answered by a {@link FingerprintSet}. When the queued
+ * entries exceed the memory budget, those that would be served last are spilled to disk ({@link FrontierSpill}) until a
+ * quarter of the budget is free again; when the queue falls below a quarter of the budget, the oldest spilled segment
+ * is loaded back. The spilled entries stay in the journal.
+ * <p>
+ * A failed journal write leaves the frontier running on what it holds in memory: the first failure is logged, all are
+ * counted ({@link #journalErrors()}).
+ *
+ * @author neandertal
+ *
+ */
+public class CrawlFrontier
+{
+    private static final char ADD = '+';
+    private static final char POP = '-';
+    private static final char SEPARATOR = '\t';
+
+    private static final String PENDING_SUFFIX = ".pending";
+    private static final String COMPACT_SUFFIX = ".compact";
+    private static final String SPILL_SUFFIX = ".spill";
+
+    /** Estimated heap bytes of a queued entry besides its URL characters. */
+    private static final int ENTRY_OVERHEAD = 96;
+    /** Most entries written to one segment. */
+    private static final int MAX_SEGMENT_ENTRIES = 100000;
+
+    /** Do not compact small journals. */
+    private static final int COMPACT_MIN_RECORDS = 10000;
+    /** Compact when records exceed live URLs by this factor. */
+    private static final int COMPACT_FACTOR = 2;
+
+    private final File file;
+    private final File pendingFile;
+    private final File compactFile;
+    private final long commitInterval;
+    private final AsyncLogger logger;
+
+    private final FocusedScheduler urls;
+    private final FingerprintSet queued;
+    private final FrontierSpill spill;
+    /** Heap budget for queued entries in bytes, 0 for no limit. */
+    private final long memoryBudget;
+    private long memoryUsed = 0;
+
+    private BufferedWriter writer;
+    private BufferedWriter pendingWriter;
+    private long records = 0;
+    private boolean dirty = false;
+    private boolean compacting = false;
+    private long journalErrors = 0;
+    private ScheduledExecutorService committer;
+
+    /**
+     * @param memoryBudget estimated heap bytes for queued entries before they are spilled to disk, 0 for no limit
+     */
+    public CrawlFrontier(File file, long commitInterval, boolean offHeap, boolean focused, long memoryBudget,
+            AsyncLogger logger)
+    {
+        this.logger = logger;
+        this.urls = new FocusedScheduler(focused);
+        this.queued = new FingerprintSet(offHeap);
+        this.spill = new FrontierSpill(new File(file.getPath() + SPILL_SUFFIX));
+        this.memoryBudget = memoryBudget;
+        this.file = file;
+        this.pendingFile = new File(file.getPath() + PENDING_SUFFIX);
+        this.compactFile = new File(file.getPath() + COMPACT_SUFFIX);
+        this.commitInterval = commitInterval;
+    }
+
+    /**
+     * Delete a journal and the files of an interrupted compaction, to start with an empty frontier.
+     */
+    public static void delete(File file)
+    {
+        file.delete();
+        new File(file.getPath() + PENDING_SUFFIX).delete();
+        new File(file.getPath() + COMPACT_SUFFIX).delete();
+    }
+
+    /**
+     * Replay the journal (and the pending file of an interrupted compaction) and start the group commit thread.
+     *
+     * @return number of records read
+     */
+    public synchronized long open() throws IOException
+    {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null)
+        {
+            parent.mkdirs();
+        }
+
+        LinkedHashMap<String, FrontierEntry> replayed = new LinkedHashMap<String, FrontierEntry>();
+        replay(file, replayed);
+        boolean interrupted = pendingFile.exists();
+        if (interrupted)
+        {
+            replay(pendingFile, replayed);
+        }
+        compactFile.delete();
+        spill.clear();
+
+        for (FrontierEntry entry : replayed.values())
+        {
+            enqueue(entry);
+            queued.add(entry.url);
+        }
+        replayed = null;
+
+        long read = records;
+        if (interrupted || records > COMPACT_FACTOR * (long) size())
+        {
+            writeSnapshot();
+            pendingFile.delete();
+        }
+        else
+        {
+            writer = createWriter(file, true);
+        }
+
+        committer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "frontier-commit");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        committer.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                tick();
+            }
+        }, commitInterval, commitInterval, TimeUnit.MILLISECONDS);
+
+        return read;
+    }
+
+    public synchronized boolean contains(String url)
+    {
+        return queued.contains(url);
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        return urls.isEmpty() && spill.isEmpty();
+    }
+
+    public synchronized int size()
+    {
+        return (int) (urls.size() + spill.size());
+    }
+
+    /** Number of entries spilled to disk. */
+    public synchronized long spilled()
+    {
+        return spill.size();
+    }
+
+    /** Number of failed journal writes. */
+    public synchronized long journalErrors()
+    {
+        return journalErrors;
+    }
+
+    /**
+     * @param depth link depth of the URL
+     * @param parentPattern pattern of the page the URL was found on
+     */
+    public boolean add(String url, int depth, String parentPattern)
+    {
+        return add(url, depth, parentPattern, false);
+    }
+
+    /**
+     * @param robotsChecked true if the URL was checked against the robots rules; not kept in the journal
+     */
+    public synchronized boolean add(String url, int depth, String parentPattern, boolean robotsChecked)
+    {
+        if (!queued.add(url)) { return false; }
+
+        FrontierEntry entry = new FrontierEntry(url, depth, FocusedScheduler.patternOf(url), parentPattern,
+                robotsChecked);
+        enqueue(entry);
+        try
+        {
+            writeEntry(currentWriter(), entry);
+            records++;
+            dirty = true;
+        }
+        catch (IOException e)
+        {
+            journalFailed(e);
+        }
+        return true;
+    }
+
+    /**
+     * Remove the URL to visit next.
+     *
+     * @return the entry or null if empty
+     */
+    public synchronized FrontierEntry poll()
+    {
+        if (!spill.isEmpty() && (urls.isEmpty() || memoryUsed < memoryBudget / 4))
+        {
+            unspill();
+        }
+
+        FrontierEntry entry = urls.poll();
+        if (entry == null) { return null; }
+
+        memoryUsed -= estimate(entry);
+        queued.remove(entry.url);
+
+        append(POP, entry.url);
+        return entry;
+    }
+
+    /**
+     * Let the scheduler learn from a visited page.
+     */
+    public synchronized void record(FrontierEntry entry, boolean matched)
+    {
+        urls.record(entry, matched);
+    }
+
+    /** Flush buffered records to the file. */
+    public synchronized void commit()
+    {
+        if (!dirty) { return; }
+
+        try
+        {
+            currentWriter().flush();
+            dirty = false;
+        }
+        catch (IOException e)
+        {
+            journalFailed(e);
+        }
+    }
+
+    public void close()
+    {
+        if (committer != null)
+        {
+            committer.shutdown();
+            try
+            {
+                committer.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (this)
+        {
+            commit();
+            closeQuietly(writer);
+            writer = null;
+            closeQuietly(pendingWriter);
+            pendingWriter = null;
+            if (journalErrors > 0)
+            {
+                logger.warn("Frontier journal writes failed: {0}", journalErrors);
+            }
+        }
+    }
+
+    /** Queue the entry in memory and spill if over budget. */
+    private void enqueue(FrontierEntry entry)
+    {
+        urls.add(entry);
+        memoryUsed += estimate(entry);
+        if (memoryBudget > 0 && memoryUsed > memoryBudget)
+        {
+            spill();
+        }
+    }
+
+    /** Move the entries served last to disk until a quarter of the budget is free. */
+    private void spill()
+    {
+        long target = memoryBudget / 4 * 3;
+        while (memoryUsed > target && !urls.isEmpty())
+        {
+            // entries are of similar size, take as many as the excess would hold
+            long average = Math.max(1, memoryUsed / urls.size());
+            int count = (int) Math.min(MAX_SEGMENT_ENTRIES, (memoryUsed - target) / average + 1);
+            List<FrontierEntry> entries = urls.removeLast(count);
+            for (FrontierEntry entry : entries)
+            {
+                memoryUsed -= estimate(entry);
+            }
+
+            try
+            {
+                spill.spill(entries);
+            }
+            catch (IOException e)
+            {
+                // keep them in memory
+                logger.warn("Cannot spill frontier entries to disk, they stay in memory: {0}", e.getMessage());
+                for (FrontierEntry entry : entries)
+                {
+                    urls.add(entry);
+                    memoryUsed += estimate(entry);
+                }
+                return;
+            }
+        }
+    }
+
+    /** Load the oldest spilled segment back. */
+    private void unspill()
+    {
+        try
+        {
+            for (FrontierEntry entry : spill.load())
+            {
+                urls.add(entry);
+                memoryUsed += estimate(entry);
+            }
+        }
+        catch (IOException e)
+        {
+            // the entries are still in the journal and come back on the next start
+            logger.warn("Cannot read spilled frontier entries back, they are visited after a restart: {0}",
+                    e.getMessage());
+        }
+    }
+
+    private static long estimate(FrontierEntry entry)
+    {
+        return ENTRY_OVERHEAD + entry.url.length();
+    }
+
+    private void append(char type, String url)
+    {
+        try
+        {
+            BufferedWriter out = currentWriter();
+            out.write(type);
+            out.write(url);
+            out.newLine();
+            records++;
+            dirty = true;
+        }
+        catch (IOException e)
+        {
+            journalFailed(e);
+        }
+    }
+
+    /** Count a failed journal write, logging only the first. */
+    private void journalFailed(IOException e)
+    {
+        if (journalErrors++ == 0)
+        {
+            logger.warn("Cannot write the frontier journal {0}, a restart may lose URLs to visit: {1}", file,
+                    e.getMessage());
+        }
+    }
+
+    /** While compacting, new records go to the pending file. */
+    private BufferedWriter currentWriter()
+    {
+        return pendingWriter != null ? pendingWriter : writer;
+    }
+
+    private void tick()
+    {
+        commit();
+
+        boolean toCompact;
+        synchronized (this)
+        {
+            toCompact = !compacting && records > COMPACT_MIN_RECORDS && records > COMPACT_FACTOR * (long) size();
+        }
+
+        if (toCompact)
+        {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrite the journal with live URLs only. The snapshot is written outside the lock; records added meanwhile go to
+     * the pending file, which is appended to the snapshot before the atomic rename.
+     */
+    private void compact()
+    {
+        List<FrontierEntry> snapshot;
+        synchronized (this)
+        {
+            try
+            {
+                writer.flush();
+                pendingWriter = createWriter(pendingFile, false);
+            }
+            catch (IOException e)
+            {
+                logger.warn("Cannot compact the frontier journal {0}: {1}", file, e.getMessage());
+                return;
+            }
+
+            try
+            {
+                snapshot = liveEntries();
+            }
+            catch (IOException e)
+            {
+                logger.warn("Cannot compact the frontier journal {0}: {1}", file, e.getMessage());
+                recoverFromFailedCompaction();
+                return;
+            }
+            compacting = true;
+        }
+
+        BufferedWriter compactWriter = null;
+        try
+        {
+            compactWriter = createWriter(compactFile, false);
+            for (FrontierEntry entry : snapshot)
+            {
+                writeEntry(compactWriter, entry);
+            }
+
+            synchronized (this)
+            {
+                pendingWriter.flush();
+                closeQuietly(pendingWriter);
+                pendingWriter = null;
+
+                long pendingRecords = copyLines(pendingFile, compactWriter);
+                compactWriter.close();
+                compactWriter = null;
+
+                closeQuietly(writer);
+                writer = null;
+                Files.move(compactFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                pendingFile.delete();
+
+                writer = createWriter(file, true);
+                records = snapshot.size() + pendingRecords;
+                dirty = false;
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Cannot compact the frontier journal {0}: {1}", file, e.getMessage());
+            synchronized (this)
+            {
+                recoverFromFailedCompaction();
+            }
+        }
+        finally
+        {
+            closeQuietly(compactWriter);
+            synchronized (this)
+            {
+                compacting = false;
+            }
+        }
+    }
+
+    /** Move pending records back into the journal. */
+    private void recoverFromFailedCompaction()
+    {
+        try
+        {
+            if (pendingWriter != null)
+            {
+                pendingWriter.flush();
+                closeQuietly(pendingWriter);
+                pendingWriter = null;
+            }
+
+            if (writer == null)
+            {
+                writer = createWriter(file, true);
+            }
+            if (pendingFile.exists())
+            {
+                copyLines(pendingFile, writer);
+                writer.flush();
+                pendingFile.delete();
+            }
+            compactFile.delete();
+        }
+        catch (IOException e)
+        {
+            // the records written while compacting are not in the journal
+            journalFailed(e);
+        }
+    }
+
+    /** Replace the journal with the live URLs. */
+    private void writeSnapshot() throws IOException
+    {
+        BufferedWriter out = createWriter(compactFile, false);
+        try
+        {
+            for (FrontierEntry entry : liveEntries())
+            {
+                writeEntry(out, entry);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        Files.move(compactFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        writer = createWriter(file, true);
+        records = size();
+    }
+
+    /** Queued entries in memory and on disk. */
+    private List<FrontierEntry> liveEntries() throws IOException
+    {
+        List<FrontierEntry> entries = urls.entries();
+        entries.addAll(spill.entries());
+        return entries;
+    }
+
+    private static void writeEntry(BufferedWriter out, FrontierEntry entry) throws IOException
+    {
+        out.write(ADD);
+        out.write(entry.url);
+        out.write(SEPARATOR);
+        out.write(Integer.toString(entry.depth));
+        out.write(SEPARATOR);
+        out.write(entry.parentPattern);
+        out.newLine();
+    }
+
+    private void replay(File journal, LinkedHashMap<String, FrontierEntry> urls) throws IOException
+    {
+        if (!journal.exists()) { return; }
+
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(journal), StandardCharsets.UTF_8));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                if (line.isEmpty())
+                {
+                    continue;
+                }
+
+                records++;
+                char type = line.charAt(0);
+                if (type == ADD)
+                {
+                    FrontierEntry entry = parseEntry(line.substring(1));
+                    urls.put(entry.url, entry);
+                }
+                else if (type == POP)
+                {
+                    urls.remove(line.substring(1));
+                }
+                else
+                {
+                    FrontierEntry entry = parseEntry(line);
+                    urls.put(entry.url, entry);
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /** Parse <code>url[\tdepth\tparent pattern]</code>. */
+    private static FrontierEntry parseEntry(String record)
+    {
+        String url = record;
+        int depth = 0;
+        String parentPattern = "";
+
+        int first = record.indexOf(SEPARATOR);
+        if (first != -1)
+        {
+            url = record.substring(0, first);
+            int second = record.indexOf(SEPARATOR, first + 1);
+            try
+            {
+                depth = Integer.parseInt(record.substring(first + 1, second == -1 ? record.length() : second));
+            }
+            catch (NumberFormatException e)
+            {
+                // keep depth 0
+            }
+            if (second != -1)
+            {
+                parentPattern = record.substring(second + 1);
+            }
+        }
+        return new FrontierEntry(url, depth, FocusedScheduler.patternOf(url), parentPattern);
+    }
+
+    private static long copyLines(File from, BufferedWriter to) throws IOException
+    {
+        long count = 0;
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(from), StandardCharsets.UTF_8));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                to.write(line);
+                to.newLine();
+                count++;
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return count;
+    }
+
+    private static BufferedWriter createWriter(File file, boolean append) throws IOException
+    {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), StandardCharsets.UTF_8));
+    }
+
+    private static void closeQuietly(BufferedWriter writer)
+    {
+        if (writer == null) { return; }
+
+        try
+        {
+            writer.close();
+        }
+        catch (IOException e)
+        {
+            // nothing
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.neandertal.pupdownloader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Downloads the images of matching pages while the crawl goes on.
+ * <p>
+ * Matches are put into a bounded queue and taken by a fixed number of download threads, each calling
+ * {@link ZoomifyDownloader#download(String)}. When the downloads fall behind and the queue is full, {@link #submit}
+ * blocks the crawler thread that found the match, so the crawl slows down to the download rate instead of piling up
+ * matches in memory. Thread safe.
+ *
+ * @author neandertal
+ *
+ */
+public class DownloadPipeline
+{
+    /** Tells a download thread to stop. */
+    private static final String STOP = new String("stop");
+
+    private final ZoomifyDownloader downloader;
+    private final BlockingQueue<String> queue;
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private final AsyncLogger logger;
+    private final Metrics.Histogram waitTime;
+    private volatile boolean dropping = false;
+
+    /**
+     * @param capacity matches queued before {@link #submit} blocks
+     * @param waitTime records how long {@link #submit} blocked
+     */
+    public DownloadPipeline(ZoomifyDownloader downloader, int threads, int capacity, AsyncLogger logger,
+            Metrics.Histogram waitTime)
+    {
+        this.downloader = downloader;
+        this.queue = new ArrayBlockingQueue<String>(capacity);
+        this.logger = logger;
+        this.waitTime = waitTime;
+        for (int i = 0; i < threads; i++)
+        {
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    work();
+                }
+            }, "downloader-" + (i + 1));
+            thread.setDaemon(true);
+            workers.add(thread);
+        }
+    }
+
+    public void start()
+    {
+        for (Thread thread : workers)
+        {
+            thread.start();
+        }
+    }
+
+    /**
+     * Queue the page for download, waiting while the queue is full.
+     */
+    public void submit(String url) throws InterruptedException
+    {
+        if (queue.offer(url)) { return; }
+
+        long start = System.nanoTime();
+        queue.put(url);
+        waitTime.observeSince(start);
+    }
+
+    /**
+     * @return matches waiting for a download thread
+     */
+    public int size()
+    {
+        return queue.size();
+    }
+
+    /**
+     * Stop the download threads after the queued matches, or, if not draining, after the downloads in progress.
+     * Dropped matches stay in the matching file.
+     */
+    public void finish(boolean drain) throws InterruptedException
+    {
+        if (!drain)
+        {
+            dropping = true;
+            int dropped = queue.size();
+            queue.clear();
+            logger.info("Dropped {0} queued downloads.", dropped);
+        }
+        else if (!queue.isEmpty())
+        {
+            logger.info("Waiting for {0} queued downloads...", queue.size());
+        }
+
+        for (int i = 0; i < workers.size(); i++)
+        {
+            queue.put(STOP);
+        }
+        for (Thread thread : workers)
+        {
+            thread.join();
+        }
+    }
+
+    private void work()
+    {
+        while (true)
+        {
+            String url;
+            try
+            {
+                url = queue.take();
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            if (url == STOP) { return; }
+
+            if (dropping)
+            {
+                continue;
+            }
+            try
+            {
+                downloader.download(url);
+            }
+            catch (RuntimeException e)
+            {
+                logger.error(e);
+            }
+        }
+    }
+}
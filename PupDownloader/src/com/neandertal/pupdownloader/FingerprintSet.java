@@ -0,0 +1,332 @@
+package com.neandertal.pupdownloader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Set of URLs stored as 64-bit fingerprints in an open-addressing table with linear probing.
+ * <p>
+ * Uses 8 bytes per slot instead of a String and a HashMap node per URL. The table is either a <code>long[]</code> or,
+ * if off-heap, a direct buffer that does not count against the Java heap. With 64-bit fingerprints the chance of any
+ * collision among 10 million URLs is about 3 in a million; a collision makes a URL look already known.
+ * <p>
+ * Not thread safe.
+ *
+ * @author neandertal
+ *
+ */
+public class FingerprintSet
+{
+    /** Marks an empty slot, fingerprints are never 0. */
+    private static final long EMPTY = 0L;
+
+    private static final int MIN_CAPACITY = 1 << 10;
+    private static final int MAX_HEAP_CAPACITY = 1 << 30;
+    /** A direct buffer holds at most 2 GB. */
+    private static final int MAX_OFF_HEAP_CAPACITY = 1 << 27;
+    /** Slots per write when saving the table. */
+    private static final int WRITE_CHUNK = 1 << 13;
+
+    private final boolean offHeap;
+    private final int maxCapacity;
+
+    private long[] heapTable;
+    private LongBuffer offHeapTable;
+    private int capacity;
+    private int mask;
+    private int size = 0;
+    private int resizeAt;
+
+    public FingerprintSet(boolean offHeap)
+    {
+        this(MIN_CAPACITY, offHeap);
+    }
+
+    public FingerprintSet(int expectedSize, boolean offHeap)
+    {
+        this.offHeap = offHeap;
+        this.maxCapacity = offHeap ? MAX_OFF_HEAP_CAPACITY : MAX_HEAP_CAPACITY;
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    /**
+     * 64-bit fingerprint of the string: FNV-1a over the chars followed by a murmur3 finalizer to spread the bits.
+     */
+    public static long fingerprint(String s)
+    {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++)
+        {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == EMPTY ? 1L : h;
+    }
+
+    public boolean add(String url)
+    {
+        return addFingerprint(fingerprint(url));
+    }
+
+    public boolean contains(String url)
+    {
+        return containsFingerprint(fingerprint(url));
+    }
+
+    public boolean remove(String url)
+    {
+        return removeFingerprint(fingerprint(url));
+    }
+
+    public boolean addFingerprint(long fp)
+    {
+        int slot = slotOf(fp);
+        while (true)
+        {
+            long current = get(slot);
+            if (current == EMPTY)
+            {
+                set(slot, fp);
+                size++;
+                if (size > resizeAt)
+                {
+                    resize();
+                }
+                return true;
+            }
+            if (current == fp) { return false; }
+
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public boolean containsFingerprint(long fp)
+    {
+        int slot = slotOf(fp);
+        while (true)
+        {
+            long current = get(slot);
+            if (current == EMPTY) { return false; }
+            if (current == fp) { return true; }
+
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public boolean removeFingerprint(long fp)
+    {
+        int slot = slotOf(fp);
+        while (true)
+        {
+            long current = get(slot);
+            if (current == EMPTY) { return false; }
+            if (current == fp)
+            {
+                break;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        // backward shift deletion keeps probe chains intact without tombstones
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (true)
+        {
+            long moved = get(next);
+            if (moved == EMPTY)
+            {
+                break;
+            }
+
+            int home = slotOf(moved);
+            // move the entry into the gap unless its home slot lies cyclically in (gap, next]
+            if (((next - home) & mask) >= ((next - gap) & mask))
+            {
+                set(gap, moved);
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        set(gap, EMPTY);
+        size--;
+        return true;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /** Bytes used by the table. */
+    public long tableBytes()
+    {
+        return 8L * capacity;
+    }
+
+    /**
+     * Copy all fingerprints into the array, in table order.
+     */
+    public long[] toArray()
+    {
+        long[] result = new long[size];
+        int n = 0;
+        for (int i = 0; i < capacity; i++)
+        {
+            long fp = get(i);
+            if (fp != EMPTY)
+            {
+                result[n++] = fp;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Write the table as it is: capacity, size and all slots, little endian. Loading it needs no rehashing.
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(capacity).putInt(size).flip();
+        writeFully(channel, header);
+
+        ByteBuffer chunk = ByteBuffer.allocate(WRITE_CHUNK * 8).order(ByteOrder.LITTLE_ENDIAN);
+        LongBuffer longs = chunk.asLongBuffer();
+        for (int from = 0; from < capacity; from += WRITE_CHUNK)
+        {
+            int n = Math.min(WRITE_CHUNK, capacity - from);
+            longs.clear();
+            if (offHeapTable == null)
+            {
+                longs.put(heapTable, from, n);
+            }
+            else
+            {
+                LongBuffer slice = offHeapTable.duplicate();
+                slice.position(from).limit(from + n);
+                longs.put(slice);
+            }
+            chunk.position(0).limit(n * 8);
+            writeFully(channel, chunk);
+        }
+    }
+
+    /**
+     * Read a table written by {@link #writeTo} from the buffer's position, which is moved past the table. The slots
+     * are copied in bulk, e.g. from a memory-mapped file.
+     */
+    public static FingerprintSet readFrom(ByteBuffer buffer, boolean offHeap) throws IOException
+    {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int capacity = buffer.getInt();
+        int size = buffer.getInt();
+
+        FingerprintSet set = new FingerprintSet(MIN_CAPACITY, offHeap);
+        if (capacity < MIN_CAPACITY || capacity > set.maxCapacity || Integer.bitCount(capacity) != 1 || size < 0
+                || size > capacity || buffer.remaining() < capacity * 8L) { throw new IOException("Invalid fingerprint table: " + capacity + "/" + size); }
+
+        set.allocate(capacity);
+        LongBuffer slots = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+        slots.limit(capacity);
+        if (offHeap)
+        {
+            set.offHeapTable.put(slots);
+            set.offHeapTable.clear();
+        }
+        else
+        {
+            slots.get(set.heapTable);
+        }
+        set.size = size;
+        buffer.position(buffer.position() + capacity * 8);
+        return set;
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+    }
+
+    private int slotOf(long fp)
+    {
+        return (int) (fp ^ (fp >>> 32)) & mask;
+    }
+
+    private long get(int slot)
+    {
+        return offHeapTable == null ? heapTable[slot] : offHeapTable.get(slot);
+    }
+
+    private void set(int slot, long value)
+    {
+        if (offHeapTable == null)
+        {
+            heapTable[slot] = value;
+        }
+        else
+        {
+            offHeapTable.put(slot, value);
+        }
+    }
+
+    private void allocate(int newCapacity)
+    {
+        capacity = newCapacity;
+        mask = newCapacity - 1;
+        // load factor 0.75, lower if the table cannot grow further
+        resizeAt = newCapacity == maxCapacity ? newCapacity - 1 : newCapacity / 4 * 3;
+
+        if (offHeap)
+        {
+            heapTable = null;
+            offHeapTable = ByteBuffer.allocateDirect(newCapacity * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+        }
+        else
+        {
+            offHeapTable = null;
+            heapTable = new long[newCapacity];
+        }
+    }
+
+    private void resize()
+    {
+        if (capacity == maxCapacity) { throw new IllegalStateException("Fingerprint set is full: " + size); }
+
+        long[] old = toArray();
+        allocate(capacity << 1);
+        size = 0;
+        for (long fp : old)
+        {
+            addFingerprint(fp);
+        }
+    }
+
+    private int tableSizeFor(int expectedSize)
+    {
+        long needed = Math.max(MIN_CAPACITY, (long) expectedSize * 4 / 3 + 1);
+        int capacity = MIN_CAPACITY;
+        while (capacity < needed && capacity < maxCapacity)
+        {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
@@ -0,0 +1,359 @@
+package com.neandertal.pupdownloader;
+
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Orders the frontier so that URLs likely to lead to matches are visited first.
+ * <p>
+ * URLs are grouped in buckets by their pattern and the pattern of the page they were found on; each bucket is a FIFO
+ * queue. The bucket with the best score is served next. For every pattern the scheduler counts visited pages and
+ * matches, and - as a parent - how many of the pages linked from it matched. A bucket scores by the match rate of its
+ * pattern, how productive its pattern and its parent pattern are as parents, plus an exploration bonus for patterns
+ * seen rarely, divided by the link depth of the next URL. Rates are smoothed towards the global match rate so that
+ * new patterns are neither ignored nor preferred blindly.
+ * <p>
+ * When not focused, all URLs share one bucket and are served in insertion order. Not thread safe.
+ *
+ * @author neandertal
+ *
+ */
+public class FocusedScheduler
+{
+    /** Pseudo-visits used to smooth rates towards the global rate. */
+    private static final double PRIOR_WEIGHT = 5;
+    private static final double OWN_PRODUCTIVITY_WEIGHT = 0.5;
+    private static final double PARENT_PRODUCTIVITY_WEIGHT = 0.5;
+    private static final double EXPLORATION_WEIGHT = 0.05;
+    private static final double DEPTH_DECAY = 0.1;
+    /** Rescore all buckets after this many visited pages, the global rate and exploration bonus drift slowly. */
+    private static final int RESCORE_INTERVAL = 1000;
+
+    private static final String FIFO_KEY = "";
+
+    private final boolean focused;
+
+    private final Map<String, Bucket> buckets = new HashMap<String, Bucket>();
+    private final Map<String, List<Bucket>> bucketsByPattern = new HashMap<String, List<Bucket>>();
+    private final Map<String, List<Bucket>> bucketsByParent = new HashMap<String, List<Bucket>>();
+    private final Map<String, PatternStats> stats = new HashMap<String, PatternStats>();
+    private final TreeSet<Bucket> ready = new TreeSet<Bucket>(new BucketComparator());
+
+    private int size = 0;
+    private long nextBucketId = 0;
+    private long totalVisited = 0;
+    private long totalMatches = 0;
+    private int sinceRescore = 0;
+
+    public FocusedScheduler(boolean focused)
+    {
+        this.focused = focused;
+    }
+
+    /**
+     * Pattern of a URL: path and parameter names without host and parameter values, with digit runs replaced by
+     * <code>#</code>. E.g. <code>http://site/gallery/page2.php?folder=x/y</code> becomes
+     * <code>/gallery/page#.php?folder=</code>.
+     */
+    public static String patternOf(String url)
+    {
+        String path;
+        String query;
+        try
+        {
+            URL u = new URL(url);
+            path = u.getPath();
+            query = u.getQuery();
+        }
+        catch (Exception e)
+        {
+            return url;
+        }
+
+        StringBuilder sb = new StringBuilder(path.length() + 16);
+        appendMasked(sb, path);
+        if (query != null)
+        {
+            sb.append('?');
+            String[] params = query.split("&");
+            for (int i = 0; i < params.length; i++)
+            {
+                if (i > 0)
+                {
+                    sb.append('&');
+                }
+
+                int index = params[i].indexOf('=');
+                appendMasked(sb, index == -1 ? params[i] : params[i].substring(0, index + 1));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void appendMasked(StringBuilder sb, String s)
+    {
+        boolean inDigits = false;
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9')
+            {
+                if (!inDigits)
+                {
+                    sb.append('#');
+                    inDigits = true;
+                }
+                continue;
+            }
+
+            inDigits = false;
+            sb.append(c);
+        }
+    }
+
+    public void add(FrontierEntry entry)
+    {
+        Bucket bucket = getBucket(entry);
+        if (entry.pattern != bucket.pattern || entry.parentPattern != bucket.parentPattern)
+        {
+            // share the pattern strings of the bucket
+            entry = new FrontierEntry(entry.url, entry.depth, bucket.pattern, bucket.parentPattern,
+                    entry.robotsChecked);
+        }
+
+        boolean wasEmpty = bucket.queue.isEmpty();
+        bucket.queue.add(entry);
+        size++;
+
+        if (wasEmpty)
+        {
+            bucket.score = score(bucket);
+            ready.add(bucket);
+        }
+    }
+
+    /**
+     * Remove the best entry.
+     *
+     * @return the entry or null if empty
+     */
+    public FrontierEntry poll()
+    {
+        Bucket bucket = ready.pollFirst();
+        if (bucket == null) { return null; }
+
+        FrontierEntry entry = bucket.queue.poll();
+        size--;
+
+        if (!bucket.queue.isEmpty())
+        {
+            bucket.score = score(bucket);
+            ready.add(bucket);
+        }
+        return entry;
+    }
+
+    /**
+     * Remove up to <code>count</code> entries that would be served last: the newest entries of the buckets with the
+     * lowest scores.
+     */
+    public List<FrontierEntry> removeLast(int count)
+    {
+        List<FrontierEntry> removed = new ArrayList<FrontierEntry>(Math.min(count, size));
+        while (removed.size() < count)
+        {
+            Bucket bucket = ready.pollLast();
+            if (bucket == null)
+            {
+                break;
+            }
+
+            while (removed.size() < count && bucket.queue.size() > 0)
+            {
+                removed.add(bucket.queue.pollLast());
+                size--;
+            }
+            if (!bucket.queue.isEmpty())
+            {
+                // the head is unchanged, and so is the score
+                ready.add(bucket);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Learn from a visited page.
+     *
+     * @param matched true if the page was a match
+     */
+    public void record(FrontierEntry entry, boolean matched)
+    {
+        if (!focused) { return; }
+
+        totalVisited++;
+        PatternStats own = getStats(entry.pattern);
+        own.visited++;
+        PatternStats parent = getStats(entry.parentPattern);
+        parent.childVisited++;
+        if (matched)
+        {
+            totalMatches++;
+            own.matches++;
+            parent.childMatches++;
+        }
+
+        if (++sinceRescore >= RESCORE_INTERVAL)
+        {
+            sinceRescore = 0;
+            rescore(new ArrayList<Bucket>(ready));
+            return;
+        }
+
+        rescore(bucketsByPattern.get(entry.pattern));
+        rescore(bucketsByPattern.get(entry.parentPattern));
+        rescore(bucketsByParent.get(entry.parentPattern));
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /** All queued entries, in no particular order. */
+    public List<FrontierEntry> entries()
+    {
+        List<FrontierEntry> result = new ArrayList<FrontierEntry>(size);
+        for (Bucket bucket : ready)
+        {
+            result.addAll(bucket.queue);
+        }
+        return result;
+    }
+
+    private void rescore(List<Bucket> list)
+    {
+        if (list == null) { return; }
+
+        for (Bucket bucket : list)
+        {
+            if (bucket.queue.isEmpty())
+            {
+                continue;
+            }
+
+            ready.remove(bucket);
+            bucket.score = score(bucket);
+            ready.add(bucket);
+        }
+    }
+
+    private double score(Bucket bucket)
+    {
+        if (!focused) { return 0; }
+
+        double prior = (totalMatches + 1.0) / (totalVisited + 2.0);
+        PatternStats own = stats.get(bucket.pattern);
+        PatternStats parent = stats.get(bucket.parentPattern);
+
+        double ownRate = own == null ? prior : smooth(own.matches, own.visited, prior);
+        double ownProductivity = own == null ? prior : smooth(own.childMatches, own.childVisited, prior);
+        double parentProductivity = parent == null ? prior : smooth(parent.childMatches, parent.childVisited, prior);
+        double exploration = EXPLORATION_WEIGHT
+                * Math.sqrt(Math.log(totalVisited + 1.0) / ((own == null ? 0 : own.visited) + 1.0));
+
+        double score = ownRate + OWN_PRODUCTIVITY_WEIGHT * ownProductivity
+                + PARENT_PRODUCTIVITY_WEIGHT * parentProductivity + exploration;
+        return score / (1.0 + DEPTH_DECAY * bucket.queue.peek().depth);
+    }
+
+    private static double smooth(long hits, long count, double prior)
+    {
+        return (hits + PRIOR_WEIGHT * prior) / (count + PRIOR_WEIGHT);
+    }
+
+    private Bucket getBucket(FrontierEntry entry)
+    {
+        String key = focused ? entry.pattern + '\n' + entry.parentPattern : FIFO_KEY;
+        Bucket bucket = buckets.get(key);
+        if (bucket == null)
+        {
+            bucket = new Bucket(nextBucketId++, entry.pattern, entry.parentPattern);
+            buckets.put(key, bucket);
+            if (focused)
+            {
+                index(bucketsByPattern, bucket.pattern, bucket);
+                index(bucketsByParent, bucket.parentPattern, bucket);
+            }
+        }
+        return bucket;
+    }
+
+    private static void index(Map<String, List<Bucket>> map, String key, Bucket bucket)
+    {
+        List<Bucket> list = map.get(key);
+        if (list == null)
+        {
+            list = new ArrayList<Bucket>(2);
+            map.put(key, list);
+        }
+        list.add(bucket);
+    }
+
+    private PatternStats getStats(String pattern)
+    {
+        PatternStats s = stats.get(pattern);
+        if (s == null)
+        {
+            s = new PatternStats();
+            stats.put(pattern, s);
+        }
+        return s;
+    }
+
+    private static class PatternStats
+    {
+        protected long visited;
+        protected long matches;
+        protected long childVisited;
+        protected long childMatches;
+    }
+
+    private static class Bucket
+    {
+        protected final long id;
+        protected final String pattern;
+        protected final String parentPattern;
+        protected final ArrayDeque<FrontierEntry> queue = new ArrayDeque<FrontierEntry>();
+        protected double score;
+
+        protected Bucket(long id, String pattern, String parentPattern)
+        {
+            this.id = id;
+            this.pattern = pattern;
+            this.parentPattern = parentPattern;
+        }
+    }
+
+    /** Best score first, then oldest bucket. */
+    private static class BucketComparator implements Comparator<Bucket>
+    {
+        @Override
+        public int compare(Bucket a, Bucket b)
+        {
+            int c = Double.compare(b.score, a.score);
+            return c != 0 ? c : Long.compare(a.id, b.id);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.neandertal.pupdownloader;
+
+/**
+ * URL waiting in the frontier, with what the scheduler needs to rank it.
+ *
+ * @author neandertal
+ *
+ */
+public class FrontierEntry
+{
+    protected final String url;
+    /** Number of links followed from the start URL. */
+    protected final int depth;
+    /** Pattern of this URL, see {@link FocusedScheduler#patternOf(String)}. */
+    protected final String pattern;
+    /** Pattern of the page the URL was found on, empty for seeds. */
+    protected final String parentPattern;
+    /** Checked against the robots rules when queued in this run. */
+    protected final boolean robotsChecked;
+
+    public FrontierEntry(String url, int depth, String pattern, String parentPattern)
+    {
+        this(url, depth, pattern, parentPattern, false);
+    }
+
+    public FrontierEntry(String url, int depth, String pattern, String parentPattern, boolean robotsChecked)
+    {
+        this.url = url;
+        this.depth = depth;
+        this.pattern = pattern;
+        this.parentPattern = parentPattern;
+        this.robotsChecked = robotsChecked;
+    }
+
+    public String getUrl()
+    {
+        return url;
+    }
+
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    public String getPattern()
+    {
+        return pattern;
+    }
+
+    public String getParentPattern()
+    {
+        return parentPattern;
+    }
+
+    public boolean isRobotsChecked()
+    {
+        return robotsChecked;
+    }
+
+    @Override
+    public String toString()
+    {
+        return url;
+    }
+}
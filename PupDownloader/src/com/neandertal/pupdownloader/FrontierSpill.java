@@ -0,0 +1,213 @@
+package com.neandertal.pupdownloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Frontier entries moved out of memory, as compressed segment files.
+ * <p>
+ * Each spill writes one segment: the entries sorted by URL, each URL stored as the length of the prefix it shares with
+ * the previous URL plus the rest (front coding), the whole file gzip compressed. Segments are read back oldest first,
+ * one at a time. The segments only cache what the frontier journal already holds, so they are deleted on start. Not
+ * thread safe.
+ *
+ * @author neandertal
+ *
+ */
+public class FrontierSpill
+{
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".gz";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File dir;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    private long nextSegment = 0;
+    private long size = 0;
+
+    public FrontierSpill(File dir)
+    {
+        this.dir = dir;
+    }
+
+    /**
+     * Delete all segments.
+     */
+    public void clear()
+    {
+        File[] files = dir.listFiles();
+        if (files != null)
+        {
+            for (File f : files)
+            {
+                if (f.getName().startsWith(SEGMENT_PREFIX))
+                {
+                    f.delete();
+                }
+            }
+        }
+        segments.clear();
+        size = 0;
+    }
+
+    /**
+     * Write the entries as a new segment.
+     */
+    public void spill(List<FrontierEntry> entries) throws IOException
+    {
+        if (entries.isEmpty()) { return; }
+
+        dir.mkdirs();
+        List<FrontierEntry> sorted = new ArrayList<FrontierEntry>(entries);
+        Collections.sort(sorted, new Comparator<FrontierEntry>()
+        {
+            @Override
+            public int compare(FrontierEntry a, FrontierEntry b)
+            {
+                return a.url.compareTo(b.url);
+            }
+        });
+
+        File file = new File(dir, SEGMENT_PREFIX + nextSegment++ + SEGMENT_SUFFIX);
+        DataOutputStream out = new DataOutputStream(
+                new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE), BUFFER_SIZE));
+        try
+        {
+            out.writeInt(sorted.size());
+            String previous = "";
+            for (FrontierEntry entry : sorted)
+            {
+                int shared = sharedPrefix(previous, entry.url);
+                out.writeShort(shared);
+                out.writeUTF(entry.url.substring(shared));
+                out.writeInt(entry.depth);
+                out.writeUTF(entry.pattern);
+                out.writeUTF(entry.parentPattern);
+                out.writeBoolean(entry.robotsChecked);
+                previous = entry.url;
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        segments.add(new Segment(file, sorted.size()));
+        size += sorted.size();
+    }
+
+    /**
+     * Read and delete the oldest segment. A segment that cannot be read is dropped all the same; its entries are still
+     * in the frontier journal.
+     *
+     * @return its entries, empty if there are no segments
+     */
+    public List<FrontierEntry> load() throws IOException
+    {
+        Segment segment = segments.poll();
+        if (segment == null) { return Collections.emptyList(); }
+
+        try
+        {
+            return read(segment);
+        }
+        finally
+        {
+            size -= segment.count;
+            segment.file.delete();
+        }
+    }
+
+    /**
+     * All spilled entries, the segments are kept.
+     */
+    public List<FrontierEntry> entries() throws IOException
+    {
+        List<FrontierEntry> entries = new ArrayList<FrontierEntry>((int) Math.min(size, Integer.MAX_VALUE));
+        for (Segment segment : segments)
+        {
+            entries.addAll(read(segment));
+        }
+        return entries;
+    }
+
+    /** Number of spilled entries. */
+    public long size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public int segments()
+    {
+        return segments.size();
+    }
+
+    private static List<FrontierEntry> read(Segment segment) throws IOException
+    {
+        List<FrontierEntry> entries = new ArrayList<FrontierEntry>(segment.count);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(segment.file), BUFFER_SIZE), BUFFER_SIZE));
+        try
+        {
+            int count = in.readInt();
+            String previous = "";
+            for (int i = 0; i < count; i++)
+            {
+                int shared = in.readUnsignedShort();
+                String url = previous.substring(0, shared) + in.readUTF();
+                int depth = in.readInt();
+                String pattern = in.readUTF();
+                String parentPattern = in.readUTF();
+                boolean robotsChecked = in.readBoolean();
+                entries.add(new FrontierEntry(url, depth, pattern, parentPattern, robotsChecked));
+                previous = url;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return entries;
+    }
+
+    private static int sharedPrefix(String a, String b)
+    {
+        int max = Math.min(Math.min(a.length(), b.length()), 0xffff);
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i))
+        {
+            i++;
+        }
+        return i;
+    }
+
+    private static class Segment
+    {
+        protected final File file;
+        protected final int count;
+
+        protected Segment(File file, int count)
+        {
+            this.file = file;
+            this.count = count;
+        }
+    }
+}
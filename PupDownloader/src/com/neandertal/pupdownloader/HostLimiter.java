@@ -0,0 +1,142 @@
+package com.neandertal.pupdownloader;
+
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Politeness cap: limits the number of concurrent requests per host and spaces the starts of its requests with a
+ * {@link RateController}, by the crawl delay the host asks for and, if adaptive, by the rate its responses allow.
+ *
+ * @author neandertal
+ *
+ */
+public class HostLimiter
+{
+    private final int permitsPerHost;
+    private final ConcurrentMap<String, Semaphore> hosts = new ConcurrentHashMap<String, Semaphore>();
+    private final ConcurrentMap<String, RateController> rates = new ConcurrentHashMap<String, RateController>();
+    private final boolean adaptive;
+    private final double initialRate;
+    private final double maxRate;
+
+    public HostLimiter(int permitsPerHost)
+    {
+        this(permitsPerHost, false, 0, Double.MAX_VALUE);
+    }
+
+    /**
+     * @param adaptive adapt the request rate of each host to its responses
+     * @param initialRate requests per second each host starts with
+     * @param maxRate requests per second no host exceeds
+     */
+    public HostLimiter(int permitsPerHost, boolean adaptive, double initialRate, double maxRate)
+    {
+        if (permitsPerHost < 1) { throw new IllegalArgumentException("Permits per host must be positive: " + permitsPerHost); }
+        this.permitsPerHost = permitsPerHost;
+        this.adaptive = adaptive;
+        this.initialRate = initialRate;
+        this.maxRate = maxRate;
+    }
+
+    /**
+     * Block until a request to the host of the given URL is allowed.
+     *
+     * @return the host key, to be passed to {@link #release(String)}
+     */
+    public String acquire(String url) throws InterruptedException
+    {
+        String host = hostOf(url);
+        getSemaphore(host).acquire();
+        try
+        {
+            getRate(host).await();
+        }
+        catch (InterruptedException e)
+        {
+            release(host);
+            throw e;
+        }
+        return host;
+    }
+
+    /**
+     * Report a successful request.
+     *
+     * @param started start time of the request
+     */
+    public void success(String host, long started)
+    {
+        getRate(host).onSuccess(started);
+    }
+
+    /**
+     * Report a failed or throttled request.
+     *
+     * @param started start time of the request
+     * @param retryAfter milliseconds the host asked to wait, or -1
+     */
+    public void failure(String host, long started, long retryAfter)
+    {
+        getRate(host).onFailure(started, retryAfter);
+    }
+
+    /**
+     * Space the requests to the host by the given delay.
+     *
+     * @param host as returned by {@link #hostOf(String)}
+     */
+    public void setDelay(String host, long millis)
+    {
+        getRate(host).setMinInterval(millis);
+    }
+
+    public RateController getRate(String host)
+    {
+        RateController rate = rates.get(host);
+        if (rate == null)
+        {
+            RateController created = new RateController(adaptive, initialRate, maxRate);
+            rate = rates.putIfAbsent(host, created);
+            if (rate == null)
+            {
+                rate = created;
+            }
+        }
+        return rate;
+    }
+
+    public void release(String host)
+    {
+        getSemaphore(host).release();
+    }
+
+    private Semaphore getSemaphore(String host)
+    {
+        Semaphore semaphore = hosts.get(host);
+        if (semaphore == null)
+        {
+            Semaphore created = new Semaphore(permitsPerHost, true);
+            semaphore = hosts.putIfAbsent(host, created);
+            if (semaphore == null)
+            {
+                semaphore = created;
+            }
+        }
+        return semaphore;
+    }
+
+    static String hostOf(String url)
+    {
+        try
+        {
+            String host = new URL(url).getHost();
+            return host == null ? "" : host.toLowerCase();
+        }
+        catch (Exception e)
+        {
+            return "";
+        }
+    }
+}
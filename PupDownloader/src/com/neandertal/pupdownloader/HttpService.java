@@ -0,0 +1,210 @@
+package com.neandertal.pupdownloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.Security;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * HTTP layer shared by the crawler and the downloader.
+ * <p>
+ * One {@link HttpClient} keeps connections alive and reuses them for all requests; HTTPS hosts are spoken to with
+ * HTTP/2 when they support it, so parallel tile requests share one connection. Plain HTTP uses HTTP/1.1 keep-alive, as
+ * the HTTP/2 upgrade from plain HTTP confuses some servers. Host names are cached for the DNS TTL, redirects are not
+ * followed and every request has a timeout. Each call has a blocking and an asynchronous variant.
+ *
+ * @author neandertal
+ *
+ */
+public class HttpService
+{
+    private static final String DNS_CACHE_TTL = "networkaddress.cache.ttl";
+    private static final String HTTPS = "https";
+
+    private final HttpClient client;
+    private final ExecutorService executor;
+    private final String userAgent;
+    private final Duration timeout;
+
+    /**
+     * @param timeout connect and request timeout in milliseconds
+     * @param dnsCacheTtl seconds to cache resolved host names
+     */
+    public HttpService(String userAgent, int timeout, int dnsCacheTtl)
+    {
+        // must be set before the first lookup
+        Security.setProperty(DNS_CACHE_TTL, Integer.toString(dnsCacheTtl));
+
+        this.userAgent = userAgent;
+        this.timeout = Duration.ofMillis(timeout);
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "http-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .connectTimeout(this.timeout)
+                .executor(executor)
+                .build();
+    }
+
+    /**
+     * @return status code of a HEAD request
+     */
+    public int head(String url) throws IOException, InterruptedException
+    {
+        return client.send(request(url, null).method("HEAD", HttpRequest.BodyPublishers.noBody()).build(),
+                HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    public CompletableFuture<Integer> headAsync(String url)
+    {
+        HttpRequest.Builder builder;
+        try
+        {
+            builder = request(url, null);
+        }
+        catch (IOException e)
+        {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return client.sendAsync(builder.method("HEAD", HttpRequest.BodyPublishers.noBody()).build(),
+                HttpResponse.BodyHandlers.discarding()).thenApply(new Function<HttpResponse<Void>, Integer>()
+                {
+                    @Override
+                    public Integer apply(HttpResponse<Void> response)
+                    {
+                        return response.statusCode();
+                    }
+                });
+    }
+
+    /**
+     * GET with the body as a stream, which must be closed. Closing it before the end drops the connection.
+     *
+     * @param headers extra request headers, may be null
+     */
+    public HttpResponse<InputStream> get(String url, Map<String, String> headers)
+            throws IOException, InterruptedException
+    {
+        return client.send(request(url, headers).GET().build(), HttpResponse.BodyHandlers.ofInputStream());
+    }
+
+    public CompletableFuture<HttpResponse<InputStream>> getAsync(String url, Map<String, String> headers)
+    {
+        try
+        {
+            return client.sendAsync(request(url, headers).GET().build(), HttpResponse.BodyHandlers.ofInputStream());
+        }
+        catch (IOException e)
+        {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * GET with the whole body.
+     */
+    public HttpResponse<byte[]> getBytes(String url) throws IOException, InterruptedException
+    {
+        return client.send(request(url, null).GET().build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    public CompletableFuture<HttpResponse<byte[]>> getBytesAsync(String url)
+    {
+        try
+        {
+            return client.sendAsync(request(url, null).GET().build(), HttpResponse.BodyHandlers.ofByteArray());
+        }
+        catch (IOException e)
+        {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Stop the threads of the client; requests in progress are not waited for.
+     */
+    public void close()
+    {
+        executor.shutdownNow();
+    }
+
+    private HttpRequest.Builder request(String url, Map<String, String> headers) throws IOException
+    {
+        URI uri = toURI(url);
+        HttpRequest.Builder builder;
+        try
+        {
+            builder = HttpRequest.newBuilder(uri);
+        }
+        catch (IllegalArgumentException e)
+        {
+            // not http or https
+            throw new MalformedURLException(e.getMessage());
+        }
+        builder.timeout(timeout).header("User-Agent", userAgent);
+        if (!HTTPS.equalsIgnoreCase(uri.getScheme()))
+        {
+            builder.version(HttpClient.Version.HTTP_1_1);
+        }
+        if (headers != null)
+        {
+            for (Map.Entry<String, String> header : headers.entrySet())
+            {
+                builder.header(header.getKey(), header.getValue());
+            }
+        }
+        return builder;
+    }
+
+    /**
+     * Parse the URL, quoting characters like spaces that links often contain but a URI may not.
+     */
+    static URI toURI(String url) throws MalformedURLException
+    {
+        try
+        {
+            return new URI(url);
+        }
+        catch (URISyntaxException e)
+        {
+            // quote below
+        }
+
+        URL u = new URL(url);
+        try
+        {
+            return new URI(u.getProtocol(), u.getUserInfo(), u.getHost(), u.getPort(), u.getPath(), u.getQuery(),
+                    u.getRef());
+        }
+        catch (URISyntaxException e)
+        {
+            throw new MalformedURLException(e.getMessage());
+        }
+    }
+}
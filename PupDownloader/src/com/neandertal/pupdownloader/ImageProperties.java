@@ -0,0 +1,242 @@
+package com.neandertal.pupdownloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * The <code>ImageProperties.xml</code> of a Zoomify image: one element like
+ * <code>&lt;IMAGE_PROPERTIES WIDTH="4000" HEIGHT="3000" NUMTILES="249" NUMIMAGES="1" VERSION="1.8" TILESIZE="256"/&gt;</code>
+ * in the image folder, next to the <code>TileGroup</code> folders.
+ * <p>
+ * The properties give the whole tile pyramid: each zoom level halves the next one until the image fits one tile, and
+ * the tiles are numbered level by level, from the smallest, row by row, and stored 256 to a <code>TileGroup</code>
+ * folder. Converters differ in rounding the halved sizes, so both are tried against <code>NUMTILES</code>.
+ *
+ * @author neandertal
+ *
+ */
+public class ImageProperties
+{
+    public static final String FILE_NAME = "ImageProperties.xml";
+    /** Tiles in each <code>TileGroup</code> folder. */
+    public static final int TILES_PER_GROUP = 256;
+
+    private static final String ELEMENT = "IMAGE_PROPERTIES";
+    private static final int DEFAULT_TILE_SIZE = 256;
+
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int numTiles;
+    /** Columns and rows of tiles per zoom level, smallest first; null if they do not add up to the tile count. */
+    private final int[][] levels;
+
+    public ImageProperties(int width, int height, int tileSize, int numTiles)
+    {
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.numTiles = numTiles;
+        this.levels = width < 1 || height < 1 || tileSize < 1 ? null : findLevels(width, height, tileSize, numTiles);
+    }
+
+    /**
+     * @return the levels halving with rounding up, else with rounding down, whichever gives the tile count if known
+     */
+    private static int[][] findLevels(int width, int height, int tileSize, int numTiles)
+    {
+        int[][] levels = levels(width, height, tileSize, true);
+        if (numTiles < 0 || count(levels) == numTiles) { return levels; }
+
+        levels = levels(width, height, tileSize, false);
+        return count(levels) == numTiles ? levels : null;
+    }
+
+    private static int[][] levels(int width, int height, int tileSize, boolean roundUp)
+    {
+        int count = 1;
+        for (int w = width, h = height; w > tileSize || h > tileSize; w = half(w, roundUp), h = half(h, roundUp))
+        {
+            count++;
+        }
+
+        int[][] levels = new int[count][];
+        int w = width;
+        int h = height;
+        for (int z = count - 1; z >= 0; z--)
+        {
+            levels[z] = new int[] { (w + tileSize - 1) / tileSize, (h + tileSize - 1) / tileSize };
+            w = half(w, roundUp);
+            h = half(h, roundUp);
+        }
+        return levels;
+    }
+
+    private static int half(int size, boolean roundUp)
+    {
+        return roundUp ? (size + 1) / 2 : size / 2;
+    }
+
+    private static long count(int[][] levels)
+    {
+        long count = 0;
+        for (int[] level : levels)
+        {
+            count += (long) level[0] * level[1];
+        }
+        return count;
+    }
+
+    /**
+     * @return the image folder of a page, without the php middleman and ending with a slash
+     */
+    public static String folderOf(String pageURL)
+    {
+        String url = pageURL.replace("displayImage.php?folder=", "");
+        return url.endsWith("/") ? url : url + "/";
+    }
+
+    /**
+     * @return URL of the properties of the image shown by the page
+     */
+    public static String urlOf(String pageURL)
+    {
+        return folderOf(pageURL) + FILE_NAME;
+    }
+
+    /**
+     * @throws IOException if the document is not well formed or has no valid <code>IMAGE_PROPERTIES</code>
+     */
+    public static ImageProperties parse(byte[] xml) throws IOException
+    {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        XMLStreamReader reader = null;
+        try
+        {
+            reader = factory.createXMLStreamReader(new ByteArrayInputStream(xml));
+            while (reader.hasNext())
+            {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT || !ELEMENT.equalsIgnoreCase(reader.getLocalName()))
+                {
+                    continue;
+                }
+
+                int width = attribute(reader, "WIDTH", -1);
+                int height = attribute(reader, "HEIGHT", -1);
+                int tileSize = attribute(reader, "TILESIZE", DEFAULT_TILE_SIZE);
+                int numTiles = attribute(reader, "NUMTILES", -1);
+                if (width < 1 || height < 1 || tileSize < 1) { throw new IOException("Invalid image properties: " + width + "x" + height + ", tile size " + tileSize); }
+
+                return new ImageProperties(width, height, tileSize, numTiles);
+            }
+            throw new IOException("No " + ELEMENT + " element");
+        }
+        catch (XMLStreamException e)
+        {
+            throw new IOException("Malformed image properties: " + e.getMessage(), e);
+        }
+        finally
+        {
+            if (reader != null)
+            {
+                try
+                {
+                    reader.close();
+                }
+                catch (XMLStreamException e)
+                {
+                    // nothing to release
+                }
+            }
+        }
+    }
+
+    private static int attribute(XMLStreamReader reader, String name, int defaultValue) throws IOException
+    {
+        for (int i = 0; i < reader.getAttributeCount(); i++)
+        {
+            if (name.equalsIgnoreCase(reader.getAttributeLocalName(i)))
+            {
+                try
+                {
+                    return Integer.parseInt(reader.getAttributeValue(i).trim());
+                }
+                catch (NumberFormatException e)
+                {
+                    throw new IOException("Invalid " + name + ": " + reader.getAttributeValue(i));
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public int getTileSize()
+    {
+        return tileSize;
+    }
+
+    /**
+     * @return tiles of all zoom levels, or -1 if not given
+     */
+    public int getNumTiles()
+    {
+        return numTiles;
+    }
+
+    /**
+     * @return false if no rounding of the levels gives the tile count, so the tiles must be found by probing
+     */
+    public boolean hasTileGrid()
+    {
+        return levels != null;
+    }
+
+    /**
+     * @return zoom levels; the largest, at full size, is one less
+     */
+    public int getLevelCount()
+    {
+        return levels.length;
+    }
+
+    public int getColumns(int z)
+    {
+        return levels[z][0];
+    }
+
+    public int getRows(int z)
+    {
+        return levels[z][1];
+    }
+
+    /**
+     * @return number of the <code>TileGroup</code> folder of a tile
+     */
+    public int getTileGroup(int z, int x, int y)
+    {
+        long index = 0;
+        for (int level = 0; level < z; level++)
+        {
+            index += (long) levels[level][0] * levels[level][1];
+        }
+        index += (long) y * levels[z][0] + x;
+        return (int) (index / TILES_PER_GROUP);
+    }
+}
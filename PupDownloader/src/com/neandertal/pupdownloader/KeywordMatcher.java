@@ -0,0 +1,325 @@
+package com.neandertal.pupdownloader;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Finds several keywords in one pass over the page text (Aho-Corasick automaton), plus optional regular expressions.
+ * <p>
+ * The automaton is a full transition table for ASCII characters, other characters follow the failure links. Scanning
+ * stops as soon as every keyword has been seen; regular expressions are then run over the whole text. Thread safe once
+ * built.
+ *
+ * @author neandertal
+ *
+ */
+public class KeywordMatcher
+{
+    /** Keywords are tracked in a bit mask. */
+    private static final int MAX_KEYWORDS = 64;
+    private static final int ASCII = 128;
+
+    private final String[] keywords;
+    private final Pattern[] regexes;
+    private final boolean requireAll;
+    private final long allKeywords;
+
+    /** ASCII transitions, <code>[state * ASCII + char]</code>. */
+    private int[] asciiDelta;
+    /** Non-ASCII trie edges per state, null if none. */
+    private List<Map<Character, Integer>> otherEdges;
+    private int[] fail;
+    /** Keywords ending in each state, including those reached by failure links. */
+    private long[] output;
+
+    /**
+     * @param requireAll if true all keywords and regular expressions must be found, otherwise any of them
+     */
+    public KeywordMatcher(List<String> keywords, List<String> regexes, boolean requireAll)
+    {
+        if (keywords.size() > MAX_KEYWORDS) { throw new IllegalArgumentException("Too many keywords: " + keywords.size()); }
+        if (keywords.isEmpty() && regexes.isEmpty()) { throw new IllegalArgumentException("No keyword"); }
+
+        this.keywords = keywords.toArray(new String[keywords.size()]);
+        this.regexes = new Pattern[regexes.size()];
+        for (int i = 0; i < this.regexes.length; i++)
+        {
+            this.regexes[i] = Pattern.compile(regexes.get(i));
+        }
+        this.requireAll = requireAll;
+        this.allKeywords = this.keywords.length == MAX_KEYWORDS ? -1L : (1L << this.keywords.length) - 1;
+
+        build();
+    }
+
+    /**
+     * Split a parameter value like <code>a|b|c</code>; empty parts are dropped.
+     */
+    public static List<String> split(String value)
+    {
+        if (value == null || value.isEmpty()) { return Collections.emptyList(); }
+
+        List<String> result = new ArrayList<String>();
+        for (String part : value.split("\\|"))
+        {
+            if (!part.isEmpty())
+            {
+                result.add(part);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Describe what the matcher looks for: the mode, the keywords and the regular expressions. Matchers with the same
+     * description match the same pages.
+     */
+    public String describe()
+    {
+        StringBuilder sb = new StringBuilder(requireAll ? "all" : "any");
+        for (String keyword : keywords)
+        {
+            sb.append("\nkeyword:").append(keyword);
+        }
+        for (Pattern regex : regexes)
+        {
+            sb.append("\nregex:").append(regex.pattern());
+        }
+        return sb.toString();
+    }
+
+    public Result match(CharSequence text)
+    {
+        Scan scan = new Scan();
+        scan(text, 0, text.length(), scan);
+        return result(scan.found, text);
+    }
+
+    /**
+     * Run the automaton over <code>text[from, to)</code>, continuing from the scan state.
+     */
+    private void scan(CharSequence text, int from, int to, Scan scan)
+    {
+        long all = allKeywords;
+        int[] delta = asciiDelta;
+        int state = scan.state;
+        long found = scan.found;
+        for (int i = from; i < to && found != all; i++)
+        {
+            char c = text.charAt(i);
+            if (c < ASCII)
+            {
+                state = delta[state * ASCII + c];
+            }
+            else
+            {
+                state = next(state, c);
+            }
+            found |= output[state];
+        }
+        scan.state = state;
+        scan.found = found;
+    }
+
+    private int next(int state, char c)
+    {
+        while (true)
+        {
+            Map<Character, Integer> edges = otherEdges.get(state);
+            Integer target = edges == null ? null : edges.get(c);
+            if (target != null) { return target; }
+            if (state == 0) { return 0; }
+
+            state = fail[state];
+        }
+    }
+
+    private Result result(long found, CharSequence text)
+    {
+        List<String> matched = new ArrayList<String>();
+        for (int i = 0; i < keywords.length; i++)
+        {
+            if ((found & (1L << i)) != 0)
+            {
+                matched.add(keywords[i]);
+            }
+        }
+
+        int total = keywords.length + regexes.length;
+        for (Pattern regex : regexes)
+        {
+            if (regex.matcher(text).find())
+            {
+                matched.add(regex.pattern());
+            }
+        }
+
+        boolean matches = requireAll ? matched.size() == total : !matched.isEmpty();
+        return new Result(matches, matched);
+    }
+
+    private void build()
+    {
+        // trie with ASCII edges in a table (-1 = none) and other edges in maps
+        List<int[]> ascii = new ArrayList<int[]>();
+        otherEdges = new ArrayList<Map<Character, Integer>>();
+        List<Long> outputs = new ArrayList<Long>();
+        ascii.add(newRow());
+        otherEdges.add(null);
+        outputs.add(0L);
+
+        for (int k = 0; k < keywords.length; k++)
+        {
+            String keyword = keywords[k];
+            if (keyword.isEmpty()) { throw new IllegalArgumentException("Empty keyword"); }
+
+            int state = 0;
+            for (int i = 0; i < keyword.length(); i++)
+            {
+                char c = keyword.charAt(i);
+                int target = c < ASCII ? ascii.get(state)[c] : edge(otherEdges.get(state), c);
+                if (target == -1)
+                {
+                    target = ascii.size();
+                    ascii.add(newRow());
+                    otherEdges.add(null);
+                    outputs.add(0L);
+                    if (c < ASCII)
+                    {
+                        ascii.get(state)[c] = target;
+                    }
+                    else
+                    {
+                        if (otherEdges.get(state) == null)
+                        {
+                            otherEdges.set(state, new HashMap<Character, Integer>());
+                        }
+                        otherEdges.get(state).put(c, target);
+                    }
+                }
+                state = target;
+            }
+            outputs.set(state, outputs.get(state) | (1L << k));
+        }
+
+        int states = ascii.size();
+        fail = new int[states];
+        output = new long[states];
+        asciiDelta = new int[states * ASCII];
+        for (int s = 0; s < states; s++)
+        {
+            output[s] = outputs.get(s);
+        }
+
+        // breadth first: failure links, and ASCII edges completed into a full transition table
+        ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+        int[] root = ascii.get(0);
+        for (int c = 0; c < ASCII; c++)
+        {
+            int target = root[c];
+            if (target == -1)
+            {
+                asciiDelta[c] = 0;
+            }
+            else
+            {
+                asciiDelta[c] = target;
+                fail[target] = 0;
+                queue.add(target);
+            }
+        }
+        if (otherEdges.get(0) != null)
+        {
+            for (int target : otherEdges.get(0).values())
+            {
+                fail[target] = 0;
+                queue.add(target);
+            }
+        }
+
+        while (!queue.isEmpty())
+        {
+            int state = queue.poll();
+            output[state] |= output[fail[state]];
+
+            int[] row = ascii.get(state);
+            for (int c = 0; c < ASCII; c++)
+            {
+                int target = row[c];
+                if (target == -1)
+                {
+                    asciiDelta[state * ASCII + c] = asciiDelta[fail[state] * ASCII + c];
+                }
+                else
+                {
+                    asciiDelta[state * ASCII + c] = target;
+                    fail[target] = asciiDelta[fail[state] * ASCII + c];
+                    queue.add(target);
+                }
+            }
+
+            Map<Character, Integer> edges = otherEdges.get(state);
+            if (edges != null)
+            {
+                for (Map.Entry<Character, Integer> edge : edges.entrySet())
+                {
+                    int target = edge.getValue();
+                    fail[target] = next(fail[state], edge.getKey());
+                    queue.add(target);
+                }
+            }
+        }
+    }
+
+    private static int[] newRow()
+    {
+        int[] row = new int[ASCII];
+        Arrays.fill(row, -1);
+        return row;
+    }
+
+    private static int edge(Map<Character, Integer> edges, char c)
+    {
+        if (edges == null) { return -1; }
+
+        Integer target = edges.get(c);
+        return target == null ? -1 : target;
+    }
+
+    private static class Scan
+    {
+        protected int state = 0;
+        protected long found = 0;
+    }
+
+    /**
+     * Outcome of a match: whether the page matches and which keywords and regular expressions were found.
+     */
+    public static class Result
+    {
+        private final boolean matches;
+        private final List<String> found;
+
+        public Result(boolean matches, List<String> found)
+        {
+            this.matches = matches;
+            this.found = found;
+        }
+
+        public boolean matches()
+        {
+            return matches;
+        }
+
+        public List<String> getFound()
+        {
+            return found;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package com.neandertal.pupdownloader;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pulls the <code>href</code> of <code>a</code> tags out of HTML in one forward pass, without building a DOM.
+ * <p>
+ * Comments and the contents of <code>script</code>, <code>style</code>, <code>textarea</code> and <code>title</code>
+ * are skipped, the first <code>base href</code> changes the base URL and character references in the value are
+ * decoded. Links are resolved like Jsoup's <code>absUrl("href")</code>. If the markup ends inside a tag, quoted value
+ * or comment the result is marked malformed, and the caller should parse the page with Jsoup instead.
+ *
+ * @author neandertal
+ *
+ */
+public class LinkExtractor
+{
+    private LinkExtractor()
+    {
+    }
+
+    /**
+     * @return absolute links in document order, or null if the markup is malformed
+     */
+    public static List<String> extract(CharSequence html, String baseURL)
+    {
+        URL base;
+        try
+        {
+            base = new URL(baseURL);
+        }
+        catch (MalformedURLException e)
+        {
+            return null;
+        }
+
+        List<String> links = new ArrayList<String>();
+        Tag tag = new Tag();
+        boolean baseSeen = false;
+        int length = html.length();
+        int i = 0;
+        while (i < length)
+        {
+            int lt = indexOf(html, '<', i);
+            if (lt == -1 || lt + 1 >= length)
+            {
+                break;
+            }
+
+            char c = html.charAt(lt + 1);
+            if (c == '!')
+            {
+                if (startsWith(html, lt + 2, "--"))
+                {
+                    int end = indexOf(html, "-->", lt + 4);
+                    if (end == -1) { return null; }
+                    i = end + 3;
+                }
+                else
+                {
+                    // doctype or CDATA
+                    int end = indexOf(html, '>', lt + 2);
+                    if (end == -1) { return null; }
+                    i = end + 1;
+                }
+                continue;
+            }
+
+            if (!isLetter(c) && c != '/')
+            {
+                // a lone '<' in text
+                i = lt + 1;
+                continue;
+            }
+
+            int nameStart = c == '/' ? lt + 2 : lt + 1;
+            int nameEnd = nameStart;
+            while (nameEnd < length && isNameChar(html.charAt(nameEnd)))
+            {
+                nameEnd++;
+            }
+
+            tag.href = null;
+            int end = parseAttributes(html, nameEnd, tag);
+            if (end == -1) { return null; }
+            i = end + 1;
+
+            if (c == '/')
+            {
+                continue;
+            }
+
+            int nameLength = nameEnd - nameStart;
+            if (nameLength == 1 && (html.charAt(nameStart) | 0x20) == 'a')
+            {
+                if (tag.href != null)
+                {
+                    String link = resolve(base, decode(tag.href));
+                    if (link != null)
+                    {
+                        links.add(link);
+                    }
+                }
+            }
+            else if (!baseSeen && equalsIgnoreCase(html, nameStart, nameLength, "base") && tag.href != null)
+            {
+                baseSeen = true;
+                try
+                {
+                    base = new URL(base, decode(tag.href).trim());
+                }
+                catch (MalformedURLException e)
+                {
+                    // keep the page URL
+                }
+            }
+            else if (isRawText(html, nameStart, nameLength))
+            {
+                int close = indexOfCloseTag(html, i, html.subSequence(nameStart, nameEnd).toString());
+                if (close == -1) { return null; }
+                i = close;
+            }
+        }
+
+        return links;
+    }
+
+    /**
+     * Parse attributes from <code>from</code> up to the end of the tag, keeping <code>href</code>.
+     *
+     * @return index of the closing '&gt;' or -1 if the input ends inside the tag
+     */
+    private static int parseAttributes(CharSequence html, int from, Tag tag)
+    {
+        int length = html.length();
+        int i = from;
+        while (i < length)
+        {
+            char c = html.charAt(i);
+            if (c == '>') { return i; }
+            if (isSpace(c) || c == '/')
+            {
+                i++;
+                continue;
+            }
+
+            int nameStart = i;
+            while (i < length && !isSpace(html.charAt(i)) && html.charAt(i) != '=' && html.charAt(i) != '>'
+                    && html.charAt(i) != '/')
+            {
+                i++;
+            }
+            int nameEnd = i;
+
+            while (i < length && isSpace(html.charAt(i)))
+            {
+                i++;
+            }
+            if (i >= length) { return -1; }
+            if (html.charAt(i) != '=')
+            {
+                // attribute without value
+                continue;
+            }
+
+            i++;
+            while (i < length && isSpace(html.charAt(i)))
+            {
+                i++;
+            }
+            if (i >= length) { return -1; }
+
+            int valueStart;
+            int valueEnd;
+            char quote = html.charAt(i);
+            if (quote == '"' || quote == '\'')
+            {
+                valueStart = i + 1;
+                valueEnd = indexOf(html, quote, valueStart);
+                if (valueEnd == -1) { return -1; }
+                i = valueEnd + 1;
+            }
+            else
+            {
+                valueStart = i;
+                while (i < length && !isSpace(html.charAt(i)) && html.charAt(i) != '>')
+                {
+                    i++;
+                }
+                valueEnd = i;
+            }
+
+            if (tag.href == null && equalsIgnoreCase(html, nameStart, nameEnd - nameStart, "href"))
+            {
+                tag.href = html.subSequence(valueStart, valueEnd).toString();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Resolve like Jsoup 1.8: a link starting with '?' keeps the base path.
+     */
+    private static String resolve(URL base, String link)
+    {
+        try
+        {
+            link = link.trim();
+            if (link.startsWith("?"))
+            {
+                link = base.getPath() + link;
+            }
+            return new URL(base, link).toExternalForm();
+        }
+        catch (MalformedURLException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Decode the character references that occur in URLs.
+     */
+    static String decode(String value)
+    {
+        int amp = value.indexOf('&');
+        if (amp == -1) { return value; }
+
+        StringBuilder sb = new StringBuilder(value.length());
+        sb.append(value, 0, amp);
+        int i = amp;
+        while (i < value.length())
+        {
+            char c = value.charAt(i);
+            if (c != '&')
+            {
+                sb.append(c);
+                i++;
+                continue;
+            }
+
+            int semicolon = value.indexOf(';', i);
+            if (semicolon == -1 || semicolon - i > 10)
+            {
+                sb.append(c);
+                i++;
+                continue;
+            }
+
+            String entity = value.substring(i + 1, semicolon);
+            int code = -1;
+            if (entity.startsWith("#x") || entity.startsWith("#X"))
+            {
+                code = parseCode(entity.substring(2), 16);
+            }
+            else if (entity.startsWith("#"))
+            {
+                code = parseCode(entity.substring(1), 10);
+            }
+            else if ("amp".equals(entity))
+            {
+                code = '&';
+            }
+            else if ("quot".equals(entity))
+            {
+                code = '"';
+            }
+            else if ("apos".equals(entity))
+            {
+                code = '\'';
+            }
+            else if ("lt".equals(entity))
+            {
+                code = '<';
+            }
+            else if ("gt".equals(entity))
+            {
+                code = '>';
+            }
+            else if ("nbsp".equals(entity))
+            {
+                code = 0xa0;
+            }
+
+            if (code == -1)
+            {
+                sb.append(c);
+                i++;
+            }
+            else
+            {
+                sb.appendCodePoint(code);
+                i = semicolon + 1;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static int parseCode(String s, int radix)
+    {
+        try
+        {
+            int code = Integer.parseInt(s, radix);
+            return Character.isValidCodePoint(code) ? code : -1;
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    /** Elements whose content is not markup. */
+    private static boolean isRawText(CharSequence html, int nameStart, int nameLength)
+    {
+        return equalsIgnoreCase(html, nameStart, nameLength, "script")
+                || equalsIgnoreCase(html, nameStart, nameLength, "style")
+                || equalsIgnoreCase(html, nameStart, nameLength, "textarea")
+                || equalsIgnoreCase(html, nameStart, nameLength, "title");
+    }
+
+    private static int indexOfCloseTag(CharSequence html, int from, String name)
+    {
+        int i = from;
+        while (true)
+        {
+            int lt = indexOf(html, "</", i);
+            if (lt == -1) { return -1; }
+            if (equalsIgnoreCase(html, lt + 2, name.length(), name))
+            {
+                return lt;
+            }
+            i = lt + 2;
+        }
+    }
+
+    private static int indexOf(CharSequence s, char c, int from)
+    {
+        for (int i = from; i < s.length(); i++)
+        {
+            if (s.charAt(i) == c) { return i; }
+        }
+        return -1;
+    }
+
+    private static int indexOf(CharSequence s, String target, int from)
+    {
+        char first = target.charAt(0);
+        int max = s.length() - target.length();
+        for (int i = from; i <= max; i++)
+        {
+            if (s.charAt(i) == first && startsWith(s, i, target)) { return i; }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(CharSequence s, int offset, String prefix)
+    {
+        if (offset + prefix.length() > s.length()) { return false; }
+
+        for (int i = 0; i < prefix.length(); i++)
+        {
+            if (s.charAt(offset + i) != prefix.charAt(i)) { return false; }
+        }
+        return true;
+    }
+
+    /** Compare with a lower case ASCII name. */
+    private static boolean equalsIgnoreCase(CharSequence s, int offset, int length, String lowerName)
+    {
+        if (length != lowerName.length() || offset + length > s.length()) { return false; }
+
+        for (int i = 0; i < length; i++)
+        {
+            if ((s.charAt(offset + i) | 0x20) != lowerName.charAt(i)) { return false; }
+        }
+        return true;
+    }
+
+    private static boolean isLetter(char c)
+    {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isNameChar(char c)
+    {
+        return !isSpace(c) && c != '>' && c != '/';
+    }
+
+    private static boolean isSpace(char c)
+    {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    private static class Tag
+    {
+        protected String href;
+    }
+}
@@ -0,0 +1,340 @@
+package com.neandertal.pupdownloader;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Checks that pages matching the keywords really show a Zoomify image, off the crawler threads.
+ * <p>
+ * Candidates are put into a bounded queue and taken by a fixed number of verification threads, so a crawler thread
+ * goes on with the links of its page instead of waiting for the image host. A candidate is verified by fetching the
+ * <code>ImageProperties.xml</code> of its image, which also gives its size and tile count; if there is none or it
+ * cannot be parsed, by a HEAD request for the first tile, as before. Requests go through the same
+ * {@link HostLimiter} as the pages. Failures worth retrying are retried by the same thread after a doubling backoff.
+ * When the queue is full, {@link #submit} blocks the crawler thread. Thread safe.
+ *
+ * @author neandertal
+ *
+ */
+public class MatchVerifier
+{
+    private static final String FIRST_TILE = "TileGroup0/0-0-0.jpg";
+    private static final long MAX_RETRY_DELAY = 60000;
+
+    /** Tells a verification thread to stop. */
+    private static final Candidate STOP = new Candidate(null, null);
+
+    private final HttpService http;
+    private final HostLimiter hostLimiter;
+    private final Listener listener;
+    private final int maxRetries;
+    private final long retryDelay;
+    private final BlockingQueue<Candidate> queue;
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private final AsyncLogger logger;
+    private final Metrics.Histogram verifyTime;
+    /** Candidates given up by {@link #finish(boolean)} while waiting for a retry. */
+    private final List<Candidate> abandoned = Collections.synchronizedList(new ArrayList<Candidate>());
+    private volatile boolean dropping = false;
+
+    /**
+     * @param capacity candidates queued before {@link #submit} blocks
+     * @param retryDelay backoff before the first retry, in milliseconds
+     * @param verifyTime records how long a candidate took, retries included
+     */
+    public MatchVerifier(HttpService http, HostLimiter hostLimiter, Listener listener, int threads, int capacity,
+            int maxRetries, long retryDelay, AsyncLogger logger, Metrics.Histogram verifyTime)
+    {
+        this.http = http;
+        this.hostLimiter = hostLimiter;
+        this.listener = listener;
+        this.maxRetries = maxRetries;
+        this.retryDelay = retryDelay;
+        this.queue = new ArrayBlockingQueue<Candidate>(capacity);
+        this.logger = logger;
+        this.verifyTime = verifyTime;
+        for (int i = 0; i < threads; i++)
+        {
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    work();
+                }
+            }, "verifier-" + (i + 1));
+            thread.setDaemon(true);
+            workers.add(thread);
+        }
+    }
+
+    public void start()
+    {
+        for (Thread thread : workers)
+        {
+            thread.start();
+        }
+    }
+
+    /**
+     * Queue the candidate, waiting while the queue is full.
+     */
+    public void submit(FrontierEntry entry, List<String> keywords) throws InterruptedException
+    {
+        queue.put(new Candidate(entry, keywords));
+    }
+
+    /**
+     * @return candidates waiting for a verification thread
+     */
+    public int size()
+    {
+        return queue.size();
+    }
+
+    /**
+     * Stop the verification threads after the queued candidates, or, if not draining, after the requests in
+     * progress.
+     *
+     * @return the candidates not verified, to be visited again on a later run
+     */
+    public List<Candidate> finish(boolean drain) throws InterruptedException
+    {
+        List<Candidate> dropped = new ArrayList<Candidate>();
+        if (!drain)
+        {
+            dropping = true;
+            queue.drainTo(dropped);
+        }
+        else if (!queue.isEmpty())
+        {
+            logger.info("Waiting for {0} matches to verify...", queue.size());
+        }
+
+        for (int i = 0; i < workers.size(); i++)
+        {
+            queue.put(STOP);
+        }
+        for (Thread thread : workers)
+        {
+            thread.join();
+        }
+        dropped.addAll(abandoned);
+        return dropped;
+    }
+
+    private void work()
+    {
+        while (true)
+        {
+            Candidate candidate;
+            try
+            {
+                candidate = queue.take();
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            if (candidate == STOP) { return; }
+
+            long start = System.nanoTime();
+            try
+            {
+                verify(candidate);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            catch (RuntimeException e)
+            {
+                logger.error(e);
+            }
+            verifyTime.observeSince(start);
+        }
+    }
+
+    private void verify(Candidate candidate) throws InterruptedException
+    {
+        String url = candidate.entry.url;
+        for (int attempt = 0;; attempt++)
+        {
+            if (dropping)
+            {
+                abandoned.add(candidate);
+                return;
+            }
+
+            try
+            {
+                ImageProperties properties = fetchProperties(url);
+                if (properties != null || headFirstTile(url))
+                {
+                    listener.verified(candidate, properties);
+                }
+                else
+                {
+                    listener.rejected(candidate);
+                }
+                return;
+            }
+            catch (Transient e)
+            {
+                if (attempt >= maxRetries)
+                {
+                    logger.warn("Cannot verify {0}: {1}", url, e.getMessage());
+                    listener.rejected(candidate);
+                    return;
+                }
+
+                long delay = e.retryAfter >= 0 ? e.retryAfter : Math.min(retryDelay << attempt, MAX_RETRY_DELAY);
+                logger.info("Verification of {0} failed with {1}, retry in {2} ms.", url, e.getMessage(), delay);
+                long end = System.currentTimeMillis() + delay;
+                while (!dropping && System.currentTimeMillis() < end)
+                {
+                    Thread.sleep(Math.min(500, Math.max(1, end - System.currentTimeMillis())));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the properties of the image, or null if there are none
+     */
+    private ImageProperties fetchProperties(String pageURL) throws Transient, InterruptedException
+    {
+        String url = ImageProperties.urlOf(pageURL);
+        logger.debug("Check image properties: {0}", url);
+        HttpResponse<byte[]> response;
+        String host = hostLimiter.acquire(url);
+        try
+        {
+            long start = System.currentTimeMillis();
+            try
+            {
+                response = http.getBytes(url);
+            }
+            catch (IOException e)
+            {
+                hostLimiter.failure(host, start, -1);
+                throw new Transient(e.toString(), -1);
+            }
+            if (WebCrawler.isRetryable(response.statusCode()))
+            {
+                long retryAfter = PageFetcher.parseRetryAfter(response.headers().firstValue("Retry-After").orElse(null));
+                hostLimiter.failure(host, start, retryAfter);
+                throw new Transient("status " + response.statusCode(), retryAfter);
+            }
+            hostLimiter.success(host, start);
+        }
+        finally
+        {
+            hostLimiter.release(host);
+        }
+
+        if (response.statusCode() != HttpURLConnection.HTTP_OK) { return null; }
+
+        try
+        {
+            return ImageProperties.parse(response.body());
+        }
+        catch (IOException e)
+        {
+            logger.debug("Invalid image properties {0}: {1}", url, e.getMessage());
+            return null;
+        }
+    }
+
+    private boolean headFirstTile(String pageURL) throws Transient, InterruptedException
+    {
+        String url = ImageProperties.folderOf(pageURL) + FIRST_TILE;
+        logger.debug("Check URL image: {0}", url);
+        String host = hostLimiter.acquire(url);
+        try
+        {
+            long start = System.currentTimeMillis();
+            int status;
+            try
+            {
+                status = http.head(url);
+            }
+            catch (IOException e)
+            {
+                hostLimiter.failure(host, start, -1);
+                throw new Transient(e.toString(), -1);
+            }
+            if (WebCrawler.isRetryable(status))
+            {
+                hostLimiter.failure(host, start, -1);
+                throw new Transient("status " + status, -1);
+            }
+            hostLimiter.success(host, start);
+            return status == HttpURLConnection.HTTP_OK;
+        }
+        finally
+        {
+            hostLimiter.release(host);
+        }
+    }
+
+    /**
+     * Told the outcome of each candidate, on a verification thread.
+     */
+    public interface Listener
+    {
+        /**
+         * @param properties null if the image was only found by its first tile
+         */
+        void verified(Candidate candidate, ImageProperties properties) throws InterruptedException;
+
+        void rejected(Candidate candidate);
+    }
+
+    /**
+     * A page matching the keywords.
+     */
+    public static class Candidate
+    {
+        private final FrontierEntry entry;
+        private final List<String> keywords;
+
+        private Candidate(FrontierEntry entry, List<String> keywords)
+        {
+            this.entry = entry;
+            this.keywords = keywords;
+        }
+
+        public FrontierEntry getEntry()
+        {
+            return entry;
+        }
+
+        public List<String> getKeywords()
+        {
+            return keywords;
+        }
+    }
+
+    /**
+     * Failed in a way worth retrying.
+     */
+    private static class Transient extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final long retryAfter;
+
+        private Transient(String message, long retryAfter)
+        {
+            super(message);
+            this.retryAfter = retryAfter;
+        }
+    }
+}
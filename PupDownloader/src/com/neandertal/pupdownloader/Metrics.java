@@ -0,0 +1,325 @@
+package com.neandertal.pupdownloader;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, gauges and latency histograms of a tool, readable while it runs.
+ * <p>
+ * Updates are lock free ({@link LongAdder}), so workers can record every page and tile. Metrics are registered once
+ * at start and read by {@link MetricsJmx} as MBean attributes and by {@link MetricsServer} in the Prometheus text
+ * format. Histograms count observations in fixed buckets from 1 ms to 10 s; the JMX view adds the mean and the 50th
+ * and 99th percentile estimated from the buckets. Thread safe.
+ *
+ * @author neandertal
+ *
+ */
+public class Metrics
+{
+    /** Upper bounds of the histogram buckets in seconds. */
+    private static final double[] BUCKETS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+    private final String prefix;
+    private final List<Metric> metrics = new CopyOnWriteArrayList<Metric>();
+
+    /**
+     * @param prefix put before every metric name, like <code>pup_crawler</code>
+     */
+    public Metrics(String prefix)
+    {
+        this.prefix = prefix;
+    }
+
+    public Counter counter(String name, String help)
+    {
+        Counter counter = new Counter(prefix + "_" + name, help);
+        metrics.add(counter);
+        return counter;
+    }
+
+    public Histogram histogram(String name, String help)
+    {
+        Histogram histogram = new Histogram(prefix + "_" + name, help);
+        metrics.add(histogram);
+        return histogram;
+    }
+
+    public void gauge(String name, String help, Gauge gauge)
+    {
+        metrics.add(new GaugeMetric(prefix + "_" + name, help, gauge));
+    }
+
+    /**
+     * All metrics in the Prometheus text exposition format.
+     */
+    public String toPrometheus()
+    {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Metric metric : metrics)
+        {
+            sb.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            sb.append("# TYPE ").append(metric.name).append(' ').append(metric.type()).append('\n');
+            metric.writeTo(sb);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Current values by name, histograms split into count, sum, mean and percentiles.
+     */
+    public Map<String, Object> snapshot()
+    {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        for (Metric metric : metrics)
+        {
+            metric.putValues(values);
+        }
+        return values;
+    }
+
+    /**
+     * Descriptions by the names of {@link #snapshot()}.
+     */
+    public Map<String, String> descriptions()
+    {
+        Map<String, String> descriptions = new LinkedHashMap<String, String>();
+        for (Metric metric : metrics)
+        {
+            Map<String, Object> values = new LinkedHashMap<String, Object>();
+            metric.putValues(values);
+            for (String name : values.keySet())
+            {
+                descriptions.put(name, metric.help);
+            }
+        }
+        return descriptions;
+    }
+
+    private static String format(double value)
+    {
+        if (value == Math.rint(value) && !Double.isInfinite(value)) { return Long.toString((long) value); }
+
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    /**
+     * Value read when the metrics are read.
+     */
+    public interface Gauge
+    {
+        double value();
+    }
+
+    private abstract static class Metric
+    {
+        protected final String name;
+        protected final String help;
+
+        protected Metric(String name, String help)
+        {
+            this.name = name;
+            this.help = help;
+        }
+
+        protected abstract String type();
+
+        protected abstract void writeTo(StringBuilder sb);
+
+        protected abstract void putValues(Map<String, Object> values);
+    }
+
+    public static class Counter extends Metric
+    {
+        private final LongAdder value = new LongAdder();
+
+        private Counter(String name, String help)
+        {
+            super(name + "_total", help);
+        }
+
+        public void inc()
+        {
+            value.increment();
+        }
+
+        public void add(long n)
+        {
+            value.add(n);
+        }
+
+        public long get()
+        {
+            return value.sum();
+        }
+
+        @Override
+        protected String type()
+        {
+            return "counter";
+        }
+
+        @Override
+        protected void writeTo(StringBuilder sb)
+        {
+            sb.append(name).append(' ').append(value.sum()).append('\n');
+        }
+
+        @Override
+        protected void putValues(Map<String, Object> values)
+        {
+            values.put(name, value.sum());
+        }
+    }
+
+    private static class GaugeMetric extends Metric
+    {
+        private final Gauge gauge;
+
+        private GaugeMetric(String name, String help, Gauge gauge)
+        {
+            super(name, help);
+            this.gauge = gauge;
+        }
+
+        @Override
+        protected String type()
+        {
+            return "gauge";
+        }
+
+        @Override
+        protected void writeTo(StringBuilder sb)
+        {
+            sb.append(name).append(' ').append(format(gauge.value())).append('\n');
+        }
+
+        @Override
+        protected void putValues(Map<String, Object> values)
+        {
+            values.put(name, gauge.value());
+        }
+    }
+
+    /**
+     * Durations in seconds.
+     */
+    public static class Histogram extends Metric
+    {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Histogram(String name, String help)
+        {
+            super(name, help);
+            for (int i = 0; i < buckets.length; i++)
+            {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Record the time since a {@link System#nanoTime()} taken at the start.
+         */
+        public void observeSince(long startNanos)
+        {
+            observe((System.nanoTime() - startNanos) / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+
+        public void observe(double seconds)
+        {
+            int i = 0;
+            while (i < BUCKETS.length && seconds > BUCKETS[i])
+            {
+                i++;
+            }
+            buckets[i].increment();
+            count.increment();
+            sum.add(seconds);
+        }
+
+        public long getCount()
+        {
+            return count.sum();
+        }
+
+        /**
+         * @return upper bound of the bucket holding the quantile, or the largest bound if it is above all
+         */
+        public double quantile(double q)
+        {
+            long[] counts = counts();
+            long total = 0;
+            for (long c : counts)
+            {
+                total += c;
+            }
+            if (total == 0) { return 0; }
+
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS.length; i++)
+            {
+                seen += counts[i];
+                if (seen >= rank) { return BUCKETS[i]; }
+            }
+            return BUCKETS[BUCKETS.length - 1];
+        }
+
+        private long[] counts()
+        {
+            long[] counts = new long[buckets.length];
+            for (int i = 0; i < buckets.length; i++)
+            {
+                counts[i] = buckets[i].sum();
+            }
+            return counts;
+        }
+
+        @Override
+        protected String type()
+        {
+            return "histogram";
+        }
+
+        @Override
+        protected void writeTo(StringBuilder sb)
+        {
+            long[] counts = counts();
+            long cumulative = 0;
+            List<String> bounds = new ArrayList<String>(counts.length);
+            for (double bound : BUCKETS)
+            {
+                bounds.add(Double.toString(bound));
+            }
+            bounds.add("+Inf");
+            for (int i = 0; i < counts.length; i++)
+            {
+                cumulative += counts[i];
+                sb.append(name).append("_bucket{le=\"").append(bounds.get(i)).append("\"} ").append(cumulative)
+                        .append('\n');
+            }
+            sb.append(name).append("_sum ").append(format(sum.sum())).append('\n');
+            sb.append(name).append("_count ").append(cumulative).append('\n');
+        }
+
+        @Override
+        protected void putValues(Map<String, Object> values)
+        {
+            long n = count.sum();
+            double total = sum.sum();
+            values.put(name + "_count", n);
+            values.put(name + "_sum", total);
+            values.put(name + "_mean", n == 0 ? 0.0 : total / n);
+            values.put(name + "_p50", quantile(0.5));
+            values.put(name + "_p99", quantile(0.99));
+        }
+    }
+}
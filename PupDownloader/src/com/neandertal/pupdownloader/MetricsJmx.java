@@ -0,0 +1,131 @@
+package com.neandertal.pupdownloader;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes {@link Metrics} as the read only attributes of an MBean, for jconsole or VisualVM.
+ * <p>
+ * The attributes are the names of {@link Metrics#snapshot()}; as metrics are registered at start, the MBean info is
+ * built once.
+ *
+ * @author neandertal
+ *
+ */
+public class MetricsJmx implements DynamicMBean
+{
+    private static final String DOMAIN = "com.neandertal.pupdownloader";
+
+    private final Metrics metrics;
+    private final MBeanInfo info;
+    private ObjectName objectName;
+
+    public MetricsJmx(Metrics metrics, String description)
+    {
+        this.metrics = metrics;
+        Map<String, Object> values = metrics.snapshot();
+        Map<String, String> descriptions = metrics.descriptions();
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>(values.size());
+        for (Map.Entry<String, Object> value : values.entrySet())
+        {
+            attributes.add(new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+                    descriptions.get(value.getKey()), true, false, false));
+        }
+        this.info = new MBeanInfo(getClass().getName(), description,
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0],
+                null);
+    }
+
+    /**
+     * Register with the platform MBean server under <code>com.neandertal.pupdownloader:type=&lt;type&gt;</code>.
+     */
+    public void register(String type) throws JMException
+    {
+        objectName = new ObjectName(DOMAIN, "type", type);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(objectName))
+        {
+            // a tool run twice in one JVM
+            server.unregisterMBean(objectName);
+        }
+        server.registerMBean(this, objectName);
+    }
+
+    public void unregister()
+    {
+        if (objectName == null) { return; }
+
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        }
+        catch (JMException e)
+        {
+            // already gone
+        }
+        objectName = null;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException
+    {
+        Object value = metrics.snapshot().get(attribute);
+        if (value == null) { throw new AttributeNotFoundException(attribute); }
+
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes)
+    {
+        Map<String, Object> values = metrics.snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes)
+        {
+            Object value = values.get(attribute);
+            if (value != null)
+            {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+    {
+        throw new AttributeNotFoundException("Read only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes)
+    {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+    {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo()
+    {
+        return info;
+    }
+}
@@ -0,0 +1,93 @@
+package com.neandertal.pupdownloader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves {@link Metrics} in the Prometheus text format at <code>http://127.0.0.1:&lt;port&gt;/metrics</code>.
+ * <p>
+ * Binds to the loopback address only, so the metrics are not visible from other machines. Requests are answered by
+ * one daemon thread.
+ *
+ * @author neandertal
+ *
+ */
+public class MetricsServer
+{
+    private static final String PATH = "/metrics";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public MetricsServer(final Metrics metrics, int port) throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext(PATH, new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                try
+                {
+                    if (!"GET".equals(exchange.getRequestMethod()))
+                    {
+                        exchange.sendResponseHeaders(405, -1);
+                        return;
+                    }
+
+                    byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                }
+                finally
+                {
+                    exchange.close();
+                }
+            }
+        });
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "metrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+    }
+
+    public void start()
+    {
+        server.start();
+    }
+
+    /**
+     * @return the port, useful when started on port 0
+     */
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    public void stop()
+    {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
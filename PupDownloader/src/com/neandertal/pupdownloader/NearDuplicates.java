@@ -0,0 +1,271 @@
+package com.neandertal.pupdownloader;
+
+import java.util.Arrays;
+
+/**
+ * Recognizes pages whose text is nearly the same as the text of a page seen before, like calendar days, sort orders
+ * and filter permutations of one listing.
+ * <p>
+ * A page is reduced to a 64 bit SimHash of its visible text: every distinct shingle of three words votes on each bit
+ * with its own hash, so pages sharing most shingles get fingerprints that differ in few bits. Markup, scripts and
+ * styles are skipped. Pages with too little text get no fingerprint and are never duplicates.
+ * <p>
+ * The fingerprints seen are indexed to find one within the maximum Hamming distance without comparing all of them:
+ * the 64 bits are cut into one block more than the distance, so a near duplicate matches at least one block exactly.
+ * Each block has an open addressing table of fingerprints hashed by that block, 8 bytes per slot. Thread safe.
+ *
+ * @author neandertal
+ *
+ */
+public class NearDuplicates
+{
+    /** Words per shingle. */
+    private static final int SHINGLE = 3;
+    /** Fewer distinct shingles give no fingerprint. */
+    private static final int MIN_SHINGLES = 8;
+    private static final int MAX_DISTANCE = 7;
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    private final int maxDistance;
+    /** Bit offset of each block, plus 64 at the end. */
+    private final int[] blockStart;
+    private long[][] tables;
+    private int size = 0;
+
+    /**
+     * @param maxDistance differing bits of fingerprints still considered duplicates, at most 7
+     */
+    public NearDuplicates(int maxDistance)
+    {
+        if (maxDistance < 0 || maxDistance > MAX_DISTANCE) { throw new IllegalArgumentException("Invalid distance: " + maxDistance); }
+
+        this.maxDistance = maxDistance;
+        int blocks = maxDistance + 1;
+        blockStart = new int[blocks + 1];
+        for (int i = 0; i <= blocks; i++)
+        {
+            blockStart[i] = i * 64 / blocks;
+        }
+        tables = new long[blocks][INITIAL_CAPACITY];
+    }
+
+    /**
+     * Check the page and remember it if it is new.
+     *
+     * @param fingerprint from {@link #fingerprint(CharSequence)}
+     * @return true if a page within the distance was seen before
+     */
+    public synchronized boolean check(long fingerprint)
+    {
+        if (fingerprint == 0) { return false; }
+
+        for (int b = 0; b < tables.length; b++)
+        {
+            long[] table = tables[b];
+            long block = block(fingerprint, b);
+            int mask = table.length - 1;
+            for (int i = slot(block, mask); table[i] != 0; i = (i + 1) & mask)
+            {
+                if (block(table[i], b) == block && Long.bitCount(table[i] ^ fingerprint) <= maxDistance) { return true; }
+            }
+        }
+
+        if (2 * (size + 1) > tables[0].length)
+        {
+            grow();
+        }
+        for (int b = 0; b < tables.length; b++)
+        {
+            insert(tables[b], b, fingerprint);
+        }
+        size++;
+        return false;
+    }
+
+    /**
+     * @return pages remembered
+     */
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    /**
+     * SimHash of the visible text of a page.
+     *
+     * @return the fingerprint, or 0 if the page has too little text
+     */
+    public static long fingerprint(CharSequence html)
+    {
+        long[] shingles = new long[256];
+        int count = 0;
+        long[] words = new long[SHINGLE];
+        int wordCount = 0;
+        long word = 0;
+        boolean inWord = false;
+
+        int length = html.length();
+        for (int i = 0; i <= length; i++)
+        {
+            char c = i < length ? html.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c))
+            {
+                if (!inWord)
+                {
+                    word = 0xcbf29ce484222325L;
+                    inWord = true;
+                }
+                // FNV-1a
+                word = (word ^ Character.toLowerCase(c)) * 0x100000001b3L;
+                continue;
+            }
+
+            if (inWord)
+            {
+                inWord = false;
+                words[wordCount++ % SHINGLE] = word;
+                if (wordCount >= SHINGLE)
+                {
+                    long shingle = 0;
+                    for (int k = 0; k < SHINGLE; k++)
+                    {
+                        // order matters: rotate by the position in the shingle
+                        shingle ^= Long.rotateLeft(words[(wordCount - SHINGLE + k) % SHINGLE], 21 * k);
+                    }
+                    if (count == shingles.length)
+                    {
+                        shingles = Arrays.copyOf(shingles, count * 2);
+                    }
+                    shingles[count++] = mix(shingle);
+                }
+            }
+
+            if (c == '<')
+            {
+                i = skipTag(html, i);
+            }
+        }
+
+        Arrays.sort(shingles, 0, count);
+        int[] votes = new int[64];
+        int distinct = 0;
+        for (int i = 0; i < count; i++)
+        {
+            if (i > 0 && shingles[i] == shingles[i - 1])
+            {
+                continue;
+            }
+            distinct++;
+            for (int bit = 0; bit < 64; bit++)
+            {
+                votes[bit] += ((shingles[i] >>> bit) & 1) != 0 ? 1 : -1;
+            }
+        }
+        if (distinct < MIN_SHINGLES) { return 0; }
+
+        long fingerprint = 0;
+        for (int bit = 0; bit < 64; bit++)
+        {
+            if (votes[bit] > 0)
+            {
+                fingerprint |= 1L << bit;
+            }
+        }
+        // 0 means no fingerprint
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    /**
+     * @return index of the last character of the tag, or of the end tag of a script or style
+     */
+    private static int skipTag(CharSequence html, int start)
+    {
+        String end = null;
+        if (startsWithIgnoreCase(html, start + 1, "script"))
+        {
+            end = "</script";
+        }
+        else if (startsWithIgnoreCase(html, start + 1, "style"))
+        {
+            end = "</style";
+        }
+        else if (startsWithIgnoreCase(html, start + 1, "!--"))
+        {
+            end = "-->";
+        }
+
+        int i = start + 1;
+        if (end != null)
+        {
+            while (i < html.length() && !startsWithIgnoreCase(html, i, end))
+            {
+                i++;
+            }
+        }
+        while (i < html.length() && html.charAt(i) != '>')
+        {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean startsWithIgnoreCase(CharSequence s, int offset, String prefix)
+    {
+        if (offset + prefix.length() > s.length()) { return false; }
+
+        for (int i = 0; i < prefix.length(); i++)
+        {
+            if (Character.toLowerCase(s.charAt(offset + i)) != prefix.charAt(i)) { return false; }
+        }
+        return true;
+    }
+
+    private long block(long fingerprint, int b)
+    {
+        int bits = blockStart[b + 1] - blockStart[b];
+        return bits == 64 ? fingerprint : (fingerprint >>> blockStart[b]) & ((1L << bits) - 1);
+    }
+
+    private static int slot(long block, int mask)
+    {
+        return (int) mix(block) & mask;
+    }
+
+    private void insert(long[] table, int b, long fingerprint)
+    {
+        int mask = table.length - 1;
+        int i = slot(block(fingerprint, b), mask);
+        while (table[i] != 0)
+        {
+            i = (i + 1) & mask;
+        }
+        table[i] = fingerprint;
+    }
+
+    private void grow()
+    {
+        long[][] old = tables;
+        tables = new long[old.length][old[0].length * 2];
+        for (int b = 0; b < old.length; b++)
+        {
+            for (long fingerprint : old[b])
+            {
+                if (fingerprint != 0)
+                {
+                    insert(tables[b], b, fingerprint);
+                }
+            }
+        }
+    }
+
+    /** Finalizer of MurmurHash3, spreads all input bits over the output. */
+    private static long mix(long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53a87ebL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
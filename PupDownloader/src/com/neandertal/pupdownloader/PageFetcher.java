@@ -0,0 +1,352 @@
+package com.neandertal.pupdownloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Loads a page with a single GET through the shared {@link HttpService}.
+ * <p>
+ * Status and content type are checked from the response headers; bodies that are not HTML or XML are not read. The
+ * body is decompressed if the server sent it gzip or deflate encoded, and truncated after the maximum size like Jsoup
+ * does.
+ *
+ * @author neandertal
+ *
+ */
+public class PageFetcher
+{
+    private static final int BUFFER_SIZE = 8192;
+    /** Bodies of rejected responses up to this size are read to keep the connection alive. */
+    private static final int DRAIN_LIMIT = 16 * 1024;
+    /** Bytes searched for a meta charset, like Jsoup's first pass. */
+    private static final int SNIFF_LIMIT = 4096;
+    private static final String DEFAULT_CHARSET = "UTF-8";
+    private static final Pattern META_CHARSET = Pattern.compile("<meta[^>]+charset\\s*=\\s*[\"']?([\\w.:-]+)",
+            Pattern.CASE_INSENSITIVE);
+
+    private final HttpService http;
+    private final int maxBodySize;
+    private final Map<String, String> headers = new HashMap<String, String>();
+
+    /**
+     * @param maxBodySize maximum decoded body size in bytes, longer bodies are truncated
+     */
+    public PageFetcher(HttpService http, int maxBodySize)
+    {
+        this.http = http;
+        this.maxBodySize = maxBodySize;
+        headers.put("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
+        headers.put("Accept-Encoding", "gzip, deflate");
+    }
+
+    public Result fetch(String url) throws IOException, InterruptedException
+    {
+        return fetch(url, null);
+    }
+
+    /**
+     * Conditional GET: with the validators of a previous visit the server may answer 304 Not Modified, then the
+     * result has no body.
+     *
+     * @param previous validators of the previous visit, may be null
+     */
+    public Result fetch(String url, ValidatorStore.Validator previous) throws IOException, InterruptedException
+    {
+        Map<String, String> requestHeaders = headers;
+        if (previous != null && (previous.getEtag() != null || previous.getLastModified() != null))
+        {
+            requestHeaders = new HashMap<String, String>(headers);
+            if (previous.getEtag() != null)
+            {
+                requestHeaders.put("If-None-Match", previous.getEtag());
+            }
+            if (previous.getLastModified() != null)
+            {
+                requestHeaders.put("If-Modified-Since", previous.getLastModified());
+            }
+        }
+        HttpResponse<InputStream> response = http.get(url, requestHeaders);
+
+        Result result = new Result();
+        result.url = url;
+        result.status = response.statusCode();
+        result.contentType = response.headers().firstValue("Content-Type").orElse(null);
+        result.etag = response.headers().firstValue("ETag").orElse(null);
+        result.lastModified = response.headers().firstValue("Last-Modified").orElse(null);
+        result.retryAfter = parseRetryAfter(response.headers().firstValue("Retry-After").orElse(null));
+
+        if (result.status != HttpURLConnection.HTTP_OK || !isSupported(result.contentType))
+        {
+            discard(response);
+            return result;
+        }
+
+        result.charset = charsetOf(result.contentType);
+        InputStream in = decode(response.body(), response.headers().firstValue("Content-Encoding").orElse(null));
+        try
+        {
+            result.body = read(in, result);
+        }
+        finally
+        {
+            in.close();
+        }
+        return result;
+    }
+
+    /**
+     * Charset of the body: from the Content-Type header, a byte order mark or a meta tag, else UTF-8.
+     */
+    public static String detectCharset(Result result)
+    {
+        if (result.charset != null) { return result.charset; }
+
+        return sniffCharset(result.body);
+    }
+
+    /**
+     * Charset of a stored body, see {@link #detectCharset(Result)}.
+     *
+     * @param contentType may be null
+     */
+    public static String detectCharset(String contentType, byte[] body)
+    {
+        String charset = contentType == null ? null : charsetOf(contentType);
+        if (charset != null) { return charset; }
+
+        return sniffCharset(body);
+    }
+
+    private static String sniffCharset(byte[] body)
+    {
+        if (body.length >= 3 && (body[0] & 0xff) == 0xef && (body[1] & 0xff) == 0xbb && (body[2] & 0xff) == 0xbf) { return "UTF-8"; }
+        if (body.length >= 2 && (body[0] & 0xff) == 0xfe && (body[1] & 0xff) == 0xff) { return "UTF-16BE"; }
+        if (body.length >= 2 && (body[0] & 0xff) == 0xff && (body[1] & 0xff) == 0xfe) { return "UTF-16LE"; }
+
+        String head = new String(body, 0, Math.min(body.length, SNIFF_LIMIT), StandardCharsets.ISO_8859_1);
+        Matcher matcher = META_CHARSET.matcher(head);
+        if (matcher.find())
+        {
+            String charset = supported(matcher.group(1));
+            if (charset != null) { return charset; }
+        }
+        return DEFAULT_CHARSET;
+    }
+
+    private byte[] read(InputStream in, Result result) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+        byte[] buf = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buf, 0, Math.min(buf.length, maxBodySize - out.size()))) > 0)
+        {
+            out.write(buf, 0, n);
+            if (out.size() >= maxBodySize)
+            {
+                result.truncated = in.read() != -1;
+                break;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static InputStream decode(InputStream in, String encoding) throws IOException
+    {
+        if (encoding == null) { return in; }
+
+        encoding = encoding.trim().toLowerCase();
+        if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) { return new GZIPInputStream(in, BUFFER_SIZE); }
+
+        if ("deflate".equals(encoding))
+        {
+            // "deflate" should be zlib wrapped, but some servers send raw deflate data
+            PushbackInputStream pushback = new PushbackInputStream(in, 1);
+            int first = pushback.read();
+            if (first != -1)
+            {
+                pushback.unread(first);
+            }
+            boolean zlib = (first & 0x0f) == 8;
+            return new InflaterInputStream(pushback, new Inflater(!zlib), BUFFER_SIZE);
+        }
+
+        return in;
+    }
+
+    /**
+     * Read small bodies so the connection can be reused, drop the connection otherwise.
+     */
+    private static void discard(HttpResponse<InputStream> response)
+    {
+        InputStream in = response.body();
+        try
+        {
+            long length = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+            if (length >= 0 && length <= DRAIN_LIMIT)
+            {
+                byte[] buf = new byte[BUFFER_SIZE];
+                while (in.read(buf) != -1)
+                {
+                    // skip
+                }
+            }
+            in.close();
+        }
+        catch (IOException e)
+        {
+            // the connection is dropped
+        }
+    }
+
+    /**
+     * @return milliseconds from the delay seconds or HTTP date, or -1
+     */
+    static long parseRetryAfter(String value)
+    {
+        if (value == null) { return -1; }
+
+        value = value.trim();
+        try
+        {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        }
+        catch (NumberFormatException e)
+        {
+            // a date
+        }
+        try
+        {
+            long date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            return Math.max(0, date - System.currentTimeMillis());
+        }
+        catch (DateTimeParseException e)
+        {
+            return -1;
+        }
+    }
+
+    static boolean isSupported(String contentType)
+    {
+        if (contentType == null) { return false; }
+
+        String mimeType = mimeTypeOf(contentType);
+        return "application/xml".equals(mimeType) || "application/xhtml+xml".equals(mimeType)
+                || mimeType.startsWith("text/");
+    }
+
+    private static String mimeTypeOf(String contentType)
+    {
+        int index = contentType.indexOf(';');
+        return (index == -1 ? contentType : contentType.substring(0, index)).trim().toLowerCase();
+    }
+
+    /**
+     * @return the charset parameter of the content type, or null to let Jsoup detect it
+     */
+    private static String charsetOf(String contentType)
+    {
+        String[] params = contentType.split(";");
+        for (int i = 1; i < params.length; i++)
+        {
+            String param = params[i].trim();
+            if (param.regionMatches(true, 0, "charset=", 0, 8))
+            {
+                return supported(param.substring(8).trim().replace("\"", "").replace("'", ""));
+            }
+        }
+        return null;
+    }
+
+    private static String supported(String charset)
+    {
+        try
+        {
+            return Charset.isSupported(charset) ? charset : null;
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Response of a page request. The body is null unless the status is 200 and the content type is supported. ETag
+     * and Last-Modified are the validators for the next conditional request.
+     */
+    public static class Result
+    {
+        protected String url;
+        protected int status;
+        protected String contentType;
+        protected String charset;
+        protected String etag;
+        protected String lastModified;
+        protected byte[] body;
+        protected boolean truncated = false;
+        protected long retryAfter = -1;
+
+        public String getUrl()
+        {
+            return url;
+        }
+
+        public int getStatus()
+        {
+            return status;
+        }
+
+        public String getContentType()
+        {
+            return contentType;
+        }
+
+        public String getCharset()
+        {
+            return charset;
+        }
+
+        public String getEtag()
+        {
+            return etag;
+        }
+
+        public String getLastModified()
+        {
+            return lastModified;
+        }
+
+        public byte[] getBody()
+        {
+            return body;
+        }
+
+        public boolean isTruncated()
+        {
+            return truncated;
+        }
+
+        /**
+         * @return milliseconds the server asked to wait before retrying, or -1
+         */
+        public long getRetryAfter()
+        {
+            return retryAfter;
+        }
+    }
+}
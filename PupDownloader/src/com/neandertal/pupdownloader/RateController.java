@@ -0,0 +1,145 @@
+package com.neandertal.pupdownloader;
+
+/**
+ * Request rate of one host, adapted with additive increase and multiplicative decrease (AIMD).
+ * <p>
+ * The starts of requests are spaced by the interval of the current rate. Each response updates a moving average of
+ * the latency and a base latency, the lowest average seen, which slowly drifts up so that a host that got slower for
+ * good is accepted. While the average stays within twice the base (plus a small slack for fast hosts) the rate grows:
+ * by one request per second per response until the first back off (slow start), then by about one request per
+ * second per second. Errors, throttling responses and rising latency halve the rate; responses to requests started
+ * before the last back off are not counted against the new rate, as the requests in flight all report the same
+ * congestion. A Retry-After pauses the host. The rate never leaves the range between the minimum rate and the maximum
+ * rate, and the interval is never shorter than the crawl delay.
+ * Without adaptation only the crawl delay and Retry-After are applied. Thread safe.
+ *
+ * @author neandertal
+ *
+ */
+public class RateController
+{
+    private static final double MIN_RATE = 0.1;
+    private static final double DECREASE_FACTOR = 0.5;
+    /** Weight of a new latency in the moving average. */
+    private static final double LATENCY_WEIGHT = 0.2;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final long LATENCY_SLACK = 50;
+    /** Growth of the base latency per response. */
+    private static final double BASE_DRIFT = 1.01;
+
+    private final boolean adaptive;
+    private final double maxRate;
+    private double rate;
+    /** Crawl delay in milliseconds. */
+    private long minInterval = 0;
+    private boolean slowStart = true;
+    private double latency = -1;
+    private double baseLatency = -1;
+    /** Earliest start of the next request. */
+    private long next = 0;
+    private long lastDecrease = 0;
+    private int decreases = 0;
+
+    /**
+     * @param initialRate requests per second to start with
+     * @param maxRate requests per second not to exceed
+     */
+    public RateController(boolean adaptive, double initialRate, double maxRate)
+    {
+        this.adaptive = adaptive;
+        this.maxRate = maxRate;
+        this.rate = Math.min(initialRate, maxRate);
+    }
+
+    /**
+     * Block until the next request may start.
+     */
+    public void await() throws InterruptedException
+    {
+        long wait;
+        synchronized (this)
+        {
+            long now = System.currentTimeMillis();
+            wait = next - now;
+            next = Math.max(now, next) + interval();
+        }
+        if (wait > 0)
+        {
+            Thread.sleep(wait);
+        }
+    }
+
+    /**
+     * @param started start time of the successful request
+     */
+    public synchronized void onSuccess(long started)
+    {
+        if (!adaptive) { return; }
+
+        long millis = System.currentTimeMillis() - started;
+        latency = latency < 0 ? millis : latency + LATENCY_WEIGHT * (millis - latency);
+        baseLatency = baseLatency < 0 ? latency : Math.min(baseLatency * BASE_DRIFT, latency);
+        if (latency > baseLatency * LATENCY_TOLERANCE + LATENCY_SLACK)
+        {
+            decrease(started);
+            return;
+        }
+
+        rate = Math.min(maxRate, slowStart ? rate + 1 : rate + 1 / rate);
+    }
+
+    /**
+     * A request failed or was throttled.
+     *
+     * @param started start time of the request
+     * @param retryAfter milliseconds the host asked to wait, or -1
+     */
+    public synchronized void onFailure(long started, long retryAfter)
+    {
+        if (retryAfter > 0)
+        {
+            next = Math.max(next, System.currentTimeMillis() + retryAfter);
+        }
+        if (adaptive)
+        {
+            decrease(started);
+        }
+    }
+
+    /**
+     * @param millis crawl delay asked for by the host
+     */
+    public synchronized void setMinInterval(long millis)
+    {
+        this.minInterval = millis;
+    }
+
+    /**
+     * @return requests per second, before the crawl delay
+     */
+    public synchronized double getRate()
+    {
+        return rate;
+    }
+
+    public synchronized int getDecreases()
+    {
+        return decreases;
+    }
+
+    private void decrease(long started)
+    {
+        if (started < lastDecrease) { return; }
+
+        lastDecrease = System.currentTimeMillis();
+        slowStart = false;
+        rate = Math.max(MIN_RATE, rate * DECREASE_FACTOR);
+        decreases++;
+    }
+
+    private long interval()
+    {
+        long interval = adaptive ? (long) (1000 / rate) : 0;
+        return Math.max(interval, minInterval);
+    }
+}
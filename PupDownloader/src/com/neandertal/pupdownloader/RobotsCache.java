@@ -0,0 +1,153 @@
+package com.neandertal.pupdownloader;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Fetches the <code>robots.txt</code> of each host once and answers whether URLs may be crawled.
+ * <p>
+ * The rules of a host are fetched by the first thread that needs them, the others wait for that fetch. A missing
+ * file (4xx) allows everything. When the file cannot be fetched (5xx, network error) everything is allowed too and a
+ * warning is logged, as a crawl of a single site would otherwise end right away. The Crawl-delay of a host is passed
+ * to the {@link HostLimiter}. Redirects are followed up to five times. Thread safe.
+ *
+ * @author neandertal
+ *
+ */
+public class RobotsCache
+{
+    private static final int MAX_REDIRECTS = 5;
+    private static final int MAX_SIZE = 512 * 1024;
+
+    private final HttpService http;
+    private final HostLimiter hostLimiter;
+    private final AsyncLogger logger;
+    private final String agent;
+    private final ConcurrentMap<String, Entry> hosts = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * @param agent product token the groups are matched against
+     */
+    public RobotsCache(HttpService http, HostLimiter hostLimiter, AsyncLogger logger, String agent)
+    {
+        this.http = http;
+        this.hostLimiter = hostLimiter;
+        this.logger = logger;
+        this.agent = agent;
+    }
+
+    /**
+     * @return false if the robots rules of its host disallow the URL or the URL is not valid
+     */
+    public boolean isAllowed(String url) throws InterruptedException
+    {
+        URL u;
+        try
+        {
+            u = new URL(url);
+        }
+        catch (MalformedURLException e)
+        {
+            return false;
+        }
+
+        String path = u.getFile().isEmpty() ? "/" : u.getFile();
+        return getRules(u).isAllowed(path);
+    }
+
+    /**
+     * @return the rules of the host of the URL, fetched if needed
+     */
+    public RobotsRules getRules(URL url) throws InterruptedException
+    {
+        String key = url.getProtocol() + "://" + url.getAuthority();
+        Entry entry = hosts.get(key);
+        if (entry == null)
+        {
+            Entry created = new Entry();
+            entry = hosts.putIfAbsent(key, created);
+            if (entry == null)
+            {
+                entry = created;
+                RobotsRules rules = RobotsRules.ALLOW_ALL;
+                try
+                {
+                    rules = fetch(key);
+                }
+                finally
+                {
+                    // waiting threads must not hang if this one is interrupted
+                    entry.set(rules);
+                }
+                if (rules.getCrawlDelay() > 0)
+                {
+                    hostLimiter.setDelay(HostLimiter.hostOf(key), rules.getCrawlDelay());
+                }
+                logger.info("Robots rules for {0}: {1} rules, crawl delay {2} ms, {3} sitemaps.", key, rules.size(),
+                        rules.getCrawlDelay(), rules.getSitemaps().size());
+            }
+        }
+        return entry.get();
+    }
+
+    private RobotsRules fetch(String hostURL) throws InterruptedException
+    {
+        String url = hostURL + "/robots.txt";
+        try
+        {
+            for (int i = 0; i <= MAX_REDIRECTS; i++)
+            {
+                HttpResponse<byte[]> response = http.getBytes(url);
+                int status = response.statusCode();
+                if (status == HttpURLConnection.HTTP_OK)
+                {
+                    byte[] body = response.body();
+                    int length = Math.min(body.length, MAX_SIZE);
+                    return RobotsRules.parse(new String(body, 0, length, StandardCharsets.UTF_8), agent);
+                }
+                if (status >= 300 && status < 400 && response.headers().firstValue("Location").isPresent())
+                {
+                    url = new URL(new URL(url), response.headers().firstValue("Location").get()).toString();
+                    continue;
+                }
+                if (status >= 400 && status < 500) { return RobotsRules.ALLOW_ALL; }
+
+                logger.warn("Robots file {0} unavailable, status {1}; crawling without rules.", url, status);
+                return RobotsRules.ALLOW_ALL;
+            }
+            logger.warn("Robots file {0} redirects too often; crawling without rules.", url);
+        }
+        catch (IOException e)
+        {
+            logger.warn("Robots file {0} unavailable: {1}; crawling without rules.", url, e.getMessage());
+        }
+        return RobotsRules.ALLOW_ALL;
+    }
+
+    /** Rules of a host, set once by the thread fetching them. */
+    private static class Entry
+    {
+        private RobotsRules rules;
+
+        protected synchronized void set(RobotsRules rules)
+        {
+            this.rules = rules;
+            notifyAll();
+        }
+
+        protected synchronized RobotsRules get() throws InterruptedException
+        {
+            while (rules == null)
+            {
+                wait();
+            }
+            return rules;
+        }
+    }
+}
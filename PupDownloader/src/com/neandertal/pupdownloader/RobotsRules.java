@@ -0,0 +1,239 @@
+package com.neandertal.pupdownloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * The rules of a <code>robots.txt</code> file for one user agent.
+ * <p>
+ * The groups naming the agent are used, or the <code>*</code> groups if none does. Allow and Disallow rules are
+ * compiled once: rules without wildcards become plain prefixes, rules with <code>*</code> or a trailing
+ * <code>$</code> become patterns. They are sorted longest first, so checking a path stops at the first rule that
+ * matches it, which is the longest match; on equal length Allow wins. Crawl-delay and Sitemap lines are kept too.
+ * Immutable.
+ *
+ * @author neandertal
+ *
+ */
+public class RobotsRules
+{
+    public static final RobotsRules ALLOW_ALL = new RobotsRules(new ArrayList<Rule>(), -1,
+            Collections.<String> emptyList());
+
+    private final List<Rule> rules;
+    private final long crawlDelay;
+    private final List<String> sitemaps;
+
+    private RobotsRules(List<Rule> rules, long crawlDelay, List<String> sitemaps)
+    {
+        Collections.sort(rules, new Comparator<Rule>()
+        {
+            @Override
+            public int compare(Rule a, Rule b)
+            {
+                if (a.length != b.length) { return b.length - a.length; }
+
+                return Boolean.compare(b.allow, a.allow);
+            }
+        });
+        this.rules = rules;
+        this.crawlDelay = crawlDelay;
+        this.sitemaps = Collections.unmodifiableList(sitemaps);
+    }
+
+    /**
+     * @param agent product token of the crawler, compared case insensitive
+     */
+    public static RobotsRules parse(String text, String agent)
+    {
+        agent = agent.toLowerCase(Locale.ROOT);
+        List<Rule> agentRules = new ArrayList<Rule>();
+        List<Rule> anyRules = new ArrayList<Rule>();
+        long agentDelay = -1;
+        long anyDelay = -1;
+        boolean agentFound = false;
+        List<String> sitemaps = new ArrayList<String>();
+
+        // the current group applies to the agent and/or to everybody
+        boolean forAgent = false;
+        boolean forAny = false;
+        boolean inAgentLines = false;
+        for (String line : text.split("\r\n|\r|\n"))
+        {
+            int hash = line.indexOf('#');
+            if (hash != -1)
+            {
+                line = line.substring(0, hash);
+            }
+            int colon = line.indexOf(':');
+            if (colon == -1)
+            {
+                continue;
+            }
+            String key = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = line.substring(colon + 1).trim();
+
+            if ("user-agent".equals(key))
+            {
+                if (!inAgentLines)
+                {
+                    // a new group
+                    forAgent = false;
+                    forAny = false;
+                    inAgentLines = true;
+                }
+                String name = value.toLowerCase(Locale.ROOT);
+                if ("*".equals(name))
+                {
+                    forAny = true;
+                }
+                else if (!name.isEmpty() && agent.contains(name))
+                {
+                    forAgent = true;
+                    agentFound = true;
+                }
+                continue;
+            }
+
+            if ("sitemap".equals(key))
+            {
+                // not part of a group
+                if (!value.isEmpty())
+                {
+                    sitemaps.add(value);
+                }
+                continue;
+            }
+
+            inAgentLines = false;
+            if ("allow".equals(key) || "disallow".equals(key))
+            {
+                if (value.isEmpty())
+                {
+                    // an empty Disallow allows everything
+                    continue;
+                }
+                Rule rule = new Rule(value, "allow".equals(key));
+                if (forAgent)
+                {
+                    agentRules.add(rule);
+                }
+                if (forAny)
+                {
+                    anyRules.add(rule);
+                }
+            }
+            else if ("crawl-delay".equals(key))
+            {
+                long delay = parseDelay(value);
+                if (forAgent)
+                {
+                    agentDelay = delay;
+                }
+                if (forAny)
+                {
+                    anyDelay = delay;
+                }
+            }
+        }
+
+        if (agentFound) { return new RobotsRules(agentRules, agentDelay, sitemaps); }
+
+        return new RobotsRules(anyRules, anyDelay, sitemaps);
+    }
+
+    /**
+     * @param path path and query of the URL, starting with '/'
+     */
+    public boolean isAllowed(String path)
+    {
+        for (Rule rule : rules)
+        {
+            if (rule.matches(path)) { return rule.allow; }
+        }
+        return true;
+    }
+
+    /**
+     * @return milliseconds to wait between requests, or -1 if not given
+     */
+    public long getCrawlDelay()
+    {
+        return crawlDelay;
+    }
+
+    public List<String> getSitemaps()
+    {
+        return sitemaps;
+    }
+
+    public int size()
+    {
+        return rules.size();
+    }
+
+    /** Seconds, possibly fractional, to milliseconds. */
+    private static long parseDelay(String value)
+    {
+        try
+        {
+            double seconds = Double.parseDouble(value);
+            return seconds < 0 ? -1 : (long) (seconds * 1000);
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    private static class Rule
+    {
+        protected final boolean allow;
+        protected final int length;
+        /** Set if the rule is a plain prefix. */
+        protected final String prefix;
+        /** Set if the rule has wildcards. */
+        protected final Pattern pattern;
+
+        protected Rule(String value, boolean allow)
+        {
+            this.allow = allow;
+            this.length = value.length();
+            if (value.indexOf('*') == -1 && !value.endsWith("$"))
+            {
+                this.prefix = value;
+                this.pattern = null;
+                return;
+            }
+
+            StringBuilder sb = new StringBuilder();
+            boolean anchored = value.endsWith("$");
+            String body = anchored ? value.substring(0, value.length() - 1) : value;
+            int start = 0;
+            int star;
+            while ((star = body.indexOf('*', start)) != -1)
+            {
+                sb.append(Pattern.quote(body.substring(start, star))).append(".*");
+                start = star + 1;
+            }
+            sb.append(Pattern.quote(body.substring(start)));
+            if (!anchored)
+            {
+                sb.append(".*");
+            }
+            this.prefix = null;
+            this.pattern = Pattern.compile(sb.toString(), Pattern.DOTALL);
+        }
+
+        protected boolean matches(String path)
+        {
+            if (prefix != null) { return path.startsWith(prefix); }
+
+            return pattern.matcher(path).matches();
+        }
+    }
+}
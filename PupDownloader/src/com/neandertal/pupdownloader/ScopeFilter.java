@@ -0,0 +1,327 @@
+package com.neandertal.pupdownloader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which links belong to the crawl, before they are canonicalized or looked up in the frontier.
+ * <p>
+ * A link is in scope if its host is the site host or one of its subdomains (a leading <code>www.</code> of the site
+ * host is ignored), no exclude rule matches and, if there are include rules, one of them matches. A rule is a prefix,
+ * or a glob if it contains <code>*</code> (any characters) or <code>?</code> (one character); globs must match the
+ * whole link. Rules starting with <code>/</code> are matched against the path and query, others against the whole
+ * link, whose scheme and host are compared ignoring case. Each side can also have one regex, found anywhere in the
+ * link.
+ * <p>
+ * The rules of a side are compiled once: the prefixes into a trie, walked once along the link, and each glob into a
+ * pattern, run only when the link starts with the literal text before its first wildcard and ends with the text after
+ * its last. Most links are decided by the host check, the trie and these literals, without the regex engine. The
+ * fragment of a link is ignored. Thread safe.
+ *
+ * @author neandertal
+ *
+ */
+public class ScopeFilter
+{
+    private static final String SCHEME_SEPARATOR = "://";
+    private static final String WWW = "www.";
+
+    /** Site host without www, lower case. */
+    private final String baseHost;
+    private final Rules include;
+    private final Rules exclude;
+
+    /**
+     * @param includeRegex may be null
+     * @param excludeRegex may be null
+     * @throws IllegalArgumentException if a rule or regex is invalid
+     */
+    public ScopeFilter(String siteHost, List<String> include, String includeRegex, List<String> exclude,
+            String excludeRegex)
+    {
+        String host = siteHost.toLowerCase(Locale.ROOT);
+        this.baseHost = host.startsWith(WWW) ? host.substring(WWW.length()) : host;
+        this.include = new Rules(include, includeRegex);
+        this.exclude = new Rules(exclude, excludeRegex);
+    }
+
+    /**
+     * @param url an absolute link, as found
+     */
+    public boolean accepts(String url)
+    {
+        int scheme = url.indexOf(SCHEME_SEPARATOR);
+        if (scheme <= 0) { return false; }
+
+        int hostStart = scheme + SCHEME_SEPARATOR.length();
+        int authorityEnd = hostStart;
+        int end = url.length();
+        while (authorityEnd < end)
+        {
+            char c = url.charAt(authorityEnd);
+            if (c == '/' || c == '?' || c == '#')
+            {
+                break;
+            }
+            authorityEnd++;
+        }
+        if (!isSiteHost(url, hostStart, authorityEnd)) { return false; }
+
+        int fragment = url.indexOf('#', authorityEnd);
+        if (fragment != -1)
+        {
+            end = fragment;
+        }
+        if (exclude.matches(url, authorityEnd, end)) { return false; }
+
+        return include.isEmpty() || include.matches(url, authorityEnd, end);
+    }
+
+    private boolean isSiteHost(String url, int start, int end)
+    {
+        int at = url.lastIndexOf('@', end - 1);
+        if (at >= start)
+        {
+            start = at + 1;
+        }
+        int port = url.indexOf(':', start);
+        if (port != -1 && port < end)
+        {
+            end = port;
+        }
+
+        int length = end - start;
+        if (length == baseHost.length()) { return url.regionMatches(true, start, baseHost, 0, length); }
+
+        // a subdomain
+        return length > baseHost.length() && url.charAt(end - baseHost.length() - 1) == '.'
+                && url.regionMatches(true, end - baseHost.length(), baseHost, 0, baseHost.length());
+    }
+
+    /**
+     * Glob to regex, to match a whole link or path; ignores case in the scheme and host of absolute globs.
+     */
+    static String globToRegex(String glob)
+    {
+        StringBuilder sb = new StringBuilder();
+        int pathStart = pathStart(glob);
+        if (pathStart > 0)
+        {
+            sb.append("(?i:");
+            appendGlob(sb, glob, 0, pathStart);
+            sb.append(')');
+        }
+        appendGlob(sb, glob, pathStart, glob.length());
+        return sb.toString();
+    }
+
+    /**
+     * @return index of the path of an absolute rule, 0 for a path rule
+     */
+    private static int pathStart(String rule)
+    {
+        if (rule.charAt(0) == '/') { return 0; }
+
+        int pathStart = rule.indexOf('/', rule.indexOf(SCHEME_SEPARATOR) + SCHEME_SEPARATOR.length());
+        return pathStart == -1 ? rule.length() : pathStart;
+    }
+
+    private static void appendGlob(StringBuilder sb, String glob, int start, int end)
+    {
+        int literal = start;
+        for (int i = start; i < end; i++)
+        {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?')
+            {
+                if (literal < i)
+                {
+                    sb.append(Pattern.quote(glob.substring(literal, i)));
+                }
+                sb.append(c == '*' ? ".*" : ".");
+                literal = i + 1;
+            }
+        }
+        if (literal < end)
+        {
+            sb.append(Pattern.quote(glob.substring(literal, end)));
+        }
+    }
+
+    private static boolean isGlob(String rule)
+    {
+        return rule.indexOf('*') != -1 || rule.indexOf('?') != -1;
+    }
+
+    /**
+     * The rules of one side.
+     */
+    private static class Rules
+    {
+        /** Prefixes of whole links, scheme and host in lower case. */
+        private final Trie absolute = new Trie();
+        /** Prefixes of paths. */
+        private final Trie paths = new Trie();
+        private final List<Glob> globs = new ArrayList<Glob>();
+        /** Null if there is none. */
+        private final Pattern regex;
+        private final boolean empty;
+
+        private Rules(List<String> rules, String regex)
+        {
+            for (String rule : rules)
+            {
+                if (rule.charAt(0) != '/' && rule.indexOf(SCHEME_SEPARATOR) <= 0) { throw new IllegalArgumentException("Scope rule is neither a link nor a path: " + rule); }
+
+                int pathStart = pathStart(rule);
+                if (isGlob(rule))
+                {
+                    globs.add(new Glob(rule, pathStart == 0));
+                }
+                else if (pathStart == 0)
+                {
+                    paths.add(rule);
+                }
+                else
+                {
+                    absolute.add(rule.substring(0, pathStart).toLowerCase(Locale.ROOT) + rule.substring(pathStart));
+                }
+            }
+            this.regex = regex == null || regex.isEmpty() ? null : Pattern.compile(regex);
+            empty = absolute.isEmpty() && paths.isEmpty() && globs.isEmpty() && this.regex == null;
+        }
+
+        private boolean isEmpty()
+        {
+            return empty;
+        }
+
+        /**
+         * @param pathStart end of the scheme and host
+         * @param end end of the link without its fragment
+         */
+        private boolean matches(String url, int pathStart, int end)
+        {
+            if (absolute.matchesPrefix(url, 0, end, pathStart) || paths.matchesPrefix(url, pathStart, end, pathStart)) { return true; }
+
+            for (int i = 0; i < globs.size(); i++)
+            {
+                if (globs.get(i).matches(url, pathStart, end)) { return true; }
+            }
+            return regex != null && regex.matcher(url).region(0, end).find();
+        }
+    }
+
+    /**
+     * A glob rule, with the literal text before its first and after its last wildcard.
+     */
+    private static class Glob
+    {
+        private final boolean path;
+        private final String head;
+        private final String tail;
+        private final Pattern pattern;
+
+        private Glob(String glob, boolean path)
+        {
+            this.path = path;
+            int first = glob.length();
+            int last = -1;
+            for (int i = 0; i < glob.length(); i++)
+            {
+                char c = glob.charAt(i);
+                if (c == '*' || c == '?')
+                {
+                    first = Math.min(first, i);
+                    last = i;
+                }
+            }
+            this.head = glob.substring(0, first);
+            this.tail = glob.substring(last + 1);
+            this.pattern = Pattern.compile(globToRegex(glob));
+        }
+
+        private boolean matches(String url, int pathStart, int end)
+        {
+            int start = path ? pathStart : 0;
+            // looser than the pattern, which ignores case only in the host
+            if (end - start < head.length() + tail.length()
+                    || !url.regionMatches(true, start, head, 0, head.length())
+                    || !url.regionMatches(true, end - tail.length(), tail, 0, tail.length())) { return false; }
+
+            return pattern.matcher(url).region(start, end).matches();
+        }
+    }
+
+    /**
+     * Prefix trie over chars. A node keeps its children in parallel arrays, searched linearly: URLs branch little.
+     */
+    private static class Trie
+    {
+        private final Node root = new Node();
+
+        private void add(String prefix)
+        {
+            Node node = root;
+            for (int i = 0; i < prefix.length(); i++)
+            {
+                node = node.child(prefix.charAt(i), true);
+            }
+            node.terminal = true;
+        }
+
+        private boolean isEmpty()
+        {
+            return root.size == 0 && !root.terminal;
+        }
+
+        /**
+         * @param lowerBefore characters before this index are compared in lower case
+         * @return true if a prefix added is a prefix of the text from start to end
+         */
+        private boolean matchesPrefix(String text, int start, int end, int lowerBefore)
+        {
+            Node node = root;
+            for (int i = start; !node.terminal; i++)
+            {
+                if (i == end) { return false; }
+
+                char c = text.charAt(i);
+                node = node.child(i < lowerBefore ? Character.toLowerCase(c) : c, false);
+                if (node == null) { return false; }
+            }
+            return true;
+        }
+    }
+
+    private static class Node
+    {
+        private char[] labels = new char[1];
+        private Node[] children = new Node[1];
+        private int size = 0;
+        private boolean terminal = false;
+
+        private Node child(char c, boolean create)
+        {
+            for (int i = 0; i < size; i++)
+            {
+                if (labels[i] == c) { return children[i]; }
+            }
+            if (!create) { return null; }
+
+            if (size == labels.length)
+            {
+                labels = Arrays.copyOf(labels, size * 2);
+                children = Arrays.copyOf(children, size * 2);
+            }
+            Node node = new Node();
+            labels[size] = c;
+            children[size] = node;
+            size++;
+            return node;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.neandertal.pupdownloader;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.http.HttpResponse;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Collects the page URLs listed in sitemaps.
+ * <p>
+ * Sitemaps are streamed through a StAX parser, so a file with 50000 URLs is never held as a tree. Sitemap indexes are
+ * followed breadth first, each sitemap is read once and at most {@link #maxSitemaps} are read in total. Files starting
+ * with the gzip magic bytes are decompressed, whatever their name or content type. DTDs and external entities are
+ * not resolved. Not thread safe.
+ *
+ * @author neandertal
+ *
+ */
+public class SitemapReader
+{
+    private static final String LOC = "loc";
+    private static final String SITEMAP = "sitemap";
+    private static final String URL = "url";
+
+    private final HttpService http;
+    private final AsyncLogger logger;
+    private final int maxSitemaps;
+    private final XMLInputFactory factory;
+    private int sitemapsRead = 0;
+
+    public SitemapReader(HttpService http, AsyncLogger logger, int maxSitemaps)
+    {
+        this.http = http;
+        this.logger = logger;
+        this.maxSitemaps = maxSitemaps;
+        this.factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+    }
+
+    /**
+     * Read the sitemaps and the sitemaps of the indexes among them. Sitemaps that cannot be read are logged and
+     * skipped.
+     *
+     * @return page URLs in the order listed
+     */
+    public List<String> read(List<String> sitemapURLs) throws InterruptedException
+    {
+        List<String> pages = new ArrayList<String>();
+        ArrayDeque<String> toRead = new ArrayDeque<String>(sitemapURLs);
+        Set<String> seen = new HashSet<String>(sitemapURLs);
+        while (!toRead.isEmpty() && sitemapsRead < maxSitemaps)
+        {
+            String sitemapURL = toRead.poll();
+            sitemapsRead++;
+            List<String> sitemaps = new ArrayList<String>();
+            int before = pages.size();
+            try
+            {
+                readSitemap(sitemapURL, pages, sitemaps);
+            }
+            catch (IOException e)
+            {
+                logger.warn("Cannot read sitemap {0}: {1}", sitemapURL, e.getMessage());
+                continue;
+            }
+            logger.info("Read sitemap {0}: {1} URLs, {2} sitemaps.", sitemapURL, pages.size() - before,
+                    sitemaps.size());
+
+            for (String sitemap : sitemaps)
+            {
+                if (seen.add(sitemap))
+                {
+                    toRead.add(sitemap);
+                }
+            }
+        }
+        if (!toRead.isEmpty())
+        {
+            logger.warn("Sitemap limit of {0} reached, {1} sitemaps not read.", maxSitemaps, toRead.size());
+        }
+        return pages;
+    }
+
+    /**
+     * @return number of sitemaps read so far
+     */
+    public int getSitemapsRead()
+    {
+        return sitemapsRead;
+    }
+
+    private void readSitemap(String sitemapURL, List<String> pages, List<String> sitemaps)
+            throws IOException, InterruptedException
+    {
+        HttpResponse<InputStream> response = http.get(sitemapURL, null);
+        InputStream in = response.body();
+        try
+        {
+            if (response.statusCode() != HttpURLConnection.HTTP_OK) { throw new IOException("Status " + response.statusCode()); }
+
+            parse(decompress(in), pages, sitemaps);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Add the <code>loc</code> of <code>url</code> elements to the pages and of <code>sitemap</code> elements to the
+     * sitemaps.
+     */
+    void parse(InputStream in, List<String> pages, List<String> sitemaps) throws IOException
+    {
+        XMLStreamReader reader = null;
+        try
+        {
+            reader = factory.createXMLStreamReader(in);
+            String parent = null;
+            while (reader.hasNext())
+            {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT)
+                {
+                    continue;
+                }
+
+                String name = reader.getLocalName();
+                if (URL.equals(name) || SITEMAP.equals(name))
+                {
+                    parent = name;
+                }
+                else if (LOC.equals(name) && parent != null)
+                {
+                    String loc = reader.getElementText().trim();
+                    if (!loc.isEmpty())
+                    {
+                        (URL.equals(parent) ? pages : sitemaps).add(loc);
+                    }
+                    parent = null;
+                }
+            }
+        }
+        catch (XMLStreamException e)
+        {
+            throw new IOException("Malformed sitemap: " + e.getMessage(), e);
+        }
+        finally
+        {
+            if (reader != null)
+            {
+                try
+                {
+                    reader.close();
+                }
+                catch (XMLStreamException e)
+                {
+                    // the stream is closed by the caller
+                }
+            }
+        }
+    }
+
+    /** Unzip if the stream starts with the gzip magic bytes. */
+    private static InputStream decompress(InputStream in) throws IOException
+    {
+        BufferedInputStream buffered = new BufferedInputStream(in);
+        buffered.mark(2);
+        int b1 = buffered.read();
+        int b2 = buffered.read();
+        buffered.reset();
+        if (b1 == 0x1f && b2 == 0x8b) { return new GZIPInputStream(buffered); }
+
+        return buffered;
+    }
+}
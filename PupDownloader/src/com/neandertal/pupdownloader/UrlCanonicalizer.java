@@ -0,0 +1,288 @@
+package com.neandertal.pupdownloader;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Rewrites URLs to one canonical form so that variants of the same page are fetched once.
+ * <p>
+ * Scheme and host are lower cased, the default port, the fragment and <code>.</code> and <code>..</code> path segments
+ * are removed, percent escapes are upper cased and decoded where the character needs no escape. Session and tracking
+ * parameters are stripped from the query and the path (<code>;jsessionid=</code>), the remaining parameters can be
+ * sorted by name, and index pages like <code>index.php</code> are cut from the path. A trailing slash can be kept,
+ * added to paths whose last segment has no extension, or removed. Thread safe.
+ *
+ * @author neandertal
+ *
+ */
+public class UrlCanonicalizer
+{
+    public static final String SLASH_KEEP = "keep";
+    public static final String SLASH_ADD = "add";
+    public static final String SLASH_REMOVE = "remove";
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final Set<String> stripNames = new HashSet<String>();
+    private final List<String> stripPrefixes = new ArrayList<String>();
+    private final boolean sortQuery;
+    private final Set<String> indexPages = new HashSet<String>();
+    private final String trailingSlash;
+
+    /**
+     * @param stripParams parameter names to remove, case insensitive; a name ending in <code>*</code> is a prefix
+     * @param indexPages file names cut from the end of the path, case insensitive
+     * @param trailingSlash one of {@link #SLASH_KEEP}, {@link #SLASH_ADD} or {@link #SLASH_REMOVE}
+     */
+    public UrlCanonicalizer(List<String> stripParams, boolean sortQuery, List<String> indexPages, String trailingSlash)
+    {
+        for (String name : stripParams)
+        {
+            name = name.toLowerCase(Locale.ROOT);
+            if (name.endsWith("*"))
+            {
+                stripPrefixes.add(name.substring(0, name.length() - 1));
+            }
+            else
+            {
+                stripNames.add(name);
+            }
+        }
+        for (String page : indexPages)
+        {
+            this.indexPages.add(page.toLowerCase(Locale.ROOT));
+        }
+        this.sortQuery = sortQuery;
+        this.trailingSlash = trailingSlash;
+    }
+
+    /**
+     * @return the canonical URL, or null if the URL is not valid
+     */
+    public String canonicalize(String url)
+    {
+        URL u;
+        try
+        {
+            u = new URL(url.trim());
+        }
+        catch (MalformedURLException e)
+        {
+            return null;
+        }
+
+        String host = u.getHost().toLowerCase(Locale.ROOT);
+        if (host.endsWith("."))
+        {
+            host = host.substring(0, host.length() - 1);
+        }
+        if (host.isEmpty()) { return null; }
+
+        StringBuilder sb = new StringBuilder(url.length());
+        sb.append(u.getProtocol().toLowerCase(Locale.ROOT)).append("://");
+        if (u.getUserInfo() != null)
+        {
+            sb.append(u.getUserInfo()).append('@');
+        }
+        sb.append(host);
+        if (u.getPort() != -1 && u.getPort() != u.getDefaultPort())
+        {
+            sb.append(':').append(u.getPort());
+        }
+        sb.append(normalizePath(u.getPath()));
+
+        String query = normalizeQuery(u.getQuery());
+        if (query != null)
+        {
+            sb.append('?').append(query);
+        }
+        return sb.toString();
+    }
+
+    private String normalizePath(String path)
+    {
+        List<String> segments = new ArrayList<String>();
+        String[] parts = path.split("/", -1);
+        // parts[0] is the empty string before the leading slash
+        for (int i = 1; i < parts.length; i++)
+        {
+            String segment = stripPathParameters(normalizeEscapes(parts[i]));
+            if (".".equals(segment))
+            {
+                if (i == parts.length - 1)
+                {
+                    segments.add("");
+                }
+                continue;
+            }
+            if ("..".equals(segment))
+            {
+                if (!segments.isEmpty())
+                {
+                    segments.remove(segments.size() - 1);
+                }
+                if (i == parts.length - 1)
+                {
+                    segments.add("");
+                }
+                continue;
+            }
+            segments.add(segment);
+        }
+
+        if (!segments.isEmpty() && indexPages.contains(segments.get(segments.size() - 1).toLowerCase(Locale.ROOT)))
+        {
+            segments.set(segments.size() - 1, "");
+        }
+
+        if (!segments.isEmpty() && !(segments.size() == 1 && segments.get(0).isEmpty()))
+        {
+            String last = segments.get(segments.size() - 1);
+            if (SLASH_REMOVE.equals(trailingSlash) && last.isEmpty())
+            {
+                segments.remove(segments.size() - 1);
+            }
+            else if (SLASH_ADD.equals(trailingSlash) && !last.isEmpty() && last.indexOf('.') == -1)
+            {
+                segments.add("");
+            }
+        }
+
+        if (segments.isEmpty()) { return "/"; }
+
+        StringBuilder sb = new StringBuilder(path.length());
+        for (String segment : segments)
+        {
+            sb.append('/').append(segment);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Remove stripped <code>;name=value</code> parameters from a path segment.
+     */
+    private String stripPathParameters(String segment)
+    {
+        int index = segment.indexOf(';');
+        if (index == -1) { return segment; }
+
+        StringBuilder sb = new StringBuilder(segment.length());
+        sb.append(segment, 0, index);
+        for (String param : segment.substring(index + 1).split(";"))
+        {
+            if (!param.isEmpty() && !isStripped(nameOf(param)))
+            {
+                sb.append(';').append(param);
+            }
+        }
+        return sb.toString();
+    }
+
+    private String normalizeQuery(String query)
+    {
+        if (query == null) { return null; }
+
+        List<String> params = new ArrayList<String>();
+        for (String param : query.split("&"))
+        {
+            if (!param.isEmpty() && !isStripped(nameOf(param)))
+            {
+                params.add(normalizeEscapes(param));
+            }
+        }
+        if (params.isEmpty()) { return null; }
+
+        if (sortQuery)
+        {
+            // stable, values of a repeated parameter keep their order
+            Collections.sort(params, new Comparator<String>()
+            {
+                @Override
+                public int compare(String a, String b)
+                {
+                    return nameOf(a).compareTo(nameOf(b));
+                }
+            });
+        }
+
+        StringBuilder sb = new StringBuilder(query.length());
+        for (String param : params)
+        {
+            if (sb.length() > 0)
+            {
+                sb.append('&');
+            }
+            sb.append(param);
+        }
+        return sb.toString();
+    }
+
+    private boolean isStripped(String name)
+    {
+        name = name.toLowerCase(Locale.ROOT);
+        if (stripNames.contains(name)) { return true; }
+
+        for (String prefix : stripPrefixes)
+        {
+            if (name.startsWith(prefix)) { return true; }
+        }
+        return false;
+    }
+
+    private static String nameOf(String param)
+    {
+        int index = param.indexOf('=');
+        return index == -1 ? param : param.substring(0, index);
+    }
+
+    /**
+     * Upper case the hex digits of percent escapes and decode escaped unreserved characters.
+     */
+    static String normalizeEscapes(String s)
+    {
+        if (s.indexOf('%') == -1) { return s; }
+
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c == '%' && i + 2 < s.length() && hexValue(s.charAt(i + 1)) != -1 && hexValue(s.charAt(i + 2)) != -1)
+            {
+                int value = hexValue(s.charAt(i + 1)) * 16 + hexValue(s.charAt(i + 2));
+                if (isUnreserved((char) value))
+                {
+                    sb.append((char) value);
+                }
+                else
+                {
+                    sb.append('%').append(HEX[value >> 4]).append(HEX[value & 0x0f]);
+                }
+                i += 2;
+                continue;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static int hexValue(char c)
+    {
+        if (c >= '0' && c <= '9') { return c - '0'; }
+        if (c >= 'a' && c <= 'f') { return c - 'a' + 10; }
+        if (c >= 'A' && c <= 'F') { return c - 'A' + 10; }
+        return -1;
+    }
+
+    private static boolean isUnreserved(char c)
+    {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '.'
+                || c == '_' || c == '~';
+    }
+}
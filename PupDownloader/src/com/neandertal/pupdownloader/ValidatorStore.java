@@ -0,0 +1,567 @@
+package com.neandertal.pupdownloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Remembers for every visited URL what is needed to recrawl it cheaply: the ETag and Last-Modified validators for a
+ * conditional GET, a hash of the body, the keywords it matched and its links.
+ * <p>
+ * The file is a journal with one line per visit, <code>url TAB etag TAB lastModified TAB hash TAB keywords TAB link
+ * TAB link...</code>, where keywords are separated by '|'. The last line of a URL wins. When the journal holds more
+ * than twice as many lines as URLs it is rewritten on open.
+ * <p>
+ * The keywords and links of a visit only hold for the keyword matcher it was made with. A header line <code>TAB
+ * matcher</code>, with a hash of the {@link KeywordMatcher#describe() matcher}, is written whenever the store is
+ * opened with another matcher than that of the last header; it applies to the lines after it. Lines before the first
+ * header were written by a version without headers, their matcher is unknown.
+ * <p>
+ * Only the position of the last line of each URL is kept in memory, in an open addressing table of URL fingerprints
+ * and file offsets, 16 bytes per slot; {@link #get(String)} reads the line back from the journal. Thread safe.
+ *
+ * @author neandertal
+ *
+ */
+public class ValidatorStore
+{
+    private static final char SEPARATOR = '\t';
+    /** Fields after the URL before the links. */
+    private static final int FIXED_FIELDS = 4;
+    private static final int COMPACT_FACTOR = 2;
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int BUFFER_SIZE = 8192;
+
+    private final File file;
+    /** Offset of the last line of each URL. */
+    private OffsetIndex index = new OffsetIndex();
+    private OutputStream writer;
+    /** Length of the journal, including what is still buffered in the writer. */
+    private long length = 0;
+    /** Opened on the first read. */
+    private RandomAccessFile reader;
+    private final byte[] readBuffer = new byte[BUFFER_SIZE];
+    /** Offsets of the header lines and their matchers, in journal order. */
+    private final List<Long> headerOffsets = new ArrayList<Long>();
+    private final List<String> headerMatchers = new ArrayList<String>();
+    /** Hash of the matcher of this run. */
+    private String matcher;
+
+    public ValidatorStore(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Load the journal.
+     *
+     * @param matcher {@link KeywordMatcher#describe() description} of the keyword matcher of this run
+     * @return number of URLs with validators
+     */
+    public synchronized int open(String matcher) throws IOException
+    {
+        this.matcher = hashOf(matcher.getBytes(StandardCharsets.UTF_8));
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null)
+        {
+            parent.mkdirs();
+        }
+
+        long lines = 0;
+        if (file.exists())
+        {
+            lines = load();
+        }
+
+        if (lines > COMPACT_FACTOR * (long) index.size())
+        {
+            compact();
+        }
+        length = file.length();
+        writer = new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE);
+        if (headerMatchers.isEmpty() || !this.matcher.equals(headerMatchers.get(headerMatchers.size() - 1)))
+        {
+            byte[] header = headerLine(this.matcher);
+            headerOffsets.add(length);
+            headerMatchers.add(this.matcher);
+            writer.write(header);
+            length += header.length;
+        }
+        return index.size();
+    }
+
+    /**
+     * Index the lines of the journal by the fingerprint of their URL and note the headers; a last line cut off by a
+     * crash is truncated.
+     *
+     * @return number of lines, without the headers
+     */
+    private long load() throws IOException
+    {
+        long lines = 0;
+        long offset = 0;
+        long lineStart = 0;
+        ByteArrayOutputStream url = new ByteArrayOutputStream(256);
+        ByteArrayOutputStream header = new ByteArrayOutputStream(64);
+        boolean inURL = true;
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try
+        {
+            int b;
+            while ((b = in.read()) != -1)
+            {
+                offset++;
+                if (b == '\n')
+                {
+                    if (!inURL && url.size() > 0)
+                    {
+                        index.put(FingerprintSet.fingerprint(new String(url.toByteArray(), StandardCharsets.UTF_8)),
+                                lineStart);
+                        lines++;
+                    }
+                    else if (!inURL)
+                    {
+                        headerOffsets.add(lineStart);
+                        headerMatchers.add(new String(header.toByteArray(), StandardCharsets.UTF_8));
+                    }
+                    url.reset();
+                    header.reset();
+                    inURL = true;
+                    lineStart = offset;
+                }
+                else if (inURL)
+                {
+                    if (b == SEPARATOR)
+                    {
+                        inURL = false;
+                    }
+                    else
+                    {
+                        url.write(b);
+                    }
+                }
+                else if (url.size() == 0)
+                {
+                    header.write(b);
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        if (lineStart < offset)
+        {
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            try
+            {
+                out.getChannel().truncate(lineStart);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * @return the validators of the last visit, or null if the URL was not visited
+     */
+    public synchronized Validator get(String url) throws IOException
+    {
+        long offset = index.get(FingerprintSet.fingerprint(url));
+        if (offset == -1) { return null; }
+
+        writer.flush();
+        String line = readLine(offset);
+        // a fingerprint collision
+        if (!line.startsWith(url) || line.length() == url.length() || line.charAt(url.length()) != SEPARATOR) { return null; }
+
+        String record = line.substring(url.length() + 1);
+        String[] fields = record.split(String.valueOf(SEPARATOR), -1);
+        if (fields.length < FIXED_FIELDS) { return null; }
+
+        List<String> links = new ArrayList<String>(fields.length - FIXED_FIELDS);
+        for (int i = FIXED_FIELDS; i < fields.length; i++)
+        {
+            if (!fields[i].isEmpty())
+            {
+                links.add(fields[i]);
+            }
+        }
+        return new Validator(url, emptyToNull(fields[0]), emptyToNull(fields[1]), fields[2],
+                KeywordMatcher.split(fields[3]), links, !matcher.equals(matcherAt(offset)));
+    }
+
+    /**
+     * @return hash of the matcher the line at the offset was written with, null if unknown
+     */
+    private String matcherAt(long offset)
+    {
+        String result = null;
+        for (int i = 0; i < headerOffsets.size() && headerOffsets.get(i) < offset; i++)
+        {
+            result = headerMatchers.get(i);
+        }
+        return result;
+    }
+
+    public synchronized void put(Validator validator) throws IOException
+    {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(clean(validator.etag)).append(SEPARATOR);
+        sb.append(clean(validator.lastModified)).append(SEPARATOR);
+        sb.append(validator.hash).append(SEPARATOR);
+        for (int i = 0; i < validator.keywords.size(); i++)
+        {
+            if (i > 0)
+            {
+                sb.append('|');
+            }
+            sb.append(clean(validator.keywords.get(i)));
+        }
+        for (String link : validator.links)
+        {
+            sb.append(SEPARATOR).append(clean(link));
+        }
+
+        byte[] line = (validator.url + SEPARATOR + sb + '\n').getBytes(StandardCharsets.UTF_8);
+        index.put(FingerprintSet.fingerprint(validator.url), length);
+        writer.write(line);
+        length += line.length;
+    }
+
+    public synchronized int size()
+    {
+        return index.size();
+    }
+
+    public synchronized void flush() throws IOException
+    {
+        if (writer != null)
+        {
+            writer.flush();
+        }
+    }
+
+    public synchronized void close() throws IOException
+    {
+        if (writer != null)
+        {
+            writer.close();
+            writer = null;
+        }
+        if (reader != null)
+        {
+            reader.close();
+            reader = null;
+        }
+    }
+
+    /**
+     * Hash identifying the content of a body.
+     */
+    public static String hashOf(byte[] body)
+    {
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] digest = md.digest(body);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+            {
+                sb.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
+            }
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // every JVM has MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the line at the offset, without its line break
+     */
+    private String readLine(long offset) throws IOException
+    {
+        if (reader == null)
+        {
+            reader = new RandomAccessFile(file, "r");
+        }
+        reader.seek(offset);
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        int n;
+        while ((n = reader.read(readBuffer)) > 0)
+        {
+            int end = 0;
+            while (end < n && readBuffer[end] != '\n')
+            {
+                end++;
+            }
+            line.write(readBuffer, 0, end);
+            if (end < n)
+            {
+                break;
+            }
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write the last line of each URL, in journal order, to a temporary file and rename it over the journal. A header
+     * is written again before the first line kept after it.
+     */
+    private void compact() throws IOException
+    {
+        long[] offsets = index.offsets();
+        Arrays.sort(offsets);
+        OffsetIndex compacted = new OffsetIndex();
+        List<Long> compactedOffsets = new ArrayList<Long>();
+        List<String> compactedMatchers = new ArrayList<String>();
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE);
+        try
+        {
+            long offset = 0;
+            String lastMatcher = null;
+            for (long old : offsets)
+            {
+                String lineMatcher = matcherAt(old);
+                if (lineMatcher != null && !lineMatcher.equals(lastMatcher))
+                {
+                    byte[] header = headerLine(lineMatcher);
+                    compactedOffsets.add(offset);
+                    compactedMatchers.add(lineMatcher);
+                    out.write(header);
+                    offset += header.length;
+                    lastMatcher = lineMatcher;
+                }
+
+                String line = readLine(old);
+                byte[] bytes = (line + '\n').getBytes(StandardCharsets.UTF_8);
+                compacted.put(FingerprintSet.fingerprint(line.substring(0, line.indexOf(SEPARATOR))), offset);
+                out.write(bytes);
+                offset += bytes.length;
+            }
+        }
+        finally
+        {
+            out.close();
+            reader.close();
+            reader = null;
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index = compacted;
+        headerOffsets.clear();
+        headerOffsets.addAll(compactedOffsets);
+        headerMatchers.clear();
+        headerMatchers.addAll(compactedMatchers);
+    }
+
+    private static byte[] headerLine(String matcher)
+    {
+        return (String.valueOf(SEPARATOR) + matcher + '\n').getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Header values and links must not break the line format. */
+    private static String clean(String s)
+    {
+        if (s == null) { return ""; }
+
+        return s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private static String emptyToNull(String s)
+    {
+        return s.isEmpty() ? null : s;
+    }
+
+    /**
+     * Map of URL fingerprints to file offsets: open addressing with linear probing over parallel arrays, like
+     * {@link FingerprintSet}. Not thread safe.
+     */
+    private static class OffsetIndex
+    {
+        private static final long EMPTY = 0L;
+        private static final int MIN_CAPACITY = 1 << 10;
+
+        private long[] keys = new long[MIN_CAPACITY];
+        private long[] values = new long[MIN_CAPACITY];
+        private int mask = MIN_CAPACITY - 1;
+        private int size = 0;
+
+        /**
+         * @param fp fingerprint, never 0
+         */
+        private void put(long fp, long offset)
+        {
+            int slot = slotOf(fp);
+            while (keys[slot] != EMPTY && keys[slot] != fp)
+            {
+                slot = (slot + 1) & mask;
+            }
+            values[slot] = offset;
+            if (keys[slot] == EMPTY)
+            {
+                keys[slot] = fp;
+                size++;
+                if (size > keys.length / 4 * 3)
+                {
+                    resize();
+                }
+            }
+        }
+
+        /**
+         * @return the offset, or -1 if the fingerprint is not in the index
+         */
+        private long get(long fp)
+        {
+            for (int slot = slotOf(fp); keys[slot] != EMPTY; slot = (slot + 1) & mask)
+            {
+                if (keys[slot] == fp) { return values[slot]; }
+            }
+            return -1;
+        }
+
+        private int size()
+        {
+            return size;
+        }
+
+        private long[] offsets()
+        {
+            long[] offsets = new long[size];
+            int count = 0;
+            for (int slot = 0; slot < keys.length; slot++)
+            {
+                if (keys[slot] != EMPTY)
+                {
+                    offsets[count++] = values[slot];
+                }
+            }
+            return offsets;
+        }
+
+        private int slotOf(long fp)
+        {
+            return (int) (fp ^ (fp >>> 32)) & mask;
+        }
+
+        private void resize()
+        {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new long[oldKeys.length * 2];
+            mask = keys.length - 1;
+            size = 0;
+            for (int slot = 0; slot < oldKeys.length; slot++)
+            {
+                if (oldKeys[slot] != EMPTY)
+                {
+                    put(oldKeys[slot], oldValues[slot]);
+                }
+            }
+        }
+    }
+
+    /**
+     * What a visit of a URL left behind.
+     */
+    public static class Validator
+    {
+        private final String url;
+        private final String etag;
+        private final String lastModified;
+        private final String hash;
+        private final List<String> keywords;
+        private final List<String> links;
+        private final boolean matcherChanged;
+
+        /**
+         * @param keywords keywords of the match, empty if the page did not match
+         */
+        public Validator(String url, String etag, String lastModified, String hash, List<String> keywords,
+                List<String> links)
+        {
+            this(url, etag, lastModified, hash, keywords, links, false);
+        }
+
+        private Validator(String url, String etag, String lastModified, String hash, List<String> keywords,
+                List<String> links, boolean matcherChanged)
+        {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.keywords = Collections.unmodifiableList(keywords);
+            this.links = Collections.unmodifiableList(links);
+            this.matcherChanged = matcherChanged;
+        }
+
+        public String getUrl()
+        {
+            return url;
+        }
+
+        public String getEtag()
+        {
+            return etag;
+        }
+
+        public String getLastModified()
+        {
+            return lastModified;
+        }
+
+        public String getHash()
+        {
+            return hash;
+        }
+
+        public List<String> getKeywords()
+        {
+            return keywords;
+        }
+
+        public List<String> getLinks()
+        {
+            return links;
+        }
+
+        public boolean isMatch()
+        {
+            return !keywords.isEmpty();
+        }
+
+        /**
+         * @return true if the visit was matched with other keywords, regular expressions or mode than this run uses,
+         *         or with unknown ones; its keywords and links do not hold any more
+         */
+        public boolean isMatcherChanged()
+        {
+            return matcherChanged;
+        }
+    }
+}
@@ -3,24 +3,37 @@ package com.neandertal.pupdownloader;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.text.MessageFormat;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
 
-import org.jsoup.Connection;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
@@ -39,31 +52,253 @@ public class WebCrawler
 
     private static final String KEY_SITE = "site";
     private static final String KEY_KEYWORD = "keyword";
+    private static final String KEY_KEYWORD_REGEX = "keyword_regex";
+    private static final String KEY_KEYWORD_MODE = "keyword_mode";
+    private static final String KEY_LINK_EXTRACTOR = "link_extractor";
     private static final String KEY_VISITED_URLS_FILE = "visited_urls_file";
     private static final String KEY_MATCHING_URLS_FILE = "matching_urls_file";
     private static final String KEY_TOVISIT_URLS_FILE = "tovisit_urls_file";
     private static final String KEY_LOG_FILE = "log_file";
+    private static final String KEY_THREADS = "threads";
+    private static final String KEY_HOST_CONNECTIONS = "host_connections";
+    private static final String KEY_FRONTIER_COMMIT_INTERVAL = "frontier_commit_interval";
+    private static final String KEY_OFF_HEAP_SETS = "off_heap_sets";
+    private static final String KEY_FRONTIER_ORDER = "frontier_order";
+    private static final String KEY_TIME_LIMIT = "time_limit";
+    private static final String KEY_MAX_PAGE_SIZE = "max_page_size";
+    private static final String KEY_TIMEOUT = "timeout";
+    private static final String KEY_DNS_CACHE_TTL = "dns_cache_ttl";
+    private static final String KEY_CANONICALIZE = "canonicalize";
+    private static final String KEY_STRIP_PARAMS = "strip_params";
+    private static final String KEY_SORT_QUERY = "sort_query";
+    private static final String KEY_INDEX_PAGES = "index_pages";
+    private static final String KEY_TRAILING_SLASH = "trailing_slash";
+    private static final String KEY_VALIDATORS_FILE = "validators_file";
+    private static final String KEY_RECRAWL = "recrawl";
+    private static final String KEY_LOG_LEVEL = "log_level";
+    private static final String KEY_CHECKPOINT_FILE = "checkpoint_file";
+    private static final String KEY_CHECKPOINT_INTERVAL = "checkpoint_interval";
+    private static final String KEY_FRONTIER_MEMORY = "frontier_memory";
+    private static final String KEY_ROBOTS = "robots";
+    private static final String KEY_SITEMAPS = "sitemaps";
+    private static final String KEY_MAX_SITEMAPS = "max_sitemaps";
+    private static final String KEY_RATE_CONTROL = "rate_control";
+    private static final String KEY_INITIAL_RATE = "initial_rate";
+    private static final String KEY_MAX_RATE = "max_rate";
+    private static final String KEY_MAX_RETRIES = "max_retries";
+    private static final String KEY_METRICS_PORT = "metrics_port";
+    private static final String KEY_PIPELINE = "pipeline";
+    private static final String KEY_DOWNLOAD_THREADS = "download_threads";
+    private static final String KEY_DOWNLOAD_QUEUE = "download_queue";
+    private static final String KEY_STORE_CONTENT = "store_content";
+    private static final String KEY_CONTENT_STORE_FILE = "content_store_file";
+    private static final String KEY_OFFLINE = "offline";
+    private static final String KEY_NEAR_DUPLICATES = "near_duplicates";
+    private static final String KEY_NEAR_DUPLICATE_DISTANCE = "near_duplicate_distance";
+    private static final String KEY_PATTERN_BUDGET = "pattern_budget";
+    private static final String KEY_DEPTH_BUDGET = "depth_budget";
+    private static final String KEY_MAX_DEPTH = "max_depth";
+    private static final String KEY_VERIFY_THREADS = "verify_threads";
+    private static final String KEY_VERIFY_QUEUE = "verify_queue";
+    private static final String KEY_MATCHES_MANIFEST_FILE = "matches_manifest_file";
+    private static final String KEY_SCOPE_INCLUDE = "scope_include";
+    private static final String KEY_SCOPE_INCLUDE_REGEX = "scope_include_regex";
+    private static final String KEY_SCOPE_EXCLUDE = "scope_exclude";
+    private static final String KEY_SCOPE_EXCLUDE_REGEX = "scope_exclude_regex";
+    private static final String KEY_NODES = "nodes";
+    private static final String KEY_NODE_ID = "node_id";
+    private static final String KEY_ROUTE_BATCH = "route_batch";
+    private static final String KEY_ROUTE_INTERVAL = "route_interval";
+    private static final String KEY_CLUSTER_TIMEOUT = "cluster_timeout";
+
+    private static final List<String> KEYS = Arrays.asList(KEY_SITE, KEY_KEYWORD, KEY_VISITED_URLS_FILE,
+            KEY_MATCHING_URLS_FILE, KEY_TOVISIT_URLS_FILE, KEY_LOG_FILE, KEY_THREADS, KEY_HOST_CONNECTIONS,
+            KEY_FRONTIER_COMMIT_INTERVAL, KEY_OFF_HEAP_SETS, KEY_FRONTIER_ORDER, KEY_TIME_LIMIT,
+            KEY_MAX_PAGE_SIZE, KEY_TIMEOUT, KEY_KEYWORD_REGEX, KEY_KEYWORD_MODE,
+            KEY_LINK_EXTRACTOR, KEY_DNS_CACHE_TTL, KEY_CANONICALIZE, KEY_STRIP_PARAMS, KEY_SORT_QUERY,
+            KEY_INDEX_PAGES, KEY_TRAILING_SLASH, KEY_VALIDATORS_FILE, KEY_RECRAWL,
+            KEY_LOG_LEVEL, KEY_CHECKPOINT_FILE, KEY_CHECKPOINT_INTERVAL, KEY_FRONTIER_MEMORY,
+            KEY_ROBOTS, KEY_SITEMAPS, KEY_MAX_SITEMAPS, KEY_RATE_CONTROL, KEY_INITIAL_RATE, KEY_MAX_RATE,
+            KEY_MAX_RETRIES, KEY_METRICS_PORT, KEY_PIPELINE, KEY_DOWNLOAD_THREADS, KEY_DOWNLOAD_QUEUE,
+            KEY_STORE_CONTENT, KEY_CONTENT_STORE_FILE, KEY_OFFLINE, KEY_NEAR_DUPLICATES,
+            KEY_NEAR_DUPLICATE_DISTANCE, KEY_PATTERN_BUDGET, KEY_DEPTH_BUDGET, KEY_MAX_DEPTH, KEY_VERIFY_THREADS,
+            KEY_VERIFY_QUEUE, KEY_MATCHES_MANIFEST_FILE, KEY_SCOPE_INCLUDE, KEY_SCOPE_INCLUDE_REGEX,
+            KEY_SCOPE_EXCLUDE, KEY_SCOPE_EXCLUDE_REGEX, KEY_NODES, KEY_NODE_ID, KEY_ROUTE_BATCH, KEY_ROUTE_INTERVAL,
+            KEY_CLUSTER_TIMEOUT);
+
+    /** Files kept apart per node when the crawl is distributed and they are not given. */
+    private static final List<String> FILE_KEYS = Arrays.asList(KEY_VISITED_URLS_FILE, KEY_MATCHING_URLS_FILE,
+            KEY_TOVISIT_URLS_FILE, KEY_LOG_FILE, KEY_VALIDATORS_FILE, KEY_CHECKPOINT_FILE, KEY_CONTENT_STORE_FILE,
+            KEY_MATCHES_MANIFEST_FILE);
+    private static final String DEFAULT_FOLDER = "webcrawler/";
 
     private static final String DEFAULT_VISITED_URLS_FILE = "webcrawler/visited_urls.txt";
     private static final String DEFAULT_MATCHING_URLS_FILE = "webcrawler/matching_urls.txt";
     private static final String DEFAULT_TOVISIT_URLS_FILE = "webcrawler/tovisit_urls.txt";
     private static final String DEFAULT_LOG_FILE = "webcrawler/log.txt";
+    private static final String DEFAULT_VALIDATORS_FILE = "webcrawler/validators.txt";
+    private static final String DEFAULT_CHECKPOINT_FILE = "webcrawler/checkpoint.bin";
+    private static final String DEFAULT_CONTENT_STORE_FILE = "webcrawler/content.gz";
+    private static final String DEFAULT_MATCHES_MANIFEST_FILE = "webcrawler/matches.jsonl";
+    private static final String DEFAULT_THREADS = "1";
+    private static final String DEFAULT_HOST_CONNECTIONS = "2";
+    private static final String DEFAULT_FRONTIER_COMMIT_INTERVAL = "200";
+    private static final String DEFAULT_OFF_HEAP_SETS = "false";
+    private static final String DEFAULT_TIME_LIMIT = "0";
+    private static final String DEFAULT_MAX_PAGE_SIZE = "1048576";
+    private static final String DEFAULT_TIMEOUT = "10000";
+    private static final String DEFAULT_DNS_CACHE_TTL = "300";
+    private static final String DEFAULT_CANONICALIZE = "true";
+    private static final String DEFAULT_STRIP_PARAMS = "jsessionid|phpsessid|sessionid|aspsessionid*|utm_*|gclid|fbclid";
+    private static final String DEFAULT_SORT_QUERY = "true";
+    private static final String DEFAULT_INDEX_PAGES = "index.php|index.html|index.htm";
+    private static final String DEFAULT_RECRAWL = "false";
+    private static final String DEFAULT_LOG_LEVEL = "info";
+    private static final String DEFAULT_CHECKPOINT_INTERVAL = "300";
+    /** In MB, 0 for no limit. */
+    private static final String DEFAULT_FRONTIER_MEMORY = "128";
+    private static final String DEFAULT_ROBOTS = "true";
+    private static final String DEFAULT_SITEMAPS = "true";
+    private static final String DEFAULT_MAX_SITEMAPS = "1000";
+    private static final String DEFAULT_RATE_CONTROL = "true";
+    /** Requests per second. */
+    private static final String DEFAULT_INITIAL_RATE = "5";
+    private static final String DEFAULT_MAX_RATE = "50";
+    private static final String DEFAULT_MAX_RETRIES = "3";
+    /** 0 for no metrics endpoint. */
+    private static final String DEFAULT_METRICS_PORT = "0";
+    private static final String DEFAULT_PIPELINE = "false";
+    private static final String DEFAULT_DOWNLOAD_THREADS = "2";
+    private static final String DEFAULT_DOWNLOAD_QUEUE = "100";
+    private static final String DEFAULT_STORE_CONTENT = "false";
+    private static final String DEFAULT_OFFLINE = "false";
+    private static final String DEFAULT_NEAR_DUPLICATES = "true";
+    private static final String DEFAULT_NEAR_DUPLICATE_DISTANCE = "3";
+    /** URLs crawled per pattern; patterns that produced a match have none. */
+    private static final String DEFAULT_PATTERN_BUDGET = "10000";
+    private static final String DEFAULT_DEPTH_BUDGET = "0";
+    private static final String DEFAULT_MAX_DEPTH = "0";
+    private static final String DEFAULT_VERIFY_THREADS = "4";
+    private static final String DEFAULT_VERIFY_QUEUE = "1000";
+    private static final String DEFAULT_NODE_ID = "0";
+    private static final String DEFAULT_ROUTE_BATCH = "500";
+    /** Milliseconds. */
+    private static final String DEFAULT_ROUTE_INTERVAL = "100";
+    /** Seconds. */
+    private static final String DEFAULT_CLUSTER_TIMEOUT = "60";
+
+    /** Parameters with this prefix are passed to the downloader in pipeline mode, without it. */
+    private static final String DOWNLOAD_PREFIX = "download_";
+
+    /** Backoff before the first retry, doubled for each further one. */
+    private static final long RETRY_DELAY = 1000;
+    private static final long MAX_RETRY_DELAY = TimeUnit.MINUTES.toMillis(5);
+
+    /** Matched against the User-agent lines of robots.txt. */
+    private static final String ROBOTS_AGENT = "pupdownloader";
+
+    private static final String ORDER_FOCUSED = "focused";
+    private static final String ORDER_FIFO = "fifo";
+
+    private static final String MODE_ANY = "any";
+    private static final String MODE_ALL = "all";
+
+    private static final String EXTRACTOR_STREAM = "stream";
+    private static final String EXTRACTOR_JSOUP = "jsoup";
+
+    /** Separates the URL from the found keywords in the matching file. */
+    private static final char MATCH_SEPARATOR = '\t';
     private static final String UTF8 = "UTF-8";
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
 
     private Map<String, String> parameters;
     private URL siteURL;
 
-    private HashSet<String> visitedURLs = new HashSet<String>();
-    private HashSet<String> toVisitURLs = new HashSet<String>();
-    private HashSet<String> matchingURLs = new HashSet<String>();
+    private FingerprintSet visitedURLs;
+    private CrawlFrontier frontier;
+    private FingerprintSet matchingURLs;
 
     private int pushLimit = 100;
+    private int threads;
+    private HostLimiter hostLimiter;
+    private HttpService httpService;
+    private PageFetcher pageFetcher;
+    private KeywordMatcher keywordMatcher;
+    private ScopeFilter scope;
+    private AtomicInteger outOfScopeURLs = new AtomicInteger();
+    /** Null if links are only cut at the fragment. */
+    private UrlCanonicalizer canonicalizer;
+    /** Links that canonicalization changed, to count each avoided fetch once. */
+    private FingerprintSet rewrittenURLs;
+    private int savedFetches = 0;
+    private ValidatorStore validators;
+    private AtomicInteger unchangedPages = new AtomicInteger();
+    /** Null if robots.txt is ignored. */
+    private RobotsCache robots;
+    private AtomicInteger disallowedURLs = new AtomicInteger();
+    /** Pages that failed with a retryable error, waiting for their backoff. */
+    private DelayQueue<Retry> retries = new DelayQueue<Retry>();
+    private int maxRetries;
+    private AtomicInteger retriedURLs = new AtomicInteger();
+    private AtomicInteger failedURLs = new AtomicInteger();
+    /** Null if near duplicates are crawled like other pages. */
+    private NearDuplicates nearDuplicates;
+    private int patternBudget;
+    private int depthBudget;
+    private int maxDepth;
+    /** URLs taken from the frontier per pattern and per depth, since the start of this run. */
+    private ConcurrentHashMap<String, AtomicInteger> patternCounts = new ConcurrentHashMap<String, AtomicInteger>();
+    private ConcurrentHashMap<Integer, AtomicInteger> depthCounts = new ConcurrentHashMap<Integer, AtomicInteger>();
+    /** Patterns of matching pages, not limited by the pattern budget. */
+    private Set<String> matchingPatterns = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private Metrics metrics = new Metrics("pup_crawler");
+    private Metrics.Counter pagesFetched = metrics.counter("pages_fetched", "Page responses received.");
+    private Metrics.Counter bytesFetched = metrics.counter("bytes_fetched", "Page body bytes received.");
+    private Metrics.Counter fetchErrors = metrics.counter("fetch_errors", "Page requests failed or throttled.");
+    private Metrics.Counter matchesFound = metrics.counter("matches", "Matching pages found.");
+    private Metrics.Counter nearDuplicatePages = metrics.counter("near_duplicates",
+            "Pages whose links were not followed, as their text is nearly the same as a page seen before.");
+    private Metrics.Counter patternBudgetSkips = metrics.counter("pattern_budget_skips",
+            "URLs not crawled because their pattern used up its budget.");
+    private Metrics.Counter candidatesRejected = metrics.counter("candidates_rejected",
+            "Pages matching the keywords without a Zoomify image.");
+    private Metrics.Counter depthBudgetSkips = metrics.counter("depth_budget_skips",
+            "URLs not crawled because they are too deep or their depth used up its budget.");
+    private Metrics.Histogram fetchTime = metrics.histogram("fetch_seconds", "Time to fetch a page.");
+    private Metrics.Histogram parseTime = metrics.histogram("parse_seconds",
+            "Time to decode, match and extract the links of a page.");
+    private Metrics.Histogram verifyTime = metrics.histogram("verify_seconds",
+            "Time to verify the image of a page matching the keywords, retries included.");
+    private Metrics.Histogram downloadWaitTime = metrics.histogram("download_wait_seconds",
+            "Time a crawler thread waited for room in the download queue.");
+    private MetricsJmx metricsJmx;
+    private MetricsServer metricsServer;
+
+    /** Null when matching offline. */
+    private MatchVerifier verifier;
+
+    /** Null unless the crawl is distributed. */
+    private ClusterNode cluster;
+
+    /** Null unless in pipeline mode. */
+    private ZoomifyDownloader downloader;
+    private DownloadPipeline pipeline;
+
+    /** Null unless page bodies are stored or matched offline. */
+    private ContentStore contentStore;
+    private boolean offline;
+
+    /** Guards the URL sets, their files and {@link #inFlight}; taken before the frontier's own lock. */
+    private final Object lock = new Object();
+    private int inFlight = 0;
     private int[] lastSaveVisited = new int[1];
     private int[] lastSaveMatching = new int[1];
 
-    private BufferedWriter logFile;
+    private AsyncLogger logger = new AsyncLogger();
     private BufferedWriter visitedFile;
     private BufferedWriter matchingFile;
+    private BufferedWriter manifestFile;
 
     private static AtomicBoolean toQuit = new AtomicBoolean(false);
 
@@ -97,23 +332,170 @@ public class WebCrawler
         }
     }
 
-    private void init(String[] args) throws Exception
+    /**
+     * Crawl in the calling thread, for tools that embed the crawler such as benchmarks. Takes the same parameters as
+     * {@link #main(String[])}; errors are thrown instead of logged.
+     *
+     * @return the metrics at the end of the crawl, by name
+     */
+    static Map<String, Object> run(String[] args) throws Exception
     {
-        HttpURLConnection.setFollowRedirects(false);
+        WebCrawler wc = new WebCrawler();
+        try
+        {
+            wc.init(args);
+            wc.work();
+            return wc.metrics.snapshot();
+        }
+        finally
+        {
+            wc.finish();
+        }
+    }
 
+    private void init(String[] args) throws Exception
+    {
         readParameters(args);
 
-        logFile = createWriter(parameters.get(KEY_LOG_FILE));
+        logger.setLevel(AsyncLogger.parseLevel(parameters.get(KEY_LOG_LEVEL)));
+        logger.setFile(createWriter(parameters.get(KEY_LOG_FILE)));
+
+        threads = getIntParameter(KEY_THREADS);
+        hostLimiter = new HostLimiter(getIntParameter(KEY_HOST_CONNECTIONS),
+                Boolean.parseBoolean(parameters.get(KEY_RATE_CONTROL)), getIntParameter(KEY_INITIAL_RATE),
+                getIntParameter(KEY_MAX_RATE));
+        maxRetries = getIntParameter(KEY_MAX_RETRIES);
+        httpService = new HttpService(USER_AGENT, getIntParameter(KEY_TIMEOUT), getIntParameter(KEY_DNS_CACHE_TTL));
+        pageFetcher = new PageFetcher(httpService, getIntParameter(KEY_MAX_PAGE_SIZE));
+        offline = Boolean.parseBoolean(parameters.get(KEY_OFFLINE));
+        if (Boolean.parseBoolean(parameters.get(KEY_ROBOTS)) && !offline)
+        {
+            robots = new RobotsCache(httpService, hostLimiter, logger, ROBOTS_AGENT);
+        }
+
+        List<String> regexes = new ArrayList<String>();
+        if (parameters.get(KEY_KEYWORD_REGEX) != null)
+        {
+            regexes.add(parameters.get(KEY_KEYWORD_REGEX));
+        }
+        keywordMatcher = new KeywordMatcher(KeywordMatcher.split(parameters.get(KEY_KEYWORD)), regexes,
+                MODE_ALL.equals(parameters.get(KEY_KEYWORD_MODE)));
+        try
+        {
+            scope = new ScopeFilter(siteURL.getHost(), KeywordMatcher.split(parameters.get(KEY_SCOPE_INCLUDE)),
+                    parameters.get(KEY_SCOPE_INCLUDE_REGEX), KeywordMatcher.split(parameters.get(KEY_SCOPE_EXCLUDE)),
+                    parameters.get(KEY_SCOPE_EXCLUDE_REGEX));
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IllegalArgumentException("Invalid scope parameter: " + e.getMessage());
+        }
+        if (Boolean.parseBoolean(parameters.get(KEY_NEAR_DUPLICATES)))
+        {
+            nearDuplicates = new NearDuplicates(getIntParameter(KEY_NEAR_DUPLICATE_DISTANCE));
+        }
+        patternBudget = getIntParameter(KEY_PATTERN_BUDGET);
+        depthBudget = getIntParameter(KEY_DEPTH_BUDGET);
+        maxDepth = getIntParameter(KEY_MAX_DEPTH);
+        log("Crawling with {0} threads, {1} connections per host.", threads, getIntParameter(KEY_HOST_CONNECTIONS));
+
+        boolean offHeap = Boolean.parseBoolean(parameters.get(KEY_OFF_HEAP_SETS));
+        if (Boolean.parseBoolean(parameters.get(KEY_CANONICALIZE)))
+        {
+            canonicalizer = new UrlCanonicalizer(KeywordMatcher.split(parameters.get(KEY_STRIP_PARAMS)),
+                    Boolean.parseBoolean(parameters.get(KEY_SORT_QUERY)),
+                    KeywordMatcher.split(parameters.get(KEY_INDEX_PAGES)), parameters.get(KEY_TRAILING_SLASH));
+        }
+        rewrittenURLs = new FingerprintSet(offHeap);
+        visitedURLs = new FingerprintSet(offHeap);
+        matchingURLs = new FingerprintSet(offHeap);
+
+        boolean recrawl = Boolean.parseBoolean(parameters.get(KEY_RECRAWL));
+        String toVisitFileName = parameters.get(KEY_TOVISIT_URLS_FILE);
+        String matchingFileName = parameters.get(KEY_MATCHING_URLS_FILE);
+        String visitedFileName = parameters.get(KEY_VISITED_URLS_FILE);
+
+        // the checkpoint holds the sets for the start of the URL files, only the rest is read
+        CrawlCheckpoint checkpoint = readCheckpoint(offHeap);
+        long matchingOffset = 0;
+        long visitedOffset = 0;
+        if (checkpoint != null && checkpoint.getMatchingOffset() <= new File(matchingFileName).length())
+        {
+            matchingURLs = checkpoint.getMatching();
+            matchingOffset = checkpoint.getMatchingOffset();
+        }
+        if (checkpoint != null && !recrawl && checkpoint.getVisitedOffset() <= new File(visitedFileName).length())
+        {
+            visitedURLs = checkpoint.getVisited();
+            visitedOffset = checkpoint.getVisitedOffset();
+        }
+
+        readFileToList(matchingFileName, matchingURLs, matchingOffset);
+        if (recrawl)
+        {
+            // a new pass over the site, the validators of the previous passes make it cheap
+            log("Recrawl: starting a new pass, previous visited and to visit URLs are dropped.");
+            CrawlFrontier.delete(new File(toVisitFileName));
+        }
+        else
+        {
+            readFileToList(visitedFileName, visitedURLs, visitedOffset);
+        }
+        log("Known URLs: {0} visited, {1} matching.", visitedURLs.size(), matchingURLs.size());
+
+        log("Reading file: {0}", toVisitFileName);
+        boolean focused = ORDER_FOCUSED.equals(parameters.get(KEY_FRONTIER_ORDER));
+        long frontierMemory = getIntParameter(KEY_FRONTIER_MEMORY) * 1024L * 1024L;
+        frontier = new CrawlFrontier(new File(toVisitFileName), getIntParameter(KEY_FRONTIER_COMMIT_INTERVAL), offHeap,
+                focused, frontierMemory, logger);
+        long records = frontier.open();
+        log("Loaded {0} URLs to visit from {1} journal records, {2} spilled to disk.", frontier.size(), records,
+                frontier.spilled());
+
+        validators = new ValidatorStore(new File(parameters.get(KEY_VALIDATORS_FILE)));
+        log("Loaded validators of {0} URLs.", validators.open(keywordMatcher.describe()));
+
+        if (offline || Boolean.parseBoolean(parameters.get(KEY_STORE_CONTENT)))
+        {
+            File storeFile = new File(parameters.get(KEY_CONTENT_STORE_FILE));
+            if (offline && !storeFile.exists()) { throw new IllegalArgumentException("Missing content store: " + storeFile); }
+
+            contentStore = new ContentStore(storeFile);
+            log("Content store: {0} pages in {1}.", contentStore.open(), storeFile);
+        }
+
+        startMetrics();
+        if (!getNodes().isEmpty() && !offline)
+        {
+            startCluster();
+        }
+        if (Boolean.parseBoolean(parameters.get(KEY_PIPELINE)) && !offline)
+        {
+            startPipeline(args);
+        }
 
-        readFileToList(parameters.get(KEY_MATCHING_URLS_FILE), matchingURLs);
-        readFileToList(parameters.get(KEY_VISITED_URLS_FILE), visitedURLs);
-        readFileToList(parameters.get(KEY_TOVISIT_URLS_FILE), toVisitURLs);
+        // append, the files already hold the URLs of previous runs
+        visitedFile = createWriter(parameters.get(KEY_VISITED_URLS_FILE), !recrawl);
+        matchingFile = createWriter(parameters.get(KEY_MATCHING_URLS_FILE), true);
+        manifestFile = createWriter(parameters.get(KEY_MATCHES_MANIFEST_FILE), true);
+        if (recrawl)
+        {
+            // the old checkpoint holds the visited URLs of the previous pass, valid again once the file regrows
+            writeCheckpoint();
+        }
 
-        visitedFile = createWriter(parameters.get(KEY_VISITED_URLS_FILE));
-        matchingFile = createWriter(parameters.get(KEY_MATCHING_URLS_FILE));
+        if (!offline)
+        {
+            startVerifier();
+        }
     }
 
     private BufferedWriter createWriter(String fileName) throws Exception
+    {
+        return createWriter(fileName, false);
+    }
+
+    private BufferedWriter createWriter(String fileName, boolean append) throws Exception
     {
         File file = new File(fileName);
         
@@ -123,6 +505,10 @@ public class WebCrawler
             parent.mkdirs();
         }
         
+        if (append)
+        {
+            return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF8));
+        }
         return new BufferedWriter(new PrintWriter(file, UTF8));
     }
     
@@ -130,65 +516,206 @@ public class WebCrawler
     {
         parameters = new HashMap<String, String>();
         parameters.put(KEY_LOG_FILE, DEFAULT_LOG_FILE);
+        parameters.put(KEY_VALIDATORS_FILE, DEFAULT_VALIDATORS_FILE);
+        parameters.put(KEY_RECRAWL, DEFAULT_RECRAWL);
+        parameters.put(KEY_LOG_LEVEL, DEFAULT_LOG_LEVEL);
+        parameters.put(KEY_CHECKPOINT_FILE, DEFAULT_CHECKPOINT_FILE);
+        parameters.put(KEY_CHECKPOINT_INTERVAL, DEFAULT_CHECKPOINT_INTERVAL);
+        parameters.put(KEY_FRONTIER_MEMORY, DEFAULT_FRONTIER_MEMORY);
+        parameters.put(KEY_ROBOTS, DEFAULT_ROBOTS);
+        parameters.put(KEY_SITEMAPS, DEFAULT_SITEMAPS);
+        parameters.put(KEY_MAX_SITEMAPS, DEFAULT_MAX_SITEMAPS);
+        parameters.put(KEY_RATE_CONTROL, DEFAULT_RATE_CONTROL);
+        parameters.put(KEY_INITIAL_RATE, DEFAULT_INITIAL_RATE);
+        parameters.put(KEY_MAX_RATE, DEFAULT_MAX_RATE);
+        parameters.put(KEY_MAX_RETRIES, DEFAULT_MAX_RETRIES);
+        parameters.put(KEY_METRICS_PORT, DEFAULT_METRICS_PORT);
+        parameters.put(KEY_PIPELINE, DEFAULT_PIPELINE);
+        parameters.put(KEY_DOWNLOAD_THREADS, DEFAULT_DOWNLOAD_THREADS);
+        parameters.put(KEY_DOWNLOAD_QUEUE, DEFAULT_DOWNLOAD_QUEUE);
+        parameters.put(KEY_STORE_CONTENT, DEFAULT_STORE_CONTENT);
+        parameters.put(KEY_CONTENT_STORE_FILE, DEFAULT_CONTENT_STORE_FILE);
+        parameters.put(KEY_OFFLINE, DEFAULT_OFFLINE);
+        parameters.put(KEY_NEAR_DUPLICATES, DEFAULT_NEAR_DUPLICATES);
+        parameters.put(KEY_NEAR_DUPLICATE_DISTANCE, DEFAULT_NEAR_DUPLICATE_DISTANCE);
+        parameters.put(KEY_PATTERN_BUDGET, DEFAULT_PATTERN_BUDGET);
+        parameters.put(KEY_DEPTH_BUDGET, DEFAULT_DEPTH_BUDGET);
+        parameters.put(KEY_MAX_DEPTH, DEFAULT_MAX_DEPTH);
+        parameters.put(KEY_VERIFY_THREADS, DEFAULT_VERIFY_THREADS);
+        parameters.put(KEY_VERIFY_QUEUE, DEFAULT_VERIFY_QUEUE);
+        parameters.put(KEY_MATCHES_MANIFEST_FILE, DEFAULT_MATCHES_MANIFEST_FILE);
+        parameters.put(KEY_NODE_ID, DEFAULT_NODE_ID);
+        parameters.put(KEY_ROUTE_BATCH, DEFAULT_ROUTE_BATCH);
+        parameters.put(KEY_ROUTE_INTERVAL, DEFAULT_ROUTE_INTERVAL);
+        parameters.put(KEY_CLUSTER_TIMEOUT, DEFAULT_CLUSTER_TIMEOUT);
         parameters.put(KEY_MATCHING_URLS_FILE, DEFAULT_MATCHING_URLS_FILE);
         parameters.put(KEY_VISITED_URLS_FILE, DEFAULT_VISITED_URLS_FILE);
         parameters.put(KEY_TOVISIT_URLS_FILE, DEFAULT_TOVISIT_URLS_FILE);
+        parameters.put(KEY_THREADS, DEFAULT_THREADS);
+        parameters.put(KEY_HOST_CONNECTIONS, DEFAULT_HOST_CONNECTIONS);
+        parameters.put(KEY_FRONTIER_COMMIT_INTERVAL, DEFAULT_FRONTIER_COMMIT_INTERVAL);
+        parameters.put(KEY_OFF_HEAP_SETS, DEFAULT_OFF_HEAP_SETS);
+        parameters.put(KEY_FRONTIER_ORDER, ORDER_FOCUSED);
+        parameters.put(KEY_TIME_LIMIT, DEFAULT_TIME_LIMIT);
+        parameters.put(KEY_MAX_PAGE_SIZE, DEFAULT_MAX_PAGE_SIZE);
+        parameters.put(KEY_TIMEOUT, DEFAULT_TIMEOUT);
+        parameters.put(KEY_DNS_CACHE_TTL, DEFAULT_DNS_CACHE_TTL);
+        parameters.put(KEY_CANONICALIZE, DEFAULT_CANONICALIZE);
+        parameters.put(KEY_STRIP_PARAMS, DEFAULT_STRIP_PARAMS);
+        parameters.put(KEY_SORT_QUERY, DEFAULT_SORT_QUERY);
+        parameters.put(KEY_INDEX_PAGES, DEFAULT_INDEX_PAGES);
+        parameters.put(KEY_TRAILING_SLASH, UrlCanonicalizer.SLASH_KEEP);
+        parameters.put(KEY_KEYWORD_MODE, MODE_ANY);
+        parameters.put(KEY_LINK_EXTRACTOR, EXTRACTOR_STREAM);
 
+        Set<String> given = new HashSet<String>();
         for (String arg : args)
         {
-            String[] pair = arg.split("=");
-            if (pair.length != 2) { throw new IllegalArgumentException("Unknown parameter: " + arg); }
+            int index = arg.indexOf('=');
+            if (index == -1) { throw new IllegalArgumentException("Unknown parameter: " + arg); }
 
-            String key = pair[0];
-            String value = pair[1];
+            String key = arg.substring(0, index);
+            String value = arg.substring(index + 1, arg.length());
 
-            if (KEY_SITE.equals(key))
-            {
-                parameters.put(KEY_SITE, value);
-            }
-            else if (KEY_KEYWORD.equals(key))
-            {
-                parameters.put(KEY_KEYWORD, value);
-            }
-            else if (KEY_LOG_FILE.equals(key))
+            if (KEYS.contains(key))
             {
-                parameters.put(KEY_LOG_FILE, value);
+                parameters.put(key, value);
+                given.add(key);
             }
-            else if (KEY_MATCHING_URLS_FILE.equals(key))
+        }
+
+        String siteStr = parameters.get(KEY_SITE);
+        if (siteStr == null || siteStr.isEmpty()) { throw new IllegalArgumentException("Missing parameter: site"); }
+        siteURL = new URL(siteStr);
+
+        String keyword = parameters.get(KEY_KEYWORD);
+        String keywordRegex = parameters.get(KEY_KEYWORD_REGEX);
+        if ((keyword == null || keyword.isEmpty()) && (keywordRegex == null || keywordRegex.isEmpty())) { throw new IllegalArgumentException("Missing parameter: keyword"); }
+        if (keywordRegex != null && keywordRegex.isEmpty())
+        {
+            parameters.remove(KEY_KEYWORD_REGEX);
+        }
+
+        String mode = parameters.get(KEY_KEYWORD_MODE);
+        if (!MODE_ANY.equals(mode) && !MODE_ALL.equals(mode)) { throw new IllegalArgumentException("Invalid parameter: " + KEY_KEYWORD_MODE + "=" + mode); }
+
+        String extractor = parameters.get(KEY_LINK_EXTRACTOR);
+        if (!EXTRACTOR_STREAM.equals(extractor) && !EXTRACTOR_JSOUP.equals(extractor)) { throw new IllegalArgumentException("Invalid parameter: " + KEY_LINK_EXTRACTOR + "=" + extractor); }
+
+        if (getIntParameter(KEY_THREADS) < 1) { throw new IllegalArgumentException("Invalid parameter: " + KEY_THREADS); }
+        if (getIntParameter(KEY_HOST_CONNECTIONS) < 1) { throw new IllegalArgumentException("Invalid parameter: " + KEY_HOST_CONNECTIONS); }
+        if (getIntParameter(KEY_FRONTIER_COMMIT_INTERVAL) < 1) { throw new IllegalArgumentException("Invalid parameter: " + KEY_FRONTIER_COMMIT_INTERVAL); }
+        if (getIntParameter(KEY_TIME_LIMIT) < 0) { throw new IllegalArgumentException("Invalid parameter: " + KEY_TIME_LIMIT); }
+        if (getIntParameter(KEY_MAX_PAGE_SIZE) < 1) { throw new IllegalArgumentException("Invalid parameter: " + KEY_MAX_PAGE_SIZE); }
+        if (getIntParameter(KEY_TIMEOUT) < 1) { throw new IllegalArgumentException("Invalid parameter: " + KEY_TIMEOUT); }
+        if (getIntParameter(KEY_CHECKPOINT_INTERVAL) < 0) { throw new IllegalArgumentException("Invalid parameter: " + KEY_CHECKPOINT_INTERVAL); }
+        if (getIntParameter(KEY_INITIAL_RATE) < 1) { throw new IllegalArgumentException("Invalid parameter: " + KEY_INITIAL_RATE); }
+        if (getIntParameter(KEY_MAX_RATE) < getIntParameter(KEY_INITIAL_RATE)) { throw new IllegalArgumentException("Invalid parameter: " + KEY_MAX_RATE); }
+        if (getIntParameter(KEY_DOWNLOAD_THREADS) < 1) { throw new IllegalArgumentException("Invalid parameter: " + KEY_DOWNLOAD_THREADS); }
+        if (getIntParameter(KEY_DOWNLOAD_QUEUE) < 1) { throw new IllegalArgumentException("Invalid parameter: " + KEY_DOWNLOAD_QUEUE); }
+        if (getIntParameter(KEY_METRICS_PORT) < 0 || getIntParameter(KEY_METRICS_PORT) > 65535) { throw new IllegalArgumentException("Invalid parameter: " + KEY_METRICS_PORT); }
+        if (getIntParameter(KEY_MAX_RETRIES) < 0) { throw new IllegalArgumentException("Invalid parameter: " + KEY_MAX_RETRIES); }
+        if (getIntParameter(KEY_MAX_SITEMAPS) < 1) { throw new IllegalArgumentException("Invalid parameter: " + KEY_MAX_SITEMAPS); }
+        if (getIntParameter(KEY_FRONTIER_MEMORY) < 0) { throw new IllegalArgumentException("Invalid parameter: " + KEY_FRONTIER_MEMORY); }
+        if (getIntParameter(KEY_DNS_CACHE_TTL) < 0) { throw new IllegalArgumentException("Invalid parameter: " + KEY_DNS_CACHE_TTL); }
+        if (getIntParameter(KEY_NEAR_DUPLICATE_DISTANCE) < 0 || getIntParameter(KEY_NEAR_DUPLICATE_DISTANCE) > 7) { throw new IllegalArgumentException("Invalid parameter: " + KEY_NEAR_DUPLICATE_DISTANCE); }
+        if (getIntParameter(KEY_PATTERN_BUDGET) < 0) { throw new IllegalArgumentException("Invalid parameter: " + KEY_PATTERN_BUDGET); }
+        if (getIntParameter(KEY_DEPTH_BUDGET) < 0) { throw new IllegalArgumentException("Invalid parameter: " + KEY_DEPTH_BUDGET); }
+        if (getIntParameter(KEY_MAX_DEPTH) < 0) { throw new IllegalArgumentException("Invalid parameter: " + KEY_MAX_DEPTH); }
+        if (getIntParameter(KEY_VERIFY_THREADS) < 1) { throw new IllegalArgumentException("Invalid parameter: " + KEY_VERIFY_THREADS); }
+        if (getIntParameter(KEY_VERIFY_QUEUE) < 1) { throw new IllegalArgumentException("Invalid parameter: " + KEY_VERIFY_QUEUE); }
+        if (getIntParameter(KEY_ROUTE_BATCH) < 1) { throw new IllegalArgumentException("Invalid parameter: " + KEY_ROUTE_BATCH); }
+        if (getIntParameter(KEY_ROUTE_INTERVAL) < 1) { throw new IllegalArgumentException("Invalid parameter: " + KEY_ROUTE_INTERVAL); }
+        if (getIntParameter(KEY_CLUSTER_TIMEOUT) < 1) { throw new IllegalArgumentException("Invalid parameter: " + KEY_CLUSTER_TIMEOUT); }
+
+        List<InetSocketAddress> nodes = getNodes();
+        if (!nodes.isEmpty())
+        {
+            int nodeId = getIntParameter(KEY_NODE_ID);
+            if (nodeId < 0 || nodeId >= nodes.size()) { throw new IllegalArgumentException("Invalid parameter: " + KEY_NODE_ID); }
+
+            // several nodes may run in the same folder
+            for (String key : FILE_KEYS)
             {
-                parameters.put(KEY_MATCHING_URLS_FILE, value);
+                String file = parameters.get(key);
+                if (!given.contains(key) && file.startsWith(DEFAULT_FOLDER))
+                {
+                    parameters.put(key, DEFAULT_FOLDER + "node" + nodeId + "/" + file.substring(DEFAULT_FOLDER.length()));
+                }
             }
-            else if (KEY_TOVISIT_URLS_FILE.equals(key))
+        }
+
+        try
+        {
+            AsyncLogger.parseLevel(parameters.get(KEY_LOG_LEVEL));
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IllegalArgumentException("Invalid parameter: " + KEY_LOG_LEVEL + "=" + parameters.get(KEY_LOG_LEVEL));
+        }
+
+        String slash = parameters.get(KEY_TRAILING_SLASH);
+        if (!UrlCanonicalizer.SLASH_KEEP.equals(slash) && !UrlCanonicalizer.SLASH_ADD.equals(slash)
+                && !UrlCanonicalizer.SLASH_REMOVE.equals(slash)) { throw new IllegalArgumentException("Invalid parameter: " + KEY_TRAILING_SLASH + "=" + slash); }
+
+        String order = parameters.get(KEY_FRONTIER_ORDER);
+        if (!ORDER_FOCUSED.equals(order) && !ORDER_FIFO.equals(order)) { throw new IllegalArgumentException("Invalid parameter: " + KEY_FRONTIER_ORDER + "=" + order); }
+    }
+
+    /**
+     * @return addresses of the nodes of a distributed crawl, empty if not distributed
+     */
+    private List<InetSocketAddress> getNodes()
+    {
+        List<InetSocketAddress> nodes = new ArrayList<InetSocketAddress>();
+        for (String node : KeywordMatcher.split(parameters.get(KEY_NODES)))
+        {
+            int index = node.lastIndexOf(':');
+            try
             {
-                parameters.put(KEY_TOVISIT_URLS_FILE, value);
+                nodes.add(new InetSocketAddress(node.substring(0, index), Integer.parseInt(node.substring(index + 1))));
             }
-            else if (KEY_VISITED_URLS_FILE.equals(key))
+            catch (RuntimeException e)
             {
-                parameters.put(KEY_VISITED_URLS_FILE, value);
+                throw new IllegalArgumentException("Invalid parameter: " + KEY_NODES + "=" + node);
             }
         }
+        return nodes;
+    }
 
-        String siteStr = parameters.get(KEY_SITE);
-        if (siteStr == null || siteStr.isEmpty()) { throw new IllegalArgumentException("Missing parameter: site"); }
-        siteURL = new URL(siteStr);
-
-        String keyword = parameters.get(KEY_KEYWORD);
-        if (keyword == null || keyword.isEmpty()) { throw new IllegalArgumentException("Missing parameter: keyword"); }
+    private int getIntParameter(String key)
+    {
+        String value = parameters.get(key);
+        try
+        {
+            return Integer.parseInt(value.trim());
+        }
+        catch (Exception e)
+        {
+            throw new IllegalArgumentException("Invalid parameter: " + key + "=" + value);
+        }
     }
 
-    private void readFileToList(String fileName, Collection<String> list)
+    /**
+     * @param offset bytes at the start of the file to skip, their URLs are already in the list
+     */
+    private void readFileToList(String fileName, FingerprintSet list, long offset)
     {
-        log("Reading file: {0}", fileName);
+        log("Reading file: {0} from byte {1}", fileName, offset);
         BufferedReader bufferedReader = null;
         try
         {
-            FileReader fileReader = new FileReader(fileName);
-            bufferedReader = new BufferedReader(fileReader);
+            FileInputStream in = new FileInputStream(fileName);
+            in.getChannel().position(offset);
+            bufferedReader = new BufferedReader(new InputStreamReader(in, UTF8));
             String line = "";
             while ((line = bufferedReader.readLine()) != null)
             {
-                list.add(line);
-                log("Loaded URL: {0}", line);
+                // matching URLs are followed by the keywords found
+                int index = line.indexOf(MATCH_SEPARATOR);
+                String url = index == -1 ? line : line.substring(0, index);
+                list.add(url);
+                logger.debug("Loaded URL: {0}", url);
             }
         }
         catch (Exception e)
@@ -212,353 +739,1468 @@ public class WebCrawler
         }
     }
 
-    private void closeFile(BufferedWriter writer, String fileName)
+    /**
+     * @return the checkpoint, or null if there is none or it cannot be read
+     */
+    private CrawlCheckpoint readCheckpoint(boolean offHeap)
     {
-        if (writer == null) return;
-        
+        String fileName = parameters.get(KEY_CHECKPOINT_FILE);
+        long start = System.currentTimeMillis();
         try
         {
-            writer.flush();
+            CrawlCheckpoint checkpoint = CrawlCheckpoint.read(new File(fileName), offHeap);
+            if (checkpoint != null)
+            {
+                log("Loaded checkpoint {0} in {1} ms.", fileName, System.currentTimeMillis() - start);
+            }
+            return checkpoint;
         }
-        catch (Exception e)
+        catch (IOException e)
         {
+            log("Ignoring checkpoint {0}, reading the URL files.", fileName);
             log(e);
+            return null;
         }
-        finally
+    }
+
+    /**
+     * Start the downloader and its threads; matches are downloaded as they are found.
+     *
+     * @param args the <code>download_</code> parameters are passed on without the prefix
+     */
+    private void startPipeline(String[] args) throws Exception
+    {
+        List<String> downloaderArgs = new ArrayList<String>();
+        // the matches come from the crawl
+        downloaderArgs.add("urls_file=");
+        for (String arg : args)
         {
-            try
-            {
-                writer.close();
-                log("Closed file: {0}", fileName);
-            }
-            catch (Exception e)
+            int index = arg.indexOf('=');
+            if (arg.startsWith(DOWNLOAD_PREFIX) && index != -1 && !KEYS.contains(arg.substring(0, index)))
             {
-                log(e);
+                downloaderArgs.add(arg.substring(DOWNLOAD_PREFIX.length()));
             }
         }
+
+        downloader = new ZoomifyDownloader(logger);
+        downloader.init(downloaderArgs.toArray(new String[downloaderArgs.size()]));
+        pipeline = new DownloadPipeline(downloader, getIntParameter(KEY_DOWNLOAD_THREADS),
+                getIntParameter(KEY_DOWNLOAD_QUEUE), logger, downloadWaitTime);
+        pipeline.start();
+        log("Pipeline: downloading matches with {0} threads, queue of {1}.", getIntParameter(KEY_DOWNLOAD_THREADS),
+                getIntParameter(KEY_DOWNLOAD_QUEUE));
     }
 
-    private void finish()
+    /**
+     * Join the other nodes of a distributed crawl; the coordinator waits until all of them are up.
+     */
+    private void startCluster() throws IOException, InterruptedException
     {
-        closeFile(visitedFile, parameters.get(KEY_VISITED_URLS_FILE));
-        closeFile(matchingFile, parameters.get(KEY_MATCHING_URLS_FILE));
-        try
+        List<InetSocketAddress> nodes = getNodes();
+        int nodeId = getIntParameter(KEY_NODE_ID);
+        cluster = new ClusterNode(nodes, nodeId, new ClusterNode.Crawler()
         {
-            if (logFile != null)
+            @Override
+            public void receive(String url, int depth, String parentPattern) throws InterruptedException
             {
-                logFile.flush();
-                logFile.close();
-                logFile = null;
+                offerToVisitURL(url, url, depth, parentPattern);
             }
-        }
-        catch (Exception e)
-        {
-            e.printStackTrace();
 
-            try
+            @Override
+            public boolean isIdle()
             {
-                if (logFile != null)
+                synchronized (lock)
                 {
-                    logFile.close();
+                    return frontier.isEmpty() && inFlight == 0 && retries.isEmpty();
                 }
             }
-            catch (IOException t)
-            {
-                // empty catch block
-            }
+        }, logger, getIntParameter(KEY_ROUTE_BATCH), getIntParameter(KEY_ROUTE_INTERVAL),
+                (int) TimeUnit.SECONDS.toMillis(getIntParameter(KEY_CLUSTER_TIMEOUT)));
+        cluster.start();
+        log("Node {0} of {1}, listening on {2}.", nodeId, nodes.size(), nodes.get(nodeId));
+        if (cluster.isCoordinator())
+        {
+            cluster.awaitNodes();
         }
     }
 
-    private void addVisitedURL(String url)
+    /**
+     * Start the threads that verify the pages matching the keywords; verified pages become matches and are written to
+     * the manifest.
+     */
+    private void startVerifier()
     {
-        addURL(url, visitedURLs, visitedFile, lastSaveVisited);
-    }
+        verifier = new MatchVerifier(httpService, hostLimiter, new MatchVerifier.Listener()
+        {
+            @Override
+            public void verified(MatchVerifier.Candidate candidate, ImageProperties properties)
+                    throws InterruptedException
+            {
+                String url = candidate.getEntry().url;
+                log("Add matching URL: {0}", url);
+                addMatchingURL(url, candidate.getKeywords());
+                addManifestEntry(url, candidate.getKeywords(), properties);
+                matchesFound.inc();
+            }
 
-    private void addMatchingURL(String url)
-    {
-        addURL(url, matchingURLs, matchingFile, lastSaveMatching);
+            @Override
+            public void rejected(MatchVerifier.Candidate candidate)
+            {
+                logger.debug("No image found for: {0}", candidate.getEntry().url);
+                candidatesRejected.inc();
+            }
+        }, getIntParameter(KEY_VERIFY_THREADS), getIntParameter(KEY_VERIFY_QUEUE), maxRetries, RETRY_DELAY, logger,
+                verifyTime);
+        verifier.start();
+        log("Verifying matches with {0} threads, queue of {1}.", getIntParameter(KEY_VERIFY_THREADS),
+                getIntParameter(KEY_VERIFY_QUEUE));
     }
 
-    private void addToVisitUrl(String url)
+    /**
+     * Register the gauges, the MBean and, if a port is given, the Prometheus endpoint.
+     */
+    private void startMetrics()
     {
-        log("Adding to visit URL: {0}", url);
-        toVisitURLs.add(url);
-        BufferedWriter toVisitFile = null;
-        try
-        {
-            toVisitFile = new BufferedWriter(new FileWriter(parameters.get(KEY_TOVISIT_URLS_FILE), true));
-            toVisitFile.write(url);
-            toVisitFile.newLine();
-            toVisitFile.flush();
-        }
-        catch (IOException e)
-        {
-            log(e);
-        }
-        finally
+        metrics.gauge("download_queue", "Matches waiting for a download thread.", new Metrics.Gauge()
         {
-            try
+            @Override
+            public double value()
             {
-                if (toVisitFile != null)
-                {
-                    toVisitFile.close();
-                }
+                DownloadPipeline p = pipeline;
+                return p == null ? 0 : p.size();
             }
-            catch (IOException t)
+        });
+        metrics.gauge("verify_queue", "Pages matching the keywords waiting for a verification thread.",
+                new Metrics.Gauge()
+                {
+                    @Override
+                    public double value()
+                    {
+                        MatchVerifier v = verifier;
+                        return v == null ? 0 : v.size();
+                    }
+                });
+        metrics.gauge("frontier_size", "URLs waiting to be visited.", new Metrics.Gauge()
+        {
+            @Override
+            public double value()
             {
+                return frontier.size();
             }
-        }
-    }
-
-    private String readToVisitURL()
-    {
-        log("Read URL to visit.");
-        if (toVisitURLs.isEmpty()) { return null; }
-        
-        Iterator<String> iter = toVisitURLs.iterator();
-        String url = iter.next();
-        iter.remove();
-        
-        BufferedWriter toVisitFile = null;
-        try
+        });
+        metrics.gauge("frontier_spilled", "URLs waiting on disk.", new Metrics.Gauge()
         {
-            toVisitFile = new BufferedWriter(new PrintWriter(parameters.get(KEY_TOVISIT_URLS_FILE), UTF8));
-            while (iter.hasNext())
+            @Override
+            public double value()
             {
-                toVisitFile.write(iter.next());
-                toVisitFile.newLine();
+                return frontier.spilled();
             }
-            toVisitFile.flush();
-        }
-        catch (IOException e)
+        });
+        metrics.gauge("frontier_journal_errors", "Frontier journal writes failed.", new Metrics.Gauge()
         {
-            log(e);
-        }
-        finally
+            @Override
+            public double value()
+            {
+                return frontier.journalErrors();
+            }
+        });
+        metrics.gauge("visited_urls", "URLs visited, including previous runs.", new Metrics.Gauge()
         {
-            if (toVisitFile != null)
+            @Override
+            public double value()
             {
-                try
+                synchronized (lock)
                 {
-                    toVisitFile.close();
+                    return visitedURLs.size();
                 }
-                catch (IOException e)
+            }
+        });
+        metrics.gauge("in_flight", "Pages being processed.", new Metrics.Gauge()
+        {
+            @Override
+            public double value()
+            {
+                synchronized (lock)
                 {
+                    return inFlight;
                 }
             }
-        }
-        
-        return url;
-    }
-
-    private void addURL(String url, Collection<String> collection, BufferedWriter writer, int[] lastSave)
-    {
-        collection.add(url);
-        
-        try
+        });
+        metrics.gauge("match_rate", "Matches per page fetched.", new Metrics.Gauge()
         {
-            writer.write(url);
-            writer.newLine();
-            if (collection.size() - lastSave[0] > pushLimit)
+            @Override
+            public double value()
             {
-                writer.flush();
-                lastSave[0] = collection.size();
+                long pages = pagesFetched.get();
+                return pages == 0 ? 0 : matchesFound.get() / (double) pages;
             }
-        }
-        catch (Exception e)
+        });
+        metrics.gauge("unchanged_pages", "Pages not parsed again as they did not change.", new Metrics.Gauge()
         {
-            log(e);
-        }
-    }
-
-    private void work()
-    {
-        if (toVisitURLs.isEmpty())
+            @Override
+            public double value()
+            {
+                return unchangedPages.get();
+            }
+        });
+        metrics.gauge("out_of_scope", "Links rejected by the scope rules.", new Metrics.Gauge()
         {
-            toVisitURLs.add(siteURL.toString());
-            log("Add start URL: {0}", siteURL.toString());
-        }
-        
-        while (!toVisitURLs.isEmpty())
+            @Override
+            public double value()
+            {
+                return outOfScopeURLs.get();
+            }
+        });
+        metrics.gauge("links_routed", "Links sent to the nodes owning them.", new Metrics.Gauge()
         {
-            if (toQuit.get())
+            @Override
+            public double value()
             {
-                log("QUIT requested by user.", new Object[0]);
-                return;
+                ClusterNode c = cluster;
+                return c == null ? 0 : c.getSent();
             }
-            
-            processURL();
+        });
+        metrics.gauge("links_received", "Links received from other nodes.", new Metrics.Gauge()
+        {
+            @Override
+            public double value()
+            {
+                ClusterNode c = cluster;
+                return c == null ? 0 : c.getReceived();
+            }
+        });
+        metrics.gauge("retries", "Pages scheduled for a retry.", new Metrics.Gauge()
+        {
+            @Override
+            public double value()
+            {
+                return retriedURLs.get();
+            }
+        });
+        metrics.gauge("request_rate", "Requests per second allowed to the site host.", new Metrics.Gauge()
+        {
+            @Override
+            public double value()
+            {
+                return hostLimiter.getRate(HostLimiter.hostOf(siteURL.toString())).getRate();
+            }
+        });
+
+        try
+        {
+            metricsJmx = new MetricsJmx(metrics, "Web crawler metrics");
+            metricsJmx.register("WebCrawler");
+        }
+        catch (JMException e)
+        {
+            log(e);
         }
-        
-        log("Finished.", new Object[0]);
-    }
 
-    private void log(String msg, Object... args)
-    {
-        String message = MessageFormat.format(msg, args);
-        System.out.println(message);
-        if (logFile != null)
+        int port = getIntParameter(KEY_METRICS_PORT);
+        if (port > 0)
         {
             try
             {
-                logFile.write(message);
-                logFile.newLine();
+                metricsServer = new MetricsServer(metrics, port);
+                metricsServer.start();
+                log("Metrics at http://127.0.0.1:{0}/metrics", String.valueOf(port));
             }
             catch (IOException e)
             {
-                e.printStackTrace();
+                log("Cannot start the metrics endpoint on port {0}.", String.valueOf(port));
+                log(e);
             }
         }
     }
 
-    private void log(Throwable t)
+    /**
+     * Snapshot the URL sets with the current lengths of their files. Blocks the workers while writing.
+     */
+    private void writeCheckpoint()
     {
-        String message = MessageFormat.format("Error: {0} - {1}", t.getClass().getName(), t.getMessage());
-        System.out.println(message);
-        if (logFile != null)
+        String fileName = parameters.get(KEY_CHECKPOINT_FILE);
+        long start = System.currentTimeMillis();
+        synchronized (lock)
         {
             try
             {
-                logFile.write(message);
-                logFile.newLine();
+                visitedFile.flush();
+                matchingFile.flush();
+                new CrawlCheckpoint(visitedURLs, new File(parameters.get(KEY_VISITED_URLS_FILE)).length(), matchingURLs,
+                        new File(parameters.get(KEY_MATCHING_URLS_FILE)).length()).write(new File(fileName));
             }
             catch (IOException e)
             {
-                e.printStackTrace();
+                log(e);
+                return;
             }
         }
+        log("Wrote checkpoint {0} in {1} ms.", fileName, System.currentTimeMillis() - start);
     }
 
-    private void processURL()
+    private void closeFile(BufferedWriter writer, String fileName)
     {
-        String url = readToVisitURL();
-        if (url == null)
-        {
-            log("No URL to visit.", new Object[0]);
-            return;
-        }
-        
-        addVisitedURL(url);
+        if (writer == null) return;
         
-        log("Loading page at URL: {0}", url);
         try
         {
-            if (!checkValid(url))
-            {
-                return;
-            }
-            
-            Connection connection = Jsoup.connect(url).userAgent(USER_AGENT);
-            Document doc = connection.get();
-            
-            String keyword = parameters.get(KEY_KEYWORD);
-            if (doc.toString().contains(keyword))
+            writer.flush();
+        }
+        catch (Exception e)
+        {
+            log(e);
+        }
+        finally
+        {
+            try
             {
-                log("Found matching URL: {0} for keyword: {1}", url, keyword);
-                
-                try
+                writer.close();
+                log("Closed file: {0}", fileName);
+            }
+            catch (Exception e)
+            {
+                log(e);
+            }
+        }
+    }
+
+    private void finish()
+    {
+        if (metricsServer != null)
+        {
+            metricsServer.stop();
+        }
+        if (metricsJmx != null)
+        {
+            metricsJmx.unregister();
+        }
+        if (httpService != null)
+        {
+            httpService.close();
+        }
+        if (frontier != null)
+        {
+            frontier.close();
+            log("Closed file: {0}", parameters.get(KEY_TOVISIT_URLS_FILE));
+        }
+        if (visitedFile != null && matchingFile != null)
+        {
+            writeCheckpoint();
+        }
+        closeFile(visitedFile, parameters.get(KEY_VISITED_URLS_FILE));
+        closeFile(matchingFile, parameters.get(KEY_MATCHING_URLS_FILE));
+        closeFile(manifestFile, parameters.get(KEY_MATCHES_MANIFEST_FILE));
+        if (validators != null)
+        {
+            try
+            {
+                validators.close();
+                log("Closed file: {0}", parameters.get(KEY_VALIDATORS_FILE));
+            }
+            catch (IOException e)
+            {
+                log(e);
+            }
+        }
+        if (contentStore != null)
+        {
+            try
+            {
+                contentStore.close();
+                log("Closed file: {0}", parameters.get(KEY_CONTENT_STORE_FILE));
+            }
+            catch (IOException e)
+            {
+                log(e);
+            }
+        }
+        if (downloader != null)
+        {
+            downloader.finish();
+        }
+        logger.close();
+    }
+
+    private void addVisitedURL(String url)
+    {
+        addURL(url, null, visitedURLs, visitedFile, lastSaveVisited);
+    }
+
+    /**
+     * Record a new match and, in pipeline mode, queue its download.
+     */
+    private void addMatchingURL(String url, List<String> keywords) throws InterruptedException
+    {
+        synchronized (lock)
+        {
+            if (matchingURLs.contains(url))
+            {
+                // found again by a recrawl
+                return;
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String keyword : keywords)
+        {
+            sb.append(sb.length() == 0 ? MATCH_SEPARATOR : '|').append(keyword);
+        }
+        addURL(url, sb.toString(), matchingURLs, matchingFile, lastSaveMatching);
+        matchingPatterns.add(FocusedScheduler.patternOf(url));
+        if (pipeline != null)
+        {
+            // blocks while the downloads are behind
+            pipeline.submit(url);
+        }
+    }
+
+    /**
+     * Append a JSON line with the match and, if its properties were read, the size and tiles of its image.
+     *
+     * @param properties may be null
+     */
+    private void addManifestEntry(String url, List<String> keywords, ImageProperties properties)
+    {
+        StringBuilder sb = new StringBuilder("{\"url\":");
+        appendJson(sb, url);
+        sb.append(",\"keywords\":[");
+        for (int i = 0; i < keywords.size(); i++)
+        {
+            if (i > 0)
+            {
+                sb.append(',');
+            }
+            appendJson(sb, keywords.get(i));
+        }
+        sb.append("],\"found\":").append(System.currentTimeMillis());
+        if (properties != null)
+        {
+            sb.append(",\"properties\":");
+            appendJson(sb, ImageProperties.urlOf(url));
+            sb.append(",\"width\":").append(properties.getWidth());
+            sb.append(",\"height\":").append(properties.getHeight());
+            sb.append(",\"tile_size\":").append(properties.getTileSize());
+            sb.append(",\"tiles\":").append(properties.getNumTiles());
+        }
+        sb.append('}');
+
+        synchronized (lock)
+        {
+            try
+            {
+                manifestFile.write(sb.toString());
+                manifestFile.newLine();
+                manifestFile.flush();
+            }
+            catch (IOException e)
+            {
+                log(e);
+            }
+        }
+    }
+
+    private static void appendJson(StringBuilder sb, String value)
+    {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+            {
+                sb.append('\\').append(c);
+            }
+            else if (c < 0x20)
+            {
+                sb.append(String.format("\\u%04x", (int) c));
+            }
+            else
+            {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Add the URL to the frontier unless it is already known.
+     *
+     * @param linkURL the link as found on the page
+     * @param url the canonical link
+     * @return true if the URL was added, or routed to the node owning it
+     */
+    private boolean offerToVisitURL(String linkURL, String url, int depth, String parentPattern)
+            throws InterruptedException
+    {
+        if (cluster != null && !cluster.owns(url))
+        {
+            cluster.route(url, depth, parentPattern);
+            return true;
+        }
+
+        synchronized (lock)
+        {
+            boolean known = frontier.contains(url) || visitedURLs.contains(url);
+            if (!url.equals(linkURL) && rewrittenURLs.add(linkURL) && known)
+            {
+                // without canonicalization this variant would have been fetched
+                savedFetches++;
+            }
+
+            if (known)
+            {
+                return false;
+            }
+        }
+
+        // only new URLs pay for the rules, outside the lock as they may have to be fetched first
+        if (robots != null && !robots.isAllowed(url))
+        {
+            logger.debug("Disallowed by robots.txt: {0}", url);
+            disallowedURLs.incrementAndGet();
+            return false;
+        }
+
+        synchronized (lock)
+        {
+            if (frontier.contains(url) || visitedURLs.contains(url))
+            {
+                // added by another thread meanwhile
+                return false;
+            }
+
+            addToVisitUrl(url, depth, parentPattern);
+            lock.notifyAll();
+            return true;
+        }
+    }
+
+    private void addToVisitUrl(String url, int depth, String parentPattern)
+    {
+        logger.debug("Adding to visit URL: {0}", url);
+        frontier.add(url, depth, parentPattern, true);
+    }
+
+    private FrontierEntry readToVisitURL()
+    {
+        logger.debug("Read URL to visit.");
+        return frontier.poll();
+    }
+
+    /**
+     * @param suffix written after the URL, may be null
+     */
+    private void addURL(String url, String suffix, FingerprintSet collection, BufferedWriter writer, int[] lastSave)
+    {
+        synchronized (lock)
+        {
+            collection.add(url);
+
+            try
+            {
+                writer.write(url);
+                if (suffix != null)
+                {
+                    writer.write(suffix);
+                }
+                writer.newLine();
+                if (collection.size() - lastSave[0] > pushLimit)
                 {
-                    String imageURL = url.replace("displayImage.php?folder=", "");
-                    if (!imageURL.endsWith("/"))
+                    // links found so far must not be lost once their page is saved as visited
+                    frontier.commit();
+                    validators.flush();
+                    if (contentStore != null)
                     {
-                        imageURL = String.valueOf(imageURL) + "/";
+                        contentStore.flush();
                     }
-                    
-                    String suffix = "TileGroup0/0-0-0.jpg";
-                    imageURL = String.valueOf(imageURL) + suffix;
-                    log("Check URL image: {0}", url);
-                    
-                    HttpURLConnection con = (HttpURLConnection) new URL(imageURL).openConnection();
-                    con.setRequestMethod("HEAD");
-                    if (con.getResponseCode() == 200)
+                    writer.flush();
+                    lastSave[0] = collection.size();
+                }
+            }
+            catch (Exception e)
+            {
+                log(e);
+            }
+        }
+    }
+
+    /**
+     * Pops URLs from the frontier and hands them to a pool of {@link #threads} workers; pages waiting for a retry
+     * whose backoff has passed go first. Ends when the frontier is empty, no worker is busy and no page waits for a
+     * retry, or when the user requests to quit; in both cases the in-flight pages are finished before returning and
+     * pages still waiting for a retry are put back into the frontier. With a time limit, the crawl also stops once it
+     * has run that many seconds. In a distributed crawl, an idle node waits for links from the other nodes until the
+     * coordinator finds all of them idle; quitting on one node stops all of them.
+     */
+    private void work() throws InterruptedException
+    {
+        if (offline)
+        {
+            rematch();
+            return;
+        }
+
+        if (frontier.isEmpty() && (cluster == null || cluster.isCoordinator()))
+        {
+            String startURL = canonicalize(siteURL.toString());
+            if (cluster == null || cluster.owns(startURL))
+            {
+                frontier.add(startURL, 0, "");
+            }
+            else
+            {
+                cluster.route(startURL, 0, "");
+            }
+            log("Add start URL: {0}", startURL);
+
+            if (Boolean.parseBoolean(parameters.get(KEY_SITEMAPS)))
+            {
+                seedFromSitemaps(startURL);
+            }
+        }
+
+        long timeLimit = TimeUnit.SECONDS.toMillis(getIntParameter(KEY_TIME_LIMIT));
+        long checkpointInterval = TimeUnit.SECONDS.toMillis(getIntParameter(KEY_CHECKPOINT_INTERVAL));
+        long start = System.currentTimeMillis();
+        long lastCheckpoint = start;
+        boolean finished = false;
+
+        if (cluster != null && cluster.isCoordinator())
+        {
+            cluster.startTerminationDetection();
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads, new WorkerThreadFactory());
+        try
+        {
+            while (true)
+            {
+                if (toQuit.get())
+                {
+                    log("QUIT requested by user.", new Object[0]);
+                    break;
+                }
+
+                if (cluster != null && cluster.isStopped())
+                {
+                    log("Crawl stopped by another node.", new Object[0]);
+                    break;
+                }
+
+                if (timeLimit > 0 && System.currentTimeMillis() - start > timeLimit)
+                {
+                    log("Time limit reached.", new Object[0]);
+                    break;
+                }
+
+                if (checkpointInterval > 0 && System.currentTimeMillis() - lastCheckpoint > checkpointInterval)
+                {
+                    writeCheckpoint();
+                    lastCheckpoint = System.currentTimeMillis();
+                }
+
+                final FrontierEntry entry;
+                final int attempt;
+                boolean foreign = false;
+                synchronized (lock)
+                {
+                    Retry retry = inFlight < threads ? retries.poll() : null;
+                    if (retry != null)
                     {
-                        log("Add matching URL: {0}", url);
-                        addMatchingURL(url);
+                        // already in the visited file
+                        entry = retry.entry;
+                        attempt = retry.attempt;
+                    }
+                    else
+                    {
+                        if (inFlight >= threads || (frontier.isEmpty() && (inFlight > 0 || !retries.isEmpty())))
+                        {
+                            // wait for a free worker, for new links or for a retry
+                            lock.wait(500);
+                            continue;
+                        }
+
+                        if (frontier.isEmpty())
+                        {
+                            if (cluster != null && !cluster.isFinished())
+                            {
+                                // the other nodes may still send links
+                                lock.wait(500);
+                                continue;
+                            }
+
+                            log("Finished.", new Object[0]);
+                            finished = true;
+                            break;
+                        }
+
+                        entry = readToVisitURL();
+                        if (entry == null)
+                        {
+                            // a spilled segment could not be read back
+                            continue;
+                        }
+                        attempt = 0;
+                        // kept from a run with other nodes
+                        foreign = cluster != null && !cluster.owns(entry.url);
+                        if (!foreign)
+                        {
+                            addVisitedURL(entry.url);
+                            if (!withinBudget(entry))
+                            {
+                                frontier.record(entry, false);
+                                continue;
+                            }
+                        }
+                    }
+                    if (!foreign)
+                    {
+                        inFlight++;
                     }
                 }
-                catch (Exception e)
+
+                if (foreign)
                 {
-                    log(e);
+                    // routing waits while the peer is far behind, never with the lock held: the links received and
+                    // the idle checks of this node need it
+                    cluster.route(entry.url, entry.depth, entry.parentPattern);
+                    continue;
                 }
+
+                workers.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        boolean matched = false;
+                        boolean retried = false;
+                        try
+                        {
+                            matched = processURL(entry);
+                        }
+                        catch (RetryException e)
+                        {
+                            retried = retry(entry, attempt, e);
+                        }
+                        catch (Exception e)
+                        {
+                            log(e);
+                        }
+                        finally
+                        {
+                            if (!retried)
+                            {
+                                frontier.record(entry, matched);
+                            }
+                            synchronized (lock)
+                            {
+                                inFlight--;
+                                lock.notifyAll();
+                            }
+                        }
+                    }
+                });
             }
-            
-            Elements links = doc.select("a[href]");
-            for (Element link : links)
+        }
+        finally
+        {
+            workers.shutdown();
+            while (!workers.awaitTermination(1, TimeUnit.SECONDS))
+            {
+                log("Waiting for {0} pages in progress...", inFlight);
+            }
+            if (!retries.isEmpty())
             {
-                String linkURL = link.absUrl("href");
-                if (!linkURL.contains(siteURL.getHost()))
+                // visited again on the next run
+                for (Retry retry : retries)
                 {
-                    log("Skipping external URL: {0}", linkURL);
-                    continue;
+                    frontier.add(retry.entry.url, retry.entry.depth, retry.entry.parentPattern,
+                            retry.entry.robotsChecked);
                 }
-                
-                int index = linkURL.indexOf('#');
-                if (index > 0)
+                log("Put {0} pages waiting for a retry back into the frontier.", retries.size());
+                retries.clear();
+            }
+            if (cluster != null)
+            {
+                if (!finished)
                 {
-                    linkURL = linkURL.substring(0, index);
+                    cluster.stopAll();
                 }
-                
-                try
+                List<ClusterNode.Link> unsent = cluster.close();
+                for (ClusterNode.Link link : unsent)
                 {
-                    String linkHost = new URL(linkURL).getHost();
-                    linkURL = linkURL.replace(linkHost, siteURL.getHost());
+                    frontier.add(link.getUrl(), link.getDepth(), link.getParentPattern());
                 }
-                catch (Exception e)
+                log("Routed {0} links to other nodes, received {1}, kept {2} not delivered in the frontier.",
+                        cluster.getSent(), cluster.getReceived(), unsent.size());
+            }
+            if (verifier != null)
+            {
+                // verified matches go to the pipeline, so it is stopped first
+                List<MatchVerifier.Candidate> unverified = verifier.finish(finished);
+                for (MatchVerifier.Candidate candidate : unverified)
+                {
+                    FrontierEntry e = candidate.getEntry();
+                    frontier.add(e.url, e.depth, e.parentPattern);
+                }
+                if (!unverified.isEmpty())
                 {
-                    log("Not a valid URL: {0}", linkURL);
+                    log("Put {0} pages waiting for verification back into the frontier.", unverified.size());
+                }
+            }
+            if (pipeline != null)
+            {
+                // on quit or time limit, the queued matches are left to a later run of the downloader
+                pipeline.finish(finished);
+            }
+            log("Canonicalization saved {0} fetches, {1} link variants rewritten.", savedFetches,
+                    rewrittenURLs.size());
+            log("Unchanged pages not parsed again: {0}", unchangedPages.get());
+            log("Links disallowed by robots.txt: {0}", disallowedURLs.get());
+            log("Links out of scope: {0}", outOfScopeURLs.get());
+            log("Near duplicate pages not followed: {0}. URLs over budget: {1} by pattern, {2} by depth.",
+                    nearDuplicatePages.get(), patternBudgetSkips.get(), depthBudgetSkips.get());
+            RateController rate = hostLimiter.getRate(HostLimiter.hostOf(siteURL.toString()));
+            log("Retried {0} pages, gave up on {1}. Final rate {2} requests/s after {3} back offs.", retriedURLs.get(),
+                    failedURLs.get(), String.format("%.1f", rate.getRate()), rate.getDecreases());
+        }
+    }
+
+    /**
+     * Count the URL against the budgets of its depth and its pattern. Patterns that produced a match are not limited,
+     * so the pages looked for are never cut; the budgets stop crawler traps like calendars and endless listings.
+     *
+     * @return false if the URL must not be crawled
+     */
+    private boolean withinBudget(FrontierEntry entry)
+    {
+        if (maxDepth > 0 && entry.depth > maxDepth)
+        {
+            logger.debug("Too deep: {0}", entry.url);
+            depthBudgetSkips.inc();
+            return false;
+        }
+        if (depthBudget > 0 && increment(depthCounts, entry.depth) > depthBudget)
+        {
+            logger.debug("Depth budget used up: {0}", entry.url);
+            depthBudgetSkips.inc();
+            return false;
+        }
+        if (patternBudget > 0 && !matchingPatterns.contains(entry.pattern))
+        {
+            int count = increment(patternCounts, entry.pattern);
+            if (count == patternBudget + 1)
+            {
+                logger.warn("Budget of {0} URLs used up, not crawling more URLs like: {1}", patternBudget, entry.url);
+            }
+            if (count > patternBudget)
+            {
+                patternBudgetSkips.inc();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static <K> int increment(ConcurrentHashMap<K, AtomicInteger> counts, K key)
+    {
+        AtomicInteger count = counts.get(key);
+        if (count == null)
+        {
+            count = new AtomicInteger();
+            AtomicInteger previous = counts.putIfAbsent(key, count);
+            if (previous != null)
+            {
+                count = previous;
+            }
+        }
+        return count.incrementAndGet();
+    }
+
+    /**
+     * Schedule the page again after a backoff, unless it failed too often.
+     *
+     * @return true if the page will be retried
+     */
+    private boolean retry(FrontierEntry entry, int attempt, RetryException e)
+    {
+        if (attempt >= maxRetries)
+        {
+            log("Giving up on URL: {0} after {1} attempts, {2}", entry.url, attempt + 1, e.getMessage());
+            failedURLs.incrementAndGet();
+            return false;
+        }
+
+        // jitter keeps pages that failed together from being retried together
+        long backoff = Math.min(MAX_RETRY_DELAY, RETRY_DELAY << attempt);
+        backoff = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        long delay = Math.max(backoff, Math.min(MAX_RETRY_DELAY, e.getRetryAfter()));
+        log("Retrying URL: {0} in {1} ms, {2}", entry.url, delay, e.getMessage());
+        retries.add(new Retry(entry, attempt + 1, delay));
+        retriedURLs.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Offline mode: match the pages of the content store again and extract their links, without any request. The
+     * stored pages are shared out to {@link #threads} workers, which read their records in parallel. New matches are
+     * added to the matching file; as the first tile of the image is not checked, the downloader skips matches without
+     * an image. Links to pages that are neither stored nor visited are added to the frontier, for the next online run,
+     * one level deeper than the page they were found on.
+     */
+    private void rematch() throws InterruptedException
+    {
+        final List<ContentStore.Entry> entries = contentStore.entries();
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger matched = new AtomicInteger();
+        final AtomicInteger newLinks = new AtomicInteger();
+        log("Offline: matching {0} stored pages with {1} threads.", entries.size(), threads);
+
+        long start = System.currentTimeMillis();
+        ExecutorService workers = Executors.newFixedThreadPool(threads, new WorkerThreadFactory());
+        for (int i = 0; i < threads; i++)
+        {
+            workers.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    int index;
+                    while (!toQuit.get() && (index = next.getAndIncrement()) < entries.size())
+                    {
+                        try
+                        {
+                            rematch(entries.get(index), matched, newLinks);
+                        }
+                        catch (InterruptedException e)
+                        {
+                            return;
+                        }
+                        catch (Exception e)
+                        {
+                            log(e);
+                        }
+                    }
+                }
+            });
+        }
+        workers.shutdown();
+        while (!workers.awaitTermination(1, TimeUnit.SECONDS))
+        {
+            log("Matched {0} of {1} stored pages...", Math.min(next.get(), entries.size()), entries.size());
+        }
+
+        long time = Math.max(1, System.currentTimeMillis() - start);
+        log("Offline: {0} pages matched, {1} new links added to the frontier, {2} pages/s.", matched.get(),
+                newLinks.get(), entries.size() * 1000L / time);
+    }
+
+    private void rematch(ContentStore.Entry entry, AtomicInteger matched, AtomicInteger newLinks)
+            throws IOException, InterruptedException
+    {
+        ContentStore.Record record = contentStore.read(entry);
+        String url = record.getUrl();
+        long parseStart = System.nanoTime();
+        String html = new String(record.getBody(), PageFetcher.detectCharset(record.getContentType(),
+                record.getBody()));
+
+        KeywordMatcher.Result match = keywordMatcher.match(html);
+        if (match.matches())
+        {
+            logger.debug("Found matching URL: {0} for keyword: {1}", url, match.getFound());
+            addMatchingURL(url, match.getFound());
+            matchesFound.inc();
+            matched.incrementAndGet();
+        }
+
+        List<String> pageLinks = extractLinks(html, url);
+        parseTime.observeSince(parseStart);
+        // links of pages stored without their depth count as found on the start page
+        int depth = Math.max(record.getDepth(), 0) + 1;
+        String pattern = FocusedScheduler.patternOf(url);
+        for (String linkURL : pageLinks)
+        {
+            if (!inScope(linkURL))
+            {
+                continue;
+            }
+
+            String canonicalURL = canonicalize(linkURL);
+            if (canonicalURL != null && !contentStore.contains(canonicalURL)
+                    && offerToVisitURL(linkURL, canonicalURL, depth, pattern))
+            {
+                newLinks.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Add the pages listed in the sitemaps of the site to the frontier: those named in robots.txt, or
+     * <code>/sitemap.xml</code> if there are none.
+     */
+    private void seedFromSitemaps(String startURL) throws InterruptedException
+    {
+        List<String> sitemapURLs = new ArrayList<String>();
+        if (robots != null)
+        {
+            sitemapURLs.addAll(robots.getRules(siteURL).getSitemaps());
+        }
+        if (sitemapURLs.isEmpty())
+        {
+            try
+            {
+                sitemapURLs.add(new URL(siteURL, "/sitemap.xml").toString());
+            }
+            catch (MalformedURLException e)
+            {
+                log(e);
+                return;
+            }
+        }
+
+        SitemapReader reader = new SitemapReader(httpService, logger, getIntParameter(KEY_MAX_SITEMAPS));
+        String pattern = FocusedScheduler.patternOf(startURL);
+        int added = 0;
+        for (String loc : reader.read(sitemapURLs))
+        {
+            if (!inScope(loc))
+            {
+                logger.debug("Skipping URL out of scope: {0}", loc);
+                continue;
+            }
+
+            String canonicalURL = canonicalize(loc);
+            if (canonicalURL != null && offerToVisitURL(loc, canonicalURL, 1, pattern))
+            {
+                added++;
+            }
+        }
+        log("Seeded {0} URLs from {1} sitemaps.", added, reader.getSitemapsRead());
+    }
+
+    private void log(String msg, Object... args)
+    {
+        logger.info(msg, args);
+    }
+
+    private void log(Throwable t)
+    {
+        logger.error(t);
+    }
+
+    /**
+     * Load the page, check it for the keyword and add its links to the frontier. A page matching the keyword is
+     * handed to the {@link MatchVerifier}, which adds it to the matches once its image is found.
+     *
+     * @return true if the page matches the keyword
+     * @throws RetryException if the page failed in a way worth retrying
+     */
+    private boolean processURL(FrontierEntry entry) throws InterruptedException, RetryException
+    {
+        String url = entry.url;
+        boolean matched = false;
+        List<String> matchedKeywords = Collections.emptyList();
+        List<String> links = new ArrayList<String>();
+        // links are checked when queued, the start URL and those of earlier runs only here
+        if (robots != null && !entry.robotsChecked && !robots.isAllowed(url))
+        {
+            logger.debug("Disallowed by robots.txt: {0}", url);
+            disallowedURLs.incrementAndGet();
+            return false;
+        }
+
+        log("Loading page at URL: {0}", url);
+        ValidatorStore.Validator previous = null;
+        try
+        {
+            previous = validators.get(url);
+        }
+        catch (IOException e)
+        {
+            // fetched without validators
+            log(e);
+        }
+        if (previous != null && previous.isMatcherChanged())
+        {
+            // fetched and matched again, the keywords changed since
+            logger.debug("Keywords changed since the last visit: {0}", url);
+            previous = null;
+        }
+        String host = hostLimiter.acquire(url);
+        try
+        {
+            long start = System.currentTimeMillis();
+            long fetchStart = System.nanoTime();
+            PageFetcher.Result page;
+            try
+            {
+                page = pageFetcher.fetch(url, previous);
+            }
+            catch (MalformedURLException e)
+            {
+                throw e;
+            }
+            catch (IOException e)
+            {
+                fetchErrors.inc();
+                hostLimiter.failure(host, start, -1);
+                throw new RetryException(e.toString(), -1);
+            }
+            fetchTime.observeSince(fetchStart);
+            pagesFetched.inc();
+            if (page.getBody() != null)
+            {
+                bytesFetched.add(page.getBody().length);
+            }
+            if (isRetryable(page.getStatus()))
+            {
+                fetchErrors.inc();
+                hostLimiter.failure(host, start, page.getRetryAfter());
+                throw new RetryException("status " + page.getStatus(), page.getRetryAfter());
+            }
+            hostLimiter.success(host, start);
+            hostLimiter.release(host);
+            host = null;
+
+            if (page.getStatus() == HttpURLConnection.HTTP_NOT_MODIFIED && previous != null)
+            {
+                logger.debug("Page not modified.");
+                return reuse(entry, previous);
+            }
+
+            if (!checkValid(page))
+            {
+                return false;
+            }
+
+            String hash = ValidatorStore.hashOf(page.getBody());
+            if (previous != null && hash.equals(previous.getHash()))
+            {
+                logger.debug("Page unchanged.");
+                if (contentStore != null && !contentStore.contains(url))
+                {
+                    contentStore.put(url, entry.depth, page.getContentType(), page.getBody());
+                }
+                validators.put(new ValidatorStore.Validator(url, page.getEtag(), page.getLastModified(), hash,
+                        previous.getKeywords(), previous.getLinks()));
+                return reuse(entry, previous);
+            }
+
+            if (page.isTruncated())
+            {
+                log("Page truncated to {0} bytes.", page.getBody().length);
+            }
+            if (contentStore != null)
+            {
+                contentStore.put(url, entry.depth, page.getContentType(), page.getBody());
+            }
+            long parseStart = System.nanoTime();
+            String html = new String(page.getBody(), PageFetcher.detectCharset(page));
+
+            KeywordMatcher.Result match = keywordMatcher.match(html);
+            long parseNanos = System.nanoTime() - parseStart;
+            if (match.matches())
+            {
+                log("Found matching URL: {0} for keyword: {1}", url, match.getFound());
+                // the image is checked by the verifier, this thread goes on with the links
+                verifier.submit(entry, match.getFound());
+                matched = true;
+                matchedKeywords = match.getFound();
+            }
+            
+            parseStart = System.nanoTime();
+            List<String> pageLinks;
+            if (nearDuplicates != null && nearDuplicates.check(NearDuplicates.fingerprint(html)))
+            {
+                log("Near duplicate of a page seen before, links not followed: {0}", url);
+                nearDuplicatePages.inc();
+                pageLinks = Collections.emptyList();
+            }
+            else
+            {
+                pageLinks = extractLinks(html, url);
+            }
+            parseNanos += System.nanoTime() - parseStart;
+            parseTime.observe(parseNanos / (double) TimeUnit.SECONDS.toNanos(1));
+
+            for (String linkURL : pageLinks)
+            {
+                if (!inScope(linkURL))
+                {
+                    logger.debug("Skipping URL out of scope: {0}", linkURL);
                     continue;
                 }
                 
-                if (toVisitURLs.contains(linkURL) || visitedURLs.contains(linkURL))
+                String canonicalURL = canonicalize(linkURL);
+                if (canonicalURL == null)
                 {
+                    logger.debug("Not a valid URL: {0}", linkURL);
                     continue;
                 }
                 
-                addToVisitUrl(linkURL);
+                links.add(canonicalURL);
+                offerToVisitURL(linkURL, canonicalURL, entry.depth + 1, entry.pattern);
             }
+
+            validators.put(new ValidatorStore.Validator(url, page.getEtag(), page.getLastModified(), hash,
+                    matchedKeywords, links));
+        }
+        catch (RetryException e)
+        {
+            throw e;
         }
         catch (IOException e)
         {
             log(e);
         }
+        finally
+        {
+            if (host != null)
+            {
+                hostLimiter.release(host);
+            }
+        }
+
+        return matched;
     }
 
-    private boolean checkValid(String URLName)
+    /**
+     * Throttled or temporarily unavailable.
+     */
+    static boolean isRetryable(int status)
     {
-        try
+        return status == HTTP_TOO_MANY_REQUESTS || status == HttpURLConnection.HTTP_BAD_GATEWAY
+                || status == HttpURLConnection.HTTP_UNAVAILABLE || status == HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+    }
+
+    /**
+     * Take the result of the previous visit of a page that did not change: its match and its links. A match not yet
+     * verified is verified again.
+     *
+     * @return true if the page matches the keyword
+     */
+    private boolean reuse(FrontierEntry entry, ValidatorStore.Validator previous) throws InterruptedException
+    {
+        unchangedPages.incrementAndGet();
+        if (previous.isMatch())
         {
-            HttpURLConnection con = (HttpURLConnection) new URL(URLName).openConnection();
-            con.setRequestMethod("HEAD");
-            
-            if (con.getResponseCode() != HttpURLConnection.HTTP_OK)
+            boolean known;
+            synchronized (lock)
             {
-                log("Page does not exist.");
-                return false;
+                known = matchingURLs.contains(entry.url);
             }
-            
-            String contentType = con.getHeaderField("Content-Type");
-            if (contentType == null)
+            if (known)
             {
-                log("Page unknown format.");
-                return false;
+                matchesFound.inc();
             }
-            
-            if (!"application/xml".equals(contentType) && !"application/xhtml+xml".equals(contentType)
-                  && !contentType.startsWith("text/"))
+            else
             {
-                log("Page unsupported format: {0}", contentType);
-                return false;
+                // its verification did not finish or failed on the previous visit
+                verifier.submit(entry, previous.getKeywords());
+            }
+        }
+
+        for (String linkURL : previous.getLinks())
+        {
+            // the scope may have changed since
+            if (!inScope(linkURL))
+            {
+                continue;
+            }
+
+            String canonicalURL = canonicalize(linkURL);
+            if (canonicalURL != null)
+            {
+                offerToVisitURL(canonicalURL, canonicalURL, entry.depth + 1, entry.pattern);
+            }
+        }
+        return previous.isMatch();
+    }
+
+    /**
+     * Check the link against the {@link ScopeFilter}, counting the rejected ones.
+     */
+    private boolean inScope(String linkURL)
+    {
+        if (scope.accepts(linkURL)) { return true; }
+
+        outOfScopeURLs.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Cut the fragment, replace the host with the site host and canonicalize if configured.
+     *
+     * @return the URL to visit, or null if the URL is not valid
+     */
+    private String canonicalize(String url)
+    {
+        int index = url.indexOf('#');
+        if (index > 0)
+        {
+            url = url.substring(0, index);
+        }
+
+        try
+        {
+            String linkHost = new URL(url).getHost();
+            if (isSiteAlias(linkHost))
+            {
+                url = replaceHost(url, linkHost, siteURL.getHost());
             }
-            
-            return true;
         }
         catch (Exception e)
         {
-            e.printStackTrace();
+            return null;
+        }
+
+        return canonicalizer == null ? url : canonicalizer.canonicalize(url);
+    }
+
+    /**
+     * @return true if the host is the site host, with or without <code>www.</code>, in any case; other subdomains in
+     *         scope are pages of their own
+     */
+    private boolean isSiteAlias(String host)
+    {
+        return withoutWWW(host).equalsIgnoreCase(withoutWWW(siteURL.getHost()));
+    }
+
+    private static String withoutWWW(String host)
+    {
+        return host.regionMatches(true, 0, "www.", 0, 4) ? host.substring(4) : host;
+    }
+
+    /**
+     * Replace the host in the authority of the URL only, not where the same text is in the path or query.
+     */
+    private static String replaceHost(String url, String host, String newHost)
+    {
+        int authorityStart = url.indexOf("://") + 3;
+        int authorityEnd = authorityStart;
+        while (authorityEnd < url.length() && "/?#".indexOf(url.charAt(authorityEnd)) == -1)
+        {
+            authorityEnd++;
+        }
+        int at = url.lastIndexOf('@', authorityEnd - 1);
+        int hostStart = at >= authorityStart ? at + 1 : authorityStart;
+        if (!url.regionMatches(true, hostStart, host, 0, host.length())) { return url; }
+
+        return url.substring(0, hostStart) + newHost + url.substring(hostStart + host.length());
+    }
+
+    /**
+     * Links of the page, from the streaming extractor unless Jsoup is configured or the markup is malformed.
+     */
+    private List<String> extractLinks(String html, String url)
+    {
+        if (!EXTRACTOR_JSOUP.equals(parameters.get(KEY_LINK_EXTRACTOR)))
+        {
+            List<String> links = LinkExtractor.extract(html, url);
+            if (links != null) { return links; }
+
+            log("Malformed page, parsing with Jsoup: {0}", url);
+        }
+
+        Document doc = Jsoup.parse(html, url);
+        Elements elements = doc.select("a[href]");
+        List<String> links = new ArrayList<String>(elements.size());
+        for (Element link : elements)
+        {
+            links.add(link.absUrl("href"));
+        }
+        return links;
+    }
+
+    private boolean checkValid(PageFetcher.Result page)
+    {
+        if (page.getStatus() != HttpURLConnection.HTTP_OK)
+        {
+            log("Page does not exist.");
             return false;
         }
+
+        String contentType = page.getContentType();
+        if (contentType == null)
+        {
+            log("Page unknown format.");
+            return false;
+        }
+
+        if (page.getBody() == null)
+        {
+            log("Page unsupported format: {0}", contentType);
+            return false;
+        }
+
+        return true;
     }
     
+    /**
+     * A page request failed in a way worth retrying: a network error or a throttling status.
+     */
+    private static class RetryException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final long retryAfter;
+
+        /**
+         * @param retryAfter milliseconds the server asked to wait, or -1
+         */
+        private RetryException(String message, long retryAfter)
+        {
+            super(message);
+            this.retryAfter = retryAfter;
+        }
+
+        private long getRetryAfter()
+        {
+            return retryAfter;
+        }
+    }
+
+    /**
+     * A page waiting in {@link WebCrawler#retries} until its backoff has passed.
+     */
+    private static class Retry implements Delayed
+    {
+        private final FrontierEntry entry;
+        private final int attempt;
+        private final long due;
+
+        private Retry(FrontierEntry entry, int attempt, long delay)
+        {
+            this.entry = entry;
+            this.attempt = attempt;
+            this.due = System.currentTimeMillis() + delay;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit)
+        {
+            return unit.convert(due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other)
+        {
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "crawler-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
     private static class KeyListenerProcess implements Runnable
     {
         private KeyListenerProcess()
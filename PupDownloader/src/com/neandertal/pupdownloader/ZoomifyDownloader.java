@@ -2,66 +2,94 @@ package com.neandertal.pupdownloader;
 
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.http.HttpResponse;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.MessageFormat;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.ImageIO;
+import javax.management.JMException;
 
 import net.coobird.thumbnailator.Thumbnails;
 
 /**
  * Download Zoomify image
+ * <p>
+ * Runs on its own from <code>main</code> over the URLs of a file, or is driven from code: {@link #init(String[])},
+ * then {@link #download(String)} from any number of threads, then {@link #finish()}.
  * 
  * @author neandertal
  *
  */
 public class ZoomifyDownloader
 {
-    private static final int BUFFER_SIZE = 4096;
+    private static final String USER_AGENT = "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/535.1 (KHTML, like Gecko) Chrome/13.0.782.112 Safari/535.1";
     
     private static final String IMG_FILE_SUFFIX = ".png";
     
     private static final String KEY_LOG_FILE = "log_file";
     private static final String KEY_URLS_FILE = "urls_file";
     private static final String KEY_RESULT_FOLDER = "result_folder";
+    private static final String KEY_TIMEOUT = "timeout";
+    private static final String KEY_DNS_CACHE_TTL = "dns_cache_ttl";
+    private static final String KEY_LOG_LEVEL = "log_level";
+    private static final String KEY_METRICS_PORT = "metrics_port";
     
     private static final String DEFAULT_LOG_FILE = "zoomifydownloader/log.txt";
     private static final String DEFAULT_URLS_FILE = "zoomifydownloader/urls.txt";
     private static final String DEFAULT_RESULT_FOLDER = "zoomifydownloader/result";
+    private static final String DEFAULT_TIMEOUT = "10000";
+    private static final String DEFAULT_DNS_CACHE_TTL = "300";
+    private static final String DEFAULT_LOG_LEVEL = "info";
+    private static final String DEFAULT_METRICS_PORT = "0";
     
     private static final String RESULT_HTML_FILE = "result.html";
     private static final String UTF8 = "UTF-8";
     
     private Map<String, String> parameters;
-    private HashSet<String> urlsToVisit = new HashSet<String>();
-    private HashMap<String, Page> hashToPage = new HashMap<String, Page>();
+    private Set<String> urlsToVisit = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private Map<String, Page> hashToPage = new ConcurrentHashMap<String, Page>();
     
-    private BufferedWriter logFile;
-    private int downloadedImages = 0;
+    private HttpService httpService;
+    private AsyncLogger logger;
+    /** The logger belongs to the caller, who configures and closes it. */
+    private boolean sharedLogger;
+    private AtomicInteger downloadedImages = new AtomicInteger();
+
+    private Metrics metrics = new Metrics("pup_downloader");
+    private Metrics.Counter tilesFetched = metrics.counter("tiles_fetched", "Tiles downloaded.");
+    private Metrics.Counter tileBytes = metrics.counter("tile_bytes", "Tile bytes downloaded.");
+    private Metrics.Counter tileErrors = metrics.counter("tile_errors", "Tiles that failed to download.");
+    private Metrics.Counter imagesSaved = metrics.counter("images_saved", "Images saved.");
+    private Metrics.Histogram tileFetchTime = metrics.histogram("tile_fetch_seconds", "Time to download a tile.");
+    private Metrics.Histogram decodeTime = metrics.histogram("decode_seconds", "Time to decode a tile.");
+    private Metrics.Histogram stitchTime = metrics.histogram("stitch_seconds", "Time to append a tile or a row.");
+    private Metrics.Histogram saveTime = metrics.histogram("save_seconds", "Time to write an image.");
+    private MetricsJmx metricsJmx;
+    private MetricsServer metricsServer;
     
     private static AtomicBoolean toQuit = new AtomicBoolean(false);
 
@@ -90,6 +118,21 @@ public class ZoomifyDownloader
         }
     }
 
+    public ZoomifyDownloader()
+    {
+        this.logger = new AsyncLogger();
+        this.sharedLogger = false;
+    }
+
+    /**
+     * @param logger used instead of an own logger; its level and file are left as they are
+     */
+    public ZoomifyDownloader(AsyncLogger logger)
+    {
+        this.logger = logger;
+        this.sharedLogger = true;
+    }
+
     public static void main(String[] args)
     {
         Thread listen = new Thread(new KeyListenerProcess());
@@ -140,6 +183,19 @@ public class ZoomifyDownloader
         }
     }
 
+    /**
+     * Download the image of a page. Thread safe.
+     */
+    public void download(String url)
+    {
+        if (!urlsToVisit.add(url))
+        {
+            // found again
+            return;
+        }
+        processURL(url);
+    }
+
     private void processURL(String url)
     {
         try
@@ -147,9 +203,17 @@ public class ZoomifyDownloader
             Page page = createPage(url);
             hashToPage.put(page.hash, page);
 
-            if (!findTileAndZ(page)) { return; }
+            ImageProperties properties = readImageProperties(page);
+            if (properties == null || !loadImage(page, properties))
+            {
+                if (properties != null)
+                {
+                    log("Probing the tiles of: {0}", page.url);
+                }
+                if (!findTileAndZ(page)) { return; }
 
-            if (!loadImage(page)) { return; }
+                if (!loadImage(page)) { return; }
+            }
 
             if (!saveImage(page)) { return; }
 
@@ -169,9 +233,12 @@ public class ZoomifyDownloader
         String thumbnailFileName = parameters.get(KEY_RESULT_FOLDER) + File.separator + "thumbnail_" + page.imageFileName;
         try
         {
+            long saveStart = System.nanoTime();
             ImageIO.write(page.image, "png", new File(imageFileName));
+            saveTime.observeSince(saveStart);
             log("Saved image to file: {0}", imageFileName);
-            downloadedImages++;
+            downloadedImages.incrementAndGet();
+            imagesSaved.inc();
 
             // try to create thumbnail
             try
@@ -207,69 +274,142 @@ public class ZoomifyDownloader
         {
         }
 
-        InputStream in = null;
-        ByteArrayOutputStream out = null;
         try
         {
-            URL urlURL = new URL(url);
-            in = new BufferedInputStream(urlURL.openStream());
-            out = new ByteArrayOutputStream();
-            byte[] buf = new byte[BUFFER_SIZE];
-            int n = 0;
-
-            while (-1 != (n = in.read(buf)))
+            long fetchStart = System.nanoTime();
+            HttpResponse<byte[]> response = httpService.getBytes(url);
+            if (response.statusCode() != HttpURLConnection.HTTP_OK)
             {
-                out.write(buf, 0, n);
+                tileErrors.inc();
+                if (logFail) log("Fail to download image: {0}, status {1}", url, response.statusCode());
+                return null;
             }
+            tileFetchTime.observeSince(fetchStart);
+            tilesFetched.inc();
+            tileBytes.add(response.body().length);
 
-            BufferedImage img = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+            long decodeStart = System.nanoTime();
+            BufferedImage img = decodeTile(response.body());
+            decodeTime.observeSince(decodeStart);
             return img;
         }
         catch (Exception e)
         {
+            tileErrors.inc();
             if (logFail) log(e);
         }
-        finally
+
+        return null;
+    }
+
+    /**
+     * @return the image, or null if the format is not supported
+     */
+    static BufferedImage decodeTile(byte[] bytes) throws IOException
+    {
+        return ImageIO.read(new ByteArrayInputStream(bytes));
+    }
+
+    public boolean exists(String URLName)
+    {
+        try
         {
-            if (in != null)
+            return (httpService.head(URLName) == HttpURLConnection.HTTP_OK);
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * @return the properties of the image, or null if there are none or their tiles do not add up, to probe instead
+     */
+    private ImageProperties readImageProperties(Page page) throws InterruptedException
+    {
+        String url = ImageProperties.urlOf(page.url);
+        try
+        {
+            HttpResponse<byte[]> response = httpService.getBytes(url);
+            if (response.statusCode() != HttpURLConnection.HTTP_OK)
             {
-                try
-                {
-                    in.close();
-                }
-                catch (IOException e)
-                {
-                }
+                logger.debug("No image properties: {0}, status {1}", url, response.statusCode());
+                return null;
             }
 
-            if (out != null)
+            ImageProperties properties = ImageProperties.parse(response.body());
+            if (!properties.hasTileGrid())
             {
-                try
-                {
-                    out.close();
-                }
-                catch (IOException e)
-                {
-                }
+                log("Image properties do not match their tile count {0}: {1}", properties.getNumTiles(), url);
+                return null;
             }
+            return properties;
+        }
+        catch (IOException e)
+        {
+            log("Cannot read image properties {0}: {1}", url, e.getMessage());
+            return null;
         }
-
-        return null;
     }
 
-    public static boolean exists(String URLName)
+    /**
+     * Download every tile of the full size level, known from the properties, straight into an image of the full size,
+     * without probing for tiles.
+     *
+     * @return false if a tile is missing
+     */
+    private boolean loadImage(Page page, ImageProperties properties)
     {
+        int z = properties.getLevelCount() - 1;
+        int columns = properties.getColumns(z);
+        int rows = properties.getRows(z);
+        int tileSize = properties.getTileSize();
+        log("Downloading image of {0}x{1} tiles started...", columns, rows);
+
+        BufferedImage finalImage = null;
+        Graphics g = null;
         try
         {
-            HttpURLConnection con = (HttpURLConnection) new URL(URLName).openConnection();
-            con.setRequestMethod("HEAD");
-            return (con.getResponseCode() == HttpURLConnection.HTTP_OK);
+            for (int y = 0; y < rows; y++)
+            {
+                for (int x = 0; x < columns; x++)
+                {
+                    int tile = properties.getTileGroup(z, x, y);
+                    String imagePartURL = MessageFormat.format(page.maskImagePartURL, tile, z, x, y);
+                    BufferedImage imageX = downloadImage(imagePartURL, true);
+                    if (imageX == null) { return false; }
+
+                    long stitchStart = System.nanoTime();
+                    if (finalImage == null)
+                    {
+                        int type = imageX.getType() == BufferedImage.TYPE_CUSTOM ? BufferedImage.TYPE_INT_RGB
+                                : imageX.getType();
+                        finalImage = new BufferedImage(properties.getWidth(), properties.getHeight(), type);
+                        g = finalImage.getGraphics();
+                    }
+                    g.drawImage(imageX, x * tileSize, y * tileSize, null);
+                    stitchTime.observeSince(stitchStart);
+                    page.tile = tile;
+                }
+            }
         }
-        catch (Exception e)
+        finally
         {
-            e.printStackTrace();
-            return false;
+            if (g != null)
+            {
+                g.dispose();
+            }
         }
+
+        page.z = z;
+        page.x = columns - 1;
+        page.y = rows - 1;
+        page.parts = columns * rows;
+        log("Dowloaded image with size {0}x{1} pixels.", String.valueOf(finalImage.getWidth()),
+                String.valueOf(finalImage.getHeight()));
+        page.image = finalImage;
+        return true;
     }
 
     private boolean findTileAndZ(Page page)
@@ -333,7 +473,9 @@ public class ZoomifyDownloader
                 break;
             }
 
+            long stitchStart = System.nanoTime();
             finalImage = appendYImages(finalImage, imageRow);
+            stitchTime.observeSince(stitchStart);
             y++;
         }
 
@@ -365,7 +507,9 @@ public class ZoomifyDownloader
             if (exist)
             {
                 BufferedImage imageX = downloadImage(imagePartURL, false);
+                long stitchStart = System.nanoTime();
                 rowImage = appendXImages(rowImage, imageX);
+                stitchTime.observeSince(stitchStart);
                 x++;
                 page.tile = tile;
                 page.x = x;
@@ -390,7 +534,7 @@ public class ZoomifyDownloader
         return rowImage;
     }
 
-    private BufferedImage appendXImages(BufferedImage imgRow, BufferedImage imgX)
+    static BufferedImage appendXImages(BufferedImage imgRow, BufferedImage imgX)
     {
         if (imgRow == null)
             return imgX;
@@ -406,7 +550,7 @@ public class ZoomifyDownloader
         return finalImg;
     }
 
-    private BufferedImage appendYImages(BufferedImage imgAll, BufferedImage imgY)
+    static BufferedImage appendYImages(BufferedImage imgAll, BufferedImage imgY)
     {
         if (imgAll == null)
             return imgY;
@@ -430,11 +574,7 @@ public class ZoomifyDownloader
         page.hash = getHash(url);
 
         // remove php middleman
-        url = url.replace("displayImage.php?folder=", "");
-        if (!url.endsWith("/"))
-        {
-            url += "/";
-        }
+        url = ImageProperties.folderOf(url);
 
         String path = "";
         try
@@ -461,21 +601,30 @@ public class ZoomifyDownloader
     }
 
     /**
-     * Initialize web crawler parameters.
+     * Initialize web crawler parameters. An empty <code>urls_file</code> reads no URLs, for use with
+     * {@link #download(String)}.
      * 
      * @throws UnsupportedEncodingException
      * @throws FileNotFoundException
      */
-    private void init(String[] args) throws Exception
+    public void init(String[] args) throws Exception
     {
-        HttpURLConnection.setFollowRedirects(false);
-
         readParameters(args);
+        httpService = new HttpService(USER_AGENT, Integer.parseInt(parameters.get(KEY_TIMEOUT)),
+                Integer.parseInt(parameters.get(KEY_DNS_CACHE_TTL)));
 
-        logFile = createWriter(parameters.get(KEY_LOG_FILE));
+        if (!sharedLogger)
+        {
+            logger.setLevel(AsyncLogger.parseLevel(parameters.get(KEY_LOG_LEVEL)));
+            logger.setFile(createWriter(parameters.get(KEY_LOG_FILE)));
+        }
 
         log("Init parameters: {0}", Arrays.toString(args));
-        readFileToList(parameters.get(KEY_URLS_FILE), urlsToVisit);
+        startMetrics();
+        if (!parameters.get(KEY_URLS_FILE).isEmpty())
+        {
+            readFileToList(parameters.get(KEY_URLS_FILE), urlsToVisit);
+        }
 
         log("Prepare result folder...");
         File resFolder = new File(parameters.get(KEY_RESULT_FOLDER));
@@ -487,6 +636,47 @@ public class ZoomifyDownloader
         resFolder.mkdirs();
     }
 
+    /**
+     * Register the gauges, the MBean and, if a port is given, the Prometheus endpoint.
+     */
+    private void startMetrics()
+    {
+        metrics.gauge("urls", "URLs to process.", new Metrics.Gauge()
+        {
+            @Override
+            public double value()
+            {
+                return urlsToVisit.size();
+            }
+        });
+
+        try
+        {
+            metricsJmx = new MetricsJmx(metrics, "Zoomify downloader metrics");
+            metricsJmx.register("ZoomifyDownloader");
+        }
+        catch (JMException e)
+        {
+            log(e);
+        }
+
+        int port = Integer.parseInt(parameters.get(KEY_METRICS_PORT));
+        if (port > 0)
+        {
+            try
+            {
+                metricsServer = new MetricsServer(metrics, port);
+                metricsServer.start();
+                log("Metrics at http://127.0.0.1:{0}/metrics", String.valueOf(port));
+            }
+            catch (IOException e)
+            {
+                log("Cannot start the metrics endpoint on port {0}.", String.valueOf(port));
+                log(e);
+            }
+        }
+    }
+
     private BufferedWriter createWriter(String fileName) throws Exception
     {
         File file = new File(fileName);
@@ -534,8 +724,11 @@ public class ZoomifyDownloader
             String line = "";
             while ((line = bufferedReader.readLine()) != null)
             {
-                list.add(line);
-                log("Loaded URL: {0}", line);
+                // the crawler writes the keywords found after a tab
+                int index = line.indexOf('\t');
+                String url = index == -1 ? line : line.substring(0, index);
+                list.add(url);
+                logger.debug("Loaded URL: {0}", url);
             }
         }
         catch (Exception e)
@@ -571,6 +764,10 @@ public class ZoomifyDownloader
         parameters.put(KEY_LOG_FILE, DEFAULT_LOG_FILE);
         parameters.put(KEY_URLS_FILE, DEFAULT_URLS_FILE);
         parameters.put(KEY_RESULT_FOLDER, DEFAULT_RESULT_FOLDER);
+        parameters.put(KEY_TIMEOUT, DEFAULT_TIMEOUT);
+        parameters.put(KEY_DNS_CACHE_TTL, DEFAULT_DNS_CACHE_TTL);
+        parameters.put(KEY_LOG_LEVEL, DEFAULT_LOG_LEVEL);
+        parameters.put(KEY_METRICS_PORT, DEFAULT_METRICS_PORT);
 
         for (String arg : args)
         {
@@ -592,12 +789,28 @@ public class ZoomifyDownloader
             {
                 parameters.put(KEY_RESULT_FOLDER, value);
             }
+            else if (KEY_TIMEOUT.equals(key))
+            {
+                parameters.put(KEY_TIMEOUT, value);
+            }
+            else if (KEY_DNS_CACHE_TTL.equals(key))
+            {
+                parameters.put(KEY_DNS_CACHE_TTL, value);
+            }
+            else if (KEY_LOG_LEVEL.equals(key))
+            {
+                parameters.put(KEY_LOG_LEVEL, value);
+            }
+            else if (KEY_METRICS_PORT.equals(key))
+            {
+                parameters.put(KEY_METRICS_PORT, value);
+            }
         }
     }
 
     private void writeResults()
     {
-        log("Processed  {0} urls, {1} pages, {2} images.", urlsToVisit.size(), hashToPage.size(), downloadedImages);
+        log("Processed  {0} urls, {1} pages, {2} images.", urlsToVisit.size(), hashToPage.size(), downloadedImages.get());
         log("Write result file...");
         BufferedWriter resultFile = null;
         try
@@ -613,7 +826,7 @@ public class ZoomifyDownloader
             resultFile.newLine();
             resultFile.write(MessageFormat.format("<p>Pages visited: {0}</p>", String.valueOf(hashToPage.size())));
             resultFile.newLine();
-            resultFile.write(MessageFormat.format("<p>Downloaded images: {0}</p>", String.valueOf(downloadedImages)));
+            resultFile.write(MessageFormat.format("<p>Downloaded images: {0}</p>", String.valueOf(downloadedImages.get())));
 
             Iterator<Page> iter = hashToPage.values().iterator();
             while (iter.hasNext())
@@ -672,7 +885,7 @@ public class ZoomifyDownloader
         }
     }
 
-    private String getHash(String s) throws NoSuchAlgorithmException
+    static String getHash(String s) throws NoSuchAlgorithmException
     {
         MessageDigest md = MessageDigest.getInstance("MD5");
         md.update(s.getBytes());
@@ -693,20 +906,7 @@ public class ZoomifyDownloader
      */
     private void log(String msg, Object... args)
     {
-        String message = MessageFormat.format(msg, args);
-        System.out.println(message);
-        if (logFile != null)
-        {
-            try
-            {
-                logFile.write(message);
-                logFile.newLine();
-            }
-            catch (IOException e)
-            {
-                e.printStackTrace();
-            }
-        }
+        logger.info(msg, args);
     }
 
     /**
@@ -716,49 +916,31 @@ public class ZoomifyDownloader
      */
     private void log(Throwable t)
     {
-        String message = MessageFormat.format("Error: {0} - {1}", t.getClass().getName(), t.getMessage());
-        System.out.println(message);
-        if (logFile != null)
-        {
-            try
-            {
-                logFile.write(message);
-                logFile.newLine();
-            }
-            catch (IOException e)
-            {
-                e.printStackTrace();
-            }
-        }
+        logger.error(t);
     }
 
-    private void finish()
+    /**
+     * Write the result file and release the HTTP client; downloads must have ended.
+     */
+    public void finish()
     {
         writeResults();
 
-        try
+        if (metricsServer != null)
         {
-            if (logFile != null)
-            {
-                logFile.flush();
-                logFile.close();
-                logFile = null;
-            }
+            metricsServer.stop();
         }
-        catch (Exception e)
+        if (metricsJmx != null)
         {
-            e.printStackTrace();
-            if (logFile != null)
-            {
-                try
-                {
-                    logFile.close();
-                }
-                catch (IOException e1)
-                {
-                    // nothing
-                }
-            }
+            metricsJmx.unregister();
+        }
+        if (httpService != null)
+        {
+            httpService.close();
+        }
+        if (!sharedLogger)
+        {
+            logger.close();
         }
     }
 